@@ -0,0 +1,90 @@
+package edu.cmu.cs.lti.benchmarks;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scoring with the averaged weights and of advancing the averages, for the eager and lazy sparse vectors and
+ * the dense vector. Each update step changes the weights of a few features, as a perceptron update does.
+ *
+ * @author Zhengzhong Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AveragedWeightVectorBenchmark {
+    private static final int alphabetBits = 18;
+
+    private static final int numUpdates = 16;
+
+    @Param({"hash", "lazyHash", "array"})
+    public String implementation;
+
+    @Param({"20000"})
+    public int numTrainedFeatures;
+
+    private AveragedWeightVector weights;
+
+    private FeatureVector[] updates;
+
+    private FeatureVector instance;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        FeatureAlphabet alphabet = new HashAlphabet(alphabetBits, false);
+        switch (implementation) {
+            case "hash":
+                weights = new HashBasedAveragedWeightVector(0, false);
+                break;
+            case "lazyHash":
+                weights = new HashBasedAveragedWeightVector(0, true);
+                break;
+            case "array":
+                weights = new ArrayBasedAveragedWeightVector(alphabet.getAlphabetSize(), 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown weight vector implementation " + implementation);
+        }
+
+        Random random = new Random(17);
+        FeatureVector trained = new RealValueHashFeatureVector(alphabet);
+        for (int i = 0; i < numTrainedFeatures; i++) {
+            trained.addFeature("feature_" + i, random.nextGaussian());
+        }
+        weights.updateWeightsBy(trained, 1);
+        weights.updateAverageWeight();
+
+        updates = new FeatureVector[numUpdates];
+        for (int u = 0; u < numUpdates; u++) {
+            updates[u] = new RealValueHashFeatureVector(alphabet);
+            for (int i = 0; i < 30; i++) {
+                updates[u].addFeature("feature_" + random.nextInt(numTrainedFeatures), random.nextGaussian());
+            }
+        }
+
+        instance = new RealValueHashFeatureVector(alphabet);
+        for (int i = 0; i < 200; i++) {
+            instance.addFeature("feature_" + random.nextInt(numTrainedFeatures * 2), 1);
+        }
+    }
+
+    @Benchmark
+    public double dotProdAver() {
+        return weights.dotProdAver(instance);
+    }
+
+    @Benchmark
+    public void updateAverageWeight() {
+        next = (next + 1) & (numUpdates - 1);
+        weights.updateWeightsBy(updates[next], 0.01);
+        weights.updateAverageWeight();
+    }
+}
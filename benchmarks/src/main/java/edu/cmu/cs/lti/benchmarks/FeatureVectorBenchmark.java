@@ -0,0 +1,94 @@
+package edu.cmu.cs.lti.benchmarks;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the feature vector implementations on building a vector, iterating it and the dot product of two vectors.
+ *
+ * @author Zhengzhong Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureVectorBenchmark {
+    @Param({"hash", "sorted", "lazy"})
+    public String implementation;
+
+    @Param({"50", "500"})
+    public int numFeatures;
+
+    private FeatureAlphabet alphabet;
+
+    private String[] names;
+
+    private FeatureVector left;
+
+    private FeatureVector right;
+
+    @Setup
+    public void setup() {
+        alphabet = new HashAlphabet(22, false);
+        Random random = new Random(17);
+        // Draw from a small vocabulary, so that the vectors overlap and contain duplicates.
+        names = new String[numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            names[i] = "feature_" + random.nextInt(numFeatures * 2);
+        }
+        left = build();
+        right = build();
+        for (int i = 0; i < numFeatures; i++) {
+            right.addFeature("feature_" + random.nextInt(numFeatures * 2), 1);
+        }
+    }
+
+    private FeatureVector newVector() {
+        switch (implementation) {
+            case "hash":
+                return new RealValueHashFeatureVector(alphabet);
+            case "sorted":
+                return new SortedArrayFeatureVector(alphabet);
+            case "lazy":
+                return new RealValueLazyListFeatureVector(alphabet);
+            default:
+                throw new IllegalArgumentException("Unknown feature vector implementation " + implementation);
+        }
+    }
+
+    private FeatureVector build() {
+        FeatureVector fv = newVector();
+        for (String name : names) {
+            fv.addFeature(name, 1);
+        }
+        return fv;
+    }
+
+    @Benchmark
+    public FeatureVector add() {
+        FeatureVector fv = build();
+        // Make the lazily organized implementations finish their work.
+        fv.getFeatureSize();
+        return fv;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (FeatureVector.FeatureIterator iter = left.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            blackhole.consume(iter.featureIndex());
+            blackhole.consume(iter.featureValue());
+        }
+    }
+
+    @Benchmark
+    public double dotProd() {
+        return left.dotProd(right);
+    }
+}
@@ -0,0 +1,87 @@
+package edu.cmu.cs.lti.benchmarks;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write and read a trained {@link GraphWeightVector}, with Java serialization and with the binary format.
+ *
+ * @author Zhengzhong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GraphWeightVectorIOBenchmark {
+    @Param({"20", "100"})
+    public int numClasses;
+
+    @Param({"2000"})
+    public int featuresPerClass;
+
+    private GraphWeightVector weights;
+
+    private File serializedFile;
+
+    private File binaryFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[0], false, true);
+        for (int i = 0; i < numClasses; i++) {
+            classAlphabet.addClass("class" + i);
+        }
+        HashAlphabet featureAlphabet = new HashAlphabet(22, false);
+        weights = new GraphWeightVector(classAlphabet, featureAlphabet, "benchmark");
+
+        Random random = new Random(17);
+        for (int c = 0; c < classAlphabet.size(); c++) {
+            GraphFeatureVector update = new GraphFeatureVector(classAlphabet, featureAlphabet);
+            FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+            for (int i = 0; i < featuresPerClass; i++) {
+                fv.addFeature("feature_" + random.nextInt(featuresPerClass * 10), random.nextGaussian());
+            }
+            update.extend(fv, c, 1.0);
+            weights.updateWeightsBy(update, 1);
+            weights.updateAverageWeights();
+        }
+
+        serializedFile = File.createTempFile("weights", ".ser");
+        binaryFile = File.createTempFile("weights", ".bin");
+        weights.write(serializedFile);
+        weights.writeBinary(binaryFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serializedFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        weights.write(serializedFile);
+    }
+
+    @Benchmark
+    public GraphWeightVector read() throws IOException {
+        return GraphWeightVector.read(serializedFile);
+    }
+
+    @Benchmark
+    public void writeBinary() throws IOException {
+        weights.writeBinary(binaryFile);
+    }
+
+    @Benchmark
+    public GraphWeightVector readBinary() throws IOException {
+        return GraphWeightVector.readBinary(binaryFile);
+    }
+}
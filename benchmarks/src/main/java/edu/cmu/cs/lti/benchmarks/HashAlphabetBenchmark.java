@@ -0,0 +1,65 @@
+package edu.cmu.cs.lti.benchmarks;
+
+import edu.cmu.cs.lti.learning.model.HashAlphabet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link HashAlphabet#getFeatureId(String)}, with and without storing the readable names, and of the
+ * {@link CharSequence} variant fed by a reused builder, as feature extractors do.
+ *
+ * @author Zhengzhong Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashAlphabetBenchmark {
+    private static final int numNames = 4096;
+
+    @Param({"18", "22"})
+    public int alphabetBits;
+
+    @Param({"false", "true"})
+    public boolean storeReadable;
+
+    private HashAlphabet alphabet;
+
+    private String[] names;
+
+    private StringBuilder builder;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        alphabet = new HashAlphabet(alphabetBits, storeReadable);
+        names = new String[numNames];
+        Random random = new Random(17);
+        for (int i = 0; i < numNames; i++) {
+            names[i] = "FeatureTemplate_" + random.nextInt(64) + "_token=word" + random.nextInt(100000);
+        }
+        builder = new StringBuilder();
+    }
+
+    private String nextName() {
+        next = (next + 1) & (numNames - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public int getFeatureId() {
+        return alphabet.getFeatureId(nextName());
+    }
+
+    @Benchmark
+    public int getFeatureIdCharSequence() {
+        builder.setLength(0);
+        builder.append(nextName());
+        return alphabet.getFeatureId(builder);
+    }
+}
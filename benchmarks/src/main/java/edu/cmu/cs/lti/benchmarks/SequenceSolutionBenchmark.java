@@ -0,0 +1,90 @@
+package edu.cmu.cs.lti.benchmarks;
+
+import edu.cmu.cs.lti.learning.model.ClassAlphabet;
+import edu.cmu.cs.lti.learning.model.SequenceSolution;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end decoding of a {@link SequenceSolution} on synthetic lattices with random node and edge scores, i.e.
+ * scoring all the edges, advancing through the positions and back tracing.
+ *
+ * @author Zhengzhong Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceSolutionBenchmark {
+    @Param({"10", "50"})
+    public int sequenceLength;
+
+    @Param({"10", "40"})
+    public int numClasses;
+
+    @Param({"1", "5"})
+    public int bestK;
+
+    private SequenceSolution solution;
+
+    // Node scores by position and class, the last position is the special end position.
+    private double[][] nodeScores;
+
+    private double[][] edgeScores;
+
+    @Setup
+    public void setup() {
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[0], false, true);
+        for (int i = 0; i < numClasses; i++) {
+            classAlphabet.addClass("class" + i);
+        }
+        int alphabetSize = classAlphabet.size();
+
+        Random random = new Random(17);
+        nodeScores = new double[sequenceLength + 1][alphabetSize];
+        for (double[] position : nodeScores) {
+            for (int c = 0; c < alphabetSize; c++) {
+                position[c] = random.nextGaussian();
+            }
+        }
+        edgeScores = new double[alphabetSize][alphabetSize];
+        for (double[] row : edgeScores) {
+            for (int c = 0; c < alphabetSize; c++) {
+                row[c] = random.nextGaussian();
+            }
+        }
+
+        solution = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+    }
+
+    @Benchmark
+    public int decode() {
+        solution.reset(sequenceLength);
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            int[] currentClasses = solution.getCurrentPossibleClassIndices().toArray();
+            int[] previousClasses = solution.getPreviousPossibleClassIndices().toArray();
+            for (int classIndex : currentClasses) {
+                double nodeScore = nodeScores[position][classIndex];
+                for (int prevClass : previousClasses) {
+                    if (bestK == 1) {
+                        solution.scoreNewEdge(classIndex, prevClass, edgeScores[prevClass][classIndex], nodeScore);
+                    } else {
+                        int numPreviousBests = solution.getNumPreviousBests(prevClass);
+                        for (int rank = 0; rank < numPreviousBests; rank++) {
+                            solution.scoreNewEdge(classIndex, prevClass, rank, edgeScores[prevClass][classIndex],
+                                    nodeScore);
+                        }
+                    }
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+        return solution.getClassAt(0);
+    }
+}
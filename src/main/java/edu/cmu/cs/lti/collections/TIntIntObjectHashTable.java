@@ -0,0 +1,100 @@
+package edu.cmu.cs.lti.collections;
+
+import edu.cmu.cs.lti.utils.BitUtils;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * A table keyed by two integers, stored in a single primitive hash map by packing the two keys into one long (see
+ * {@link BitUtils#store2Int(int, int)}). Lookups do not box the keys, and the iterator exposes primitive keys.
+ *
+ * @author Zhengzhong Liu
+ */
+public class TIntIntObjectHashTable<V> implements Serializable {
+    private static final long serialVersionUID = -5718239431950431722L;
+
+    private final TLongObjectHashMap<V> table = new TLongObjectHashMap<>();
+
+    public TIntIntObjectHashTable() {
+
+    }
+
+    public V get(int rowKey, int colKey) {
+        return table.get(BitUtils.store2Int(rowKey, colKey));
+    }
+
+    public V put(int rowKey, int colKey, V value) {
+        return table.put(BitUtils.store2Int(rowKey, colKey), value);
+    }
+
+    public boolean contains(int rowKey, int colKey) {
+        return table.containsKey(BitUtils.store2Int(rowKey, colKey));
+    }
+
+    public V remove(int rowKey, int colKey) {
+        return table.remove(BitUtils.store2Int(rowKey, colKey));
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    public void clear() {
+        table.clear();
+    }
+
+    public Collection<V> values() {
+        return table.valueCollection();
+    }
+
+    public TIntIntObjectIterator<V> iterator() {
+        return new TIntIntObjectIterator<>(table.iterator());
+    }
+
+    /**
+     * Iterate the table with primitive keys, following the Trove iterator convention: call advance() before reading
+     * the entry.
+     */
+    public static class TIntIntObjectIterator<V> {
+        private final TLongObjectIterator<V> iter;
+
+        private TIntIntObjectIterator(TLongObjectIterator<V> iter) {
+            this.iter = iter;
+        }
+
+        public boolean hasNext() {
+            return iter.hasNext();
+        }
+
+        public void advance() {
+            iter.advance();
+        }
+
+        public int rowKey() {
+            return (int) (iter.key() >> 32);
+        }
+
+        public int colKey() {
+            return (int) iter.key();
+        }
+
+        public V value() {
+            return iter.value();
+        }
+
+        public V setValue(V value) {
+            return iter.setValue(value);
+        }
+
+        public void remove() {
+            iter.remove();
+        }
+    }
+}
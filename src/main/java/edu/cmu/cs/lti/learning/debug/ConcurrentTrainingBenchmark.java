@@ -0,0 +1,179 @@
+package edu.cmu.cs.lti.learning.debug;
+
+import edu.cmu.cs.lti.learning.model.ClassAlphabet;
+import edu.cmu.cs.lti.learning.model.FeatureVector;
+import edu.cmu.cs.lti.learning.model.GraphFeatureVector;
+import edu.cmu.cs.lti.learning.model.GraphWeightVector;
+import edu.cmu.cs.lti.learning.model.HashAlphabet;
+import edu.cmu.cs.lti.learning.model.RealValueHashFeatureVector;
+import edu.cmu.cs.lti.learning.training.MiniBatchUpdater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measure the perceptron training throughput of the default (globally synchronized) graph weight vector against the
+ * concurrent one, with 1, 4 and 16 threads. Each instance scores all classes and previous classes, then updates the
+ * gold and the predicted weights. The mini-batch training of {@link MiniBatchUpdater} on the default weight vector is
+ * measured with the same threads.
+ * <p>
+ * Usage: ConcurrentTrainingBenchmark [instances per thread] [alphabet bits]
+ *
+ * @author Zhengzhong Liu
+ */
+public class ConcurrentTrainingBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentTrainingBenchmark.class);
+
+    private static final int numClasses = 10;
+
+    private static final int numFeaturesPerInstance = 50;
+
+    private static final int numDistinctInstances = 1000;
+
+    private static final int batchSize = 64;
+
+    private final HashAlphabet alphabet;
+
+    private final ClassAlphabet classAlphabet;
+
+    private final FeatureVector[] instances;
+
+    private final int[] goldClasses;
+
+    public ConcurrentTrainingBenchmark(int alphabetBits) {
+        alphabet = new HashAlphabet(alphabetBits, false);
+        classAlphabet = new ClassAlphabet();
+        for (int i = 0; i < numClasses; i++) {
+            classAlphabet.addClass("class" + i);
+        }
+
+        Random random = new Random(17);
+        instances = new FeatureVector[numDistinctInstances];
+        goldClasses = new int[numDistinctInstances];
+        for (int i = 0; i < numDistinctInstances; i++) {
+            instances[i] = new RealValueHashFeatureVector(alphabet);
+            for (int j = 0; j < numFeaturesPerInstance; j++) {
+                instances[i].addFeature("feature_" + random.nextInt(100000), 1);
+            }
+            goldClasses[i] = random.nextInt(numClasses);
+        }
+    }
+
+    private void train(GraphWeightVector weights, int threadId, int numInstances) {
+        int previous = 0;
+        for (int i = 0; i < numInstances; i++) {
+            int instanceIndex = (threadId * 7919 + i) % numDistinctInstances;
+            FeatureVector fv = instances[instanceIndex];
+            int gold = goldClasses[instanceIndex];
+
+            int predicted = predict(weights, fv, previous);
+
+            if (predicted != gold) {
+                weights.updateWeightsBy(fv, gold, 1);
+                weights.updateWeightsBy(fv, predicted, -1);
+                weights.updateWeightsBy(fv, gold, previous, 1);
+                weights.updateWeightsBy(fv, predicted, previous, -1);
+            }
+            weights.updateAverageWeights();
+            previous = gold;
+        }
+    }
+
+    private int predict(GraphWeightVector weights, FeatureVector fv, int previous) {
+        int predicted = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < numClasses; c++) {
+            double score = weights.dotProd(fv, c) + weights.dotProd(fv, c, previous);
+            if (score > best) {
+                best = score;
+                predicted = c;
+            }
+        }
+        return predicted;
+    }
+
+    private GraphFeatureVector miniBatchUpdate(GraphWeightVector weights, int instanceIndex) {
+        FeatureVector fv = instances[instanceIndex];
+        int gold = goldClasses[instanceIndex];
+        int previous = goldClasses[(instanceIndex + numDistinctInstances - 1) % numDistinctInstances];
+        int predicted = predict(weights, fv, previous);
+        if (predicted == gold) {
+            return null;
+        }
+        GraphFeatureVector update = new GraphFeatureVector(classAlphabet, alphabet);
+        update.extend(fv, gold);
+        update.extend(fv, predicted, -1.0);
+        update.extend(fv, gold, previous, 1.0);
+        update.extend(fv, predicted, previous, -1.0);
+        return update;
+    }
+
+    private double runMiniBatch(GraphWeightVector weights, int numThreads, int instancesPerThread) {
+        int numInstances = numThreads * instancesPerThread;
+        long start = System.nanoTime();
+        try (MiniBatchUpdater updater = new MiniBatchUpdater(weights, numThreads)) {
+            List<Integer> batch = new ArrayList<>();
+            for (int i = 0; i < numInstances; i++) {
+                batch.add(i % numDistinctInstances);
+                if (batch.size() == batchSize || i == numInstances - 1) {
+                    updater.processBatch(batch, instanceIndex -> miniBatchUpdate(weights, instanceIndex), 1);
+                    batch.clear();
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return numInstances / seconds;
+    }
+
+    private double run(GraphWeightVector weights, int numThreads, int instancesPerThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int threadId = t;
+            futures.add(executor.submit(() -> train(weights, threadId, instancesPerThread)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        return numThreads * instancesPerThread / seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int instancesPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int alphabetBits = args.length > 1 ? Integer.parseInt(args[1]) : 18;
+
+        ConcurrentTrainingBenchmark benchmark = new ConcurrentTrainingBenchmark(alphabetBits);
+
+        for (int numThreads : new int[]{1, 4, 16}) {
+            GraphWeightVector synchronizedWeights = new GraphWeightVector(benchmark.classAlphabet,
+                    benchmark.alphabet, "", true, true);
+            GraphWeightVector concurrentWeights = GraphWeightVector.createConcurrent(benchmark.classAlphabet,
+                    benchmark.alphabet, "");
+
+            // Warm up so that both modes are compiled before measuring.
+            benchmark.run(synchronizedWeights, numThreads, instancesPerThread / 10);
+            benchmark.run(concurrentWeights, numThreads, instancesPerThread / 10);
+
+            double synchronizedThroughput = benchmark.run(synchronizedWeights, numThreads, instancesPerThread);
+            double concurrentThroughput = benchmark.run(concurrentWeights, numThreads, instancesPerThread);
+
+            GraphWeightVector miniBatchWeights = new GraphWeightVector(benchmark.classAlphabet,
+                    benchmark.alphabet, "", true, true);
+            benchmark.runMiniBatch(miniBatchWeights, numThreads, instancesPerThread / 10);
+            double miniBatchThroughput = benchmark.runMiniBatch(miniBatchWeights, numThreads, instancesPerThread);
+
+            logger.info(String.format("%d threads: synchronized %.0f instances/s, concurrent %.0f instances/s, " +
+                    "speed up %.2f, mini-batch %.0f instances/s", numThreads, synchronizedThroughput,
+                    concurrentThroughput, concurrentThroughput / synchronizedThroughput, miniBatchThroughput));
+        }
+    }
+}
@@ -13,9 +13,13 @@ import org.javatuples.Triplet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -25,21 +29,26 @@ import java.util.PriorityQueue;
  * Created with IntelliJ IDEA.
  * Date: 9/3/15
  * Time: 4:14 PM
+ * <p>
+ * Inspect the weights of a model trained with a readable hash alphabet. The weights are streamed: the top k weights
+ * are kept in a bounded heap of primitive entries, and only the names of the final k are resolved. Listing all the
+ * weights writes each of them as it is read, so the memory does not grow with the model. The deprecated load methods
+ * still return the old queues of named features, but skip the zero weights like the writers do.
  *
  * @author Zhengzhong Liu
  */
 public class HashedFeatureInspector {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private static final String header = "Feature Id\tFeature Name\tFeature Weight";
+
     private HashAlphabet featureAlphabet;
     private ClassAlphabet classAlphabet;
     private GraphWeightVector weightVector;
-    private ReverseFeatureComparator comp;
 
     public HashedFeatureInspector(GraphWeightVector weightVector) {
         this.weightVector = weightVector;
         this.classAlphabet = weightVector.getClassAlphabet();
-        comp = new ReverseFeatureComparator();
 
         if (!(weightVector.getFeatureAlphabet() instanceof HashAlphabet)) {
             logger.error("Hash inspector only inspect hashing alphabet.");
@@ -58,111 +67,317 @@ public class HashedFeatureInspector {
         featureAlphabet.computeConflictRates();
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadTopKAverageStateFeatures(int k) {
-        PriorityQueue<Triple<Integer, String, Double>> topK = new PriorityQueue<>(k, comp);
+    /**
+     * A visitor of the non-zero weights with recorded names. The previous key is -1 for node weights.
+     */
+    private interface WeightConsumer {
+        void accept(int currentKey, int previousKey, int featureIndex, double weight) throws IOException;
+    }
+
+    private void visitNodeWeights(boolean average, WeightConsumer consumer) throws IOException {
+        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator(); iter.hasNext(); ) {
+            Pair<Integer, AveragedWeightVector> r = iter.next();
+            AveragedWeightVector v = r.getValue1();
+            visit(average ? v.getAverageWeightsIterator() : v.getWeightsIterator(), r.getValue0(), -1, consumer);
+        }
+    }
+
+    private void visitEdgeAverageWeights(WeightConsumer consumer) throws IOException {
         for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = weightVector.edgeWeightIterator(); iter
                 .hasNext(); ) {
             Triplet<Integer, Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue2().getAverageWeightsIterator(), r.getValue0(), r.getValue1(), topK, k);
+            visit(r.getValue2().getAverageWeightsIterator(), r.getValue0(), r.getValue1(), consumer);
         }
-        return topK;
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadTopKAverageFeatures(int k) {
-        PriorityQueue<Triple<Integer, String, Double>> topK = new PriorityQueue<>(k, comp);
-        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator(); iter.hasNext(); ) {
-            Pair<Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue1().getAverageWeightsIterator(), r.getValue0(), topK, k);
+    private void visit(TIntDoubleIterator weightIter, int currentKey, int previousKey, WeightConsumer consumer)
+            throws IOException {
+        while (weightIter.hasNext()) {
+            weightIter.advance();
+            int fIndex = weightIter.key();
+            double weight = weightIter.value();
+            if (weight != 0 && featureAlphabet.hasMappedFeatureNames(fIndex)) {
+                consumer.accept(currentKey, previousKey, fIndex, weight);
+            }
+        }
+    }
+
+    public void writeTopKAverageStateFeatures(File outputFile, int k) throws IOException {
+        writeTopK(outputFile, collectTopKStateFeatures(k));
+    }
+
+    public void writeTopKAverageFeatures(File outputFile, int k) throws IOException {
+        writeTopK(outputFile, collectTopKFeatures(true, k));
+    }
+
+    public void writeTopKFinalFeatures(File outputFile, int k) throws IOException {
+        writeTopK(outputFile, collectTopKFeatures(false, k));
+    }
+
+    private TopKWeights collectTopKStateFeatures(int k) {
+        TopKWeights topK = new TopKWeights(k);
+        try {
+            visitEdgeAverageWeights(topK::offer);
+        } catch (IOException e) {
+            // Offering to the heap does not do any IO.
+            throw new UncheckedIOException(e);
         }
         return topK;
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadTopKFinalFeatures(int k) {
-        PriorityQueue<Triple<Integer, String, Double>> topK = new PriorityQueue<>(k, comp);
-        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator(); iter.hasNext(); ) {
-            Pair<Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue1().getWeightsIterator(), r.getValue0(), topK, k);
+    private TopKWeights collectTopKFeatures(boolean average, int k) {
+        TopKWeights topK = new TopKWeights(k);
+        try {
+            visitNodeWeights(average, topK::offer);
+        } catch (IOException e) {
+            // Offering to the heap does not do any IO.
+            throw new UncheckedIOException(e);
         }
         return topK;
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadAllAverageStateFeatures() {
-        PriorityQueue<Triple<Integer, String, Double>> all = new PriorityQueue<>();
-        for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = weightVector.edgeWeightIterator(); iter
-                .hasNext(); ) {
-            Triplet<Integer, Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue2().getAverageWeightsIterator(), r.getValue0(), r.getValue1(), all, -1);
+    /**
+     * Write all the averaged edge weights, in the order of the model instead of sorted.
+     */
+    public void writeAllAverageStateFeatures(File outputFile) throws IOException {
+        try (BufferedWriter writer = newWriter(outputFile)) {
+            visitEdgeAverageWeights((current, previous, fIndex, weight) ->
+                    writeLine(writer, current, previous, fIndex, weight));
         }
-        return all;
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadAllAverageFeatures() {
-        PriorityQueue<Triple<Integer, String, Double>> all = new PriorityQueue<>();
-        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator(); iter.hasNext(); ) {
-            Pair<Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue1().getAverageWeightsIterator(), r.getValue0(), all, -1);
+    /**
+     * Write all the averaged node weights, in the order of the model instead of sorted.
+     */
+    public void writeAllAverageFeatures(File outputFile) throws IOException {
+        try (BufferedWriter writer = newWriter(outputFile)) {
+            visitNodeWeights(true, (current, previous, fIndex, weight) ->
+                    writeLine(writer, current, previous, fIndex, weight));
         }
-        return all;
     }
 
-    public PriorityQueue<Triple<Integer, String, Double>> loadAllFinalFeatures() {
-        PriorityQueue<Triple<Integer, String, Double>> all = new PriorityQueue<>();
-        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator(); iter.hasNext(); ) {
-            Pair<Integer, AveragedWeightVector> r = iter.next();
-            loadFeatures(r.getValue1().getWeightsIterator(), r.getValue0(), all, -1);
+    /**
+     * Write all the final node weights, in the order of the model instead of sorted.
+     */
+    public void writeAllFinalFeatures(File outputFile) throws IOException {
+        try (BufferedWriter writer = newWriter(outputFile)) {
+            visitNodeWeights(false, (current, previous, fIndex, weight) ->
+                    writeLine(writer, current, previous, fIndex, weight));
         }
-        return all;
     }
 
-    private void loadFeatures(TIntDoubleIterator weightIter,
-                              int classIndex, PriorityQueue<Triple<Integer, String, Double>> features, int k) {
-        for (; weightIter.hasNext(); ) {
-            weightIter.advance();
-            int fIndex = weightIter.key();
-            double weight = weightIter.value();
-            if (featureAlphabet.getMappedFeatureCounters(fIndex) != null) {
-                features.add(Triple.of(fIndex, classAlphabet.getClassName(classIndex) + "_" + featureAlphabet
-                        .getMappedFeatureCounters(fIndex), weight));
-            }
-            if (k > 0 && features.size() > k) {
-                features.poll();
+    private void writeTopK(File outputFile, TopKWeights topK) throws IOException {
+        topK.sortDescending();
+        try (BufferedWriter writer = newWriter(outputFile)) {
+            for (int pos = 0; pos < topK.size; pos++) {
+                writeLine(writer, topK.currentKeys[pos], topK.previousKeys[pos], topK.featureIndices[pos],
+                        topK.weights[pos]);
             }
         }
     }
 
-    private void loadFeatures(TIntDoubleIterator weightIter, int nextClassIndex, int previousClassIndex,
-                              PriorityQueue<Triple<Integer, String, Double>> features, int k) {
-        for (; weightIter.hasNext();) {
-            weightIter.advance();
-            int fIndex = weightIter.key();
-            double weight = weightIter.value();
-            if (weight != 0) {
-                if (featureAlphabet.getMappedFeatureCounters(fIndex) != null) {
-                    features.add(Triple.of(fIndex, classAlphabet.getClassName(previousClassIndex) + "->" +
-                            classAlphabet.getClassName(nextClassIndex) + "_" +
-                            featureAlphabet.getMappedFeatureCounters(fIndex), weight));
+    private BufferedWriter newWriter(File outputFile) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8);
+        writer.write(header);
+        writer.newLine();
+        return writer;
+    }
+
+    private void writeLine(BufferedWriter writer, int currentKey, int previousKey, int fIndex, double weight)
+            throws IOException {
+        writer.write(String.format("%d\t%s\t%.8f", fIndex, featureName(currentKey, previousKey, fIndex), weight));
+        writer.newLine();
+    }
+
+    private String featureName(int currentKey, int previousKey, int fIndex) {
+        String className = previousKey < 0 ? classAlphabet.getClassName(currentKey) :
+                classAlphabet.getClassName(previousKey) + "->" + classAlphabet.getClassName(currentKey);
+        return className + "_" + featureAlphabet.getMappedFeatureCounters(fIndex);
+    }
+
+    /**
+     * Keep the k largest weights in a min heap of primitive entries. Equal weights rank the smaller feature index
+     * higher.
+     */
+    private static class TopKWeights {
+        private final int k;
+
+        private final int[] currentKeys;
+        private final int[] previousKeys;
+        private final int[] featureIndices;
+        private final double[] weights;
+
+        private int size;
+
+        TopKWeights(int k) {
+            this.k = k;
+            currentKeys = new int[k];
+            previousKeys = new int[k];
+            featureIndices = new int[k];
+            weights = new double[k];
+        }
+
+        void offer(int currentKey, int previousKey, int featureIndex, double weight) {
+            if (size < k) {
+                set(size, currentKey, previousKey, featureIndex, weight);
+                siftUp(size++);
+            } else if (k > 0 && ranksBelow(weights[0], featureIndices[0], weight, featureIndex)) {
+                // Replace the smallest one.
+                set(0, currentKey, previousKey, featureIndex, weight);
+                siftDown(0, size);
+            }
+        }
+
+        private static boolean ranksBelow(double weight1, int featureIndex1, double weight2, int featureIndex2) {
+            return weight1 < weight2 || (weight1 == weight2 && featureIndex1 > featureIndex2);
+        }
+
+        private boolean ranksBelow(int pos1, int pos2) {
+            return ranksBelow(weights[pos1], featureIndices[pos1], weights[pos2], featureIndices[pos2]);
+        }
+
+        private void siftUp(int pos) {
+            while (pos > 0) {
+                int parent = (pos - 1) / 2;
+                if (!ranksBelow(pos, parent)) {
+                    return;
                 }
-                if (k > 0 && features.size() > k) {
-                    features.poll();
+                swap(pos, parent);
+                pos = parent;
+            }
+        }
+
+        private void siftDown(int pos, int heapSize) {
+            while (true) {
+                int smallest = pos;
+                int left = 2 * pos + 1;
+                int right = left + 1;
+                if (left < heapSize && ranksBelow(left, smallest)) {
+                    smallest = left;
                 }
+                if (right < heapSize && ranksBelow(right, smallest)) {
+                    smallest = right;
+                }
+                if (smallest == pos) {
+                    return;
+                }
+                swap(pos, smallest);
+                pos = smallest;
+            }
+        }
+
+        /**
+         * Heap sort in place, moving the smallest to the end each time, so the entries end up in descending order.
+         */
+        void sortDescending() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
             }
         }
+
+        private void set(int pos, int currentKey, int previousKey, int featureIndex, double weight) {
+            currentKeys[pos] = currentKey;
+            previousKeys[pos] = previousKey;
+            featureIndices[pos] = featureIndex;
+            weights[pos] = weight;
+        }
+
+        private void swap(int i, int j) {
+            int currentKey = currentKeys[i];
+            int previousKey = previousKeys[i];
+            int featureIndex = featureIndices[i];
+            double weight = weights[i];
+            set(i, currentKeys[j], previousKeys[j], featureIndices[j], weights[j]);
+            set(j, currentKey, previousKey, featureIndex, weight);
+        }
     }
 
+    /**
+     * @deprecated Use {@link #writeTopKAverageStateFeatures(File, int)}, which only resolves the names of the top k.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadTopKAverageStateFeatures(int k) {
+        return toQueue(collectTopKStateFeatures(k));
+    }
 
-    private class ReverseFeatureComparator implements Comparator<Triple<Integer, String, Double>> {
-        @Override
-        public int compare(Triple<Integer, String, Double> f1, Triple<Integer, String, Double> f2) {
-            if (f1.getRight() > f2.getRight()) {
-                return 1;
-            } else if (f2.getRight() > f1.getRight()) {
-                return -1;
-            } else {
-                return f2.getLeft() - f1.getLeft();
-            }
+    /**
+     * @deprecated Use {@link #writeTopKAverageFeatures(File, int)}, which only resolves the names of the top k.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadTopKAverageFeatures(int k) {
+        return toQueue(collectTopKFeatures(true, k));
+    }
+
+    /**
+     * @deprecated Use {@link #writeTopKFinalFeatures(File, int)}, which only resolves the names of the top k.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadTopKFinalFeatures(int k) {
+        return toQueue(collectTopKFeatures(false, k));
+    }
+
+    /**
+     * @deprecated Use {@link #writeAllAverageStateFeatures(File)}, which does not hold all the weights in memory.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadAllAverageStateFeatures() {
+        PriorityQueue<Triple<Integer, String, Double>> all = new PriorityQueue<>();
+        try {
+            visitEdgeAverageWeights((current, previous, fIndex, weight) ->
+                    all.add(Triple.of(fIndex, featureName(current, previous, fIndex), weight)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return all;
+    }
+
+    /**
+     * @deprecated Use {@link #writeAllAverageFeatures(File)}, which does not hold all the weights in memory.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadAllAverageFeatures() {
+        return loadAllFeatures(true);
     }
 
+    /**
+     * @deprecated Use {@link #writeAllFinalFeatures(File)}, which does not hold all the weights in memory.
+     */
+    @Deprecated
+    public PriorityQueue<Triple<Integer, String, Double>> loadAllFinalFeatures() {
+        return loadAllFeatures(false);
+    }
+
+    private PriorityQueue<Triple<Integer, String, Double>> loadAllFeatures(boolean average) {
+        PriorityQueue<Triple<Integer, String, Double>> all = new PriorityQueue<>();
+        try {
+            visitNodeWeights(average, (current, previous, fIndex, weight) ->
+                    all.add(Triple.of(fIndex, featureName(current, previous, fIndex), weight)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return all;
+    }
+
+    /**
+     * The queue polls the smallest weight first, and the larger feature index first among equal weights.
+     */
+    private PriorityQueue<Triple<Integer, String, Double>> toQueue(TopKWeights topK) {
+        PriorityQueue<Triple<Integer, String, Double>> queue = new PriorityQueue<>(Math.max(topK.size, 1),
+                Comparator.<Triple<Integer, String, Double>>comparingDouble(Triple::getRight)
+                        .thenComparing(Triple::getLeft, Comparator.reverseOrder()));
+        for (int pos = 0; pos < topK.size; pos++) {
+            queue.add(Triple.of(topK.featureIndices[pos],
+                    featureName(topK.currentKeys[pos], topK.previousKeys[pos], topK.featureIndices[pos]),
+                    topK.weights[pos]));
+        }
+        return queue;
+    }
+
+    /**
+     * @deprecated Use the write methods, which stream the weights to the file.
+     */
+    @Deprecated
     public PriorityQueue<Triple<Integer, String, Double>> writeInspects(
             File outputFile, PriorityQueue<Triple<Integer, String, Double>> features) throws IOException {
         PriorityQueue<Triple<Integer, String, Double>> recreated = new PriorityQueue<>();
@@ -171,12 +386,9 @@ public class HashedFeatureInspector {
         while (!features.isEmpty()) {
             Triple<Integer, String, Double> feature = features.poll();
             recreated.add(feature);
-//            if (feature.getRight() > 0) {
-            lines.addFirst(String.format("%d\t%s\t%.8f",
-                    feature.getLeft(), feature.getMiddle(), feature.getRight()));
-//            }
+            lines.addFirst(String.format("%d\t%s\t%.8f", feature.getLeft(), feature.getMiddle(), feature.getRight()));
         }
-        lines.addFirst("Feature Id\tFeature Name\tFeature Weight");
+        lines.addFirst(header);
         FileUtils.writeLines(outputFile, lines);
 
         return recreated;
@@ -185,22 +397,18 @@ public class HashedFeatureInspector {
     public static void main(String[] args) throws IOException {
         String modelFile = args[0];
         String outputDirectory = args[1];
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 100;
 
         GraphWeightVector crfModel = SerializationUtils.deserialize(new FileInputStream(new File(modelFile)));
 
         HashedFeatureInspector inspector = new HashedFeatureInspector(crfModel);
 
-        inspector.writeInspects(new File(outputDirectory, "top100Aver"), inspector.loadTopKAverageFeatures(100));
-        inspector.writeInspects(new File(outputDirectory, "top100Final"), inspector.loadTopKFinalFeatures(100));
-        inspector.writeInspects(new File(outputDirectory, "top100AverState"), inspector.loadTopKAverageStateFeatures
-                (100));
-
-        PriorityQueue<Triple<Integer, String, Double>> allAverage = inspector.loadAllAverageFeatures();
-        PriorityQueue<Triple<Integer, String, Double>> allFinal = inspector.loadAllFinalFeatures();
-
-        inspector.writeInspects(new File(outputDirectory, "allAver"), allAverage);
-        inspector.writeInspects(new File(outputDirectory, "allFinal"), allFinal);
-        inspector.writeInspects(new File(outputDirectory, "allAverState"), inspector.loadAllAverageStateFeatures());
+        inspector.writeTopKAverageFeatures(new File(outputDirectory, "top" + k + "Aver"), k);
+        inspector.writeTopKFinalFeatures(new File(outputDirectory, "top" + k + "Final"), k);
+        inspector.writeTopKAverageStateFeatures(new File(outputDirectory, "top" + k + "AverState"), k);
 
+        inspector.writeAllAverageFeatures(new File(outputDirectory, "allAver"));
+        inspector.writeAllFinalFeatures(new File(outputDirectory, "allFinal"));
+        inspector.writeAllAverageStateFeatures(new File(outputDirectory, "allAverState"));
     }
 }
@@ -0,0 +1,149 @@
+package edu.cmu.cs.lti.learning.debug;
+
+import edu.cmu.cs.lti.learning.model.FrozenGraphWeightVector;
+import edu.cmu.cs.lti.learning.model.FrozenWeightVector;
+import edu.cmu.cs.lti.learning.model.WeightPrecision;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Report the effect of storing a model in lower precisions. For each precision, it reports the storage size and the
+ * largest node weight error. It then scores synthetic instances, each a random sample of the node features of the
+ * model with value 1, and reports the node score differences and the best class agreement, i.e. how often the best
+ * scoring class stays the same as the one of the double precision model. The agreement is not an accuracy delta, it
+ * uses neither gold labels nor edge weights.
+ * <p>
+ * The model must be stored in double precision, since it is the reference of the comparison. Converting an already
+ * quantized model back to double would report no loss at all.
+ * <p>
+ * Usage: QuantizationReport [binary model file] [number of instances] [features per instance]
+ *
+ * @author Zhengzhong Liu
+ */
+public class QuantizationReport {
+    private static final Logger logger = LoggerFactory.getLogger(QuantizationReport.class);
+
+    private final FrozenGraphWeightVector model;
+
+    private final int numClasses;
+
+    // Feature indices of each random instance.
+    private final int[][] instances;
+
+    public QuantizationReport(FrozenGraphWeightVector model, int numInstances, int featuresPerInstance) {
+        this.model = model;
+        this.numClasses = model.getClassAlphabet().size();
+
+        TIntHashSet featureSet = new TIntHashSet();
+        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+            FrozenWeightVector weights = model.getNodeWeights(classIndex);
+            if (weights != null) {
+                if (weights.getPrecision() != WeightPrecision.DOUBLE) {
+                    throw new IllegalArgumentException(String.format("The reference model must be stored in " +
+                            "%s precision, but the weights of class %d are in %s.", WeightPrecision.DOUBLE,
+                            classIndex, weights.getPrecision()));
+                }
+                for (int pos = 0; pos < weights.getFeatureSize(); pos++) {
+                    featureSet.add(weights.indexAt(pos));
+                }
+            }
+        }
+        int[] features = featureSet.toArray();
+
+        Random random = new Random(17);
+        instances = new int[numInstances][];
+        for (int i = 0; i < numInstances; i++) {
+            TIntArrayList instance = new TIntArrayList();
+            for (int j = 0; j < featuresPerInstance && features.length > 0; j++) {
+                instance.add(features[random.nextInt(features.length)]);
+            }
+            instances[i] = instance.toArray();
+        }
+        logger.info(String.format("%d instances sampled from %d node features.", numInstances, features.length));
+    }
+
+    private double score(FrozenGraphWeightVector weights, int[] instance, int classIndex) {
+        FrozenWeightVector nodeWeights = weights.getNodeWeights(classIndex);
+        if (nodeWeights == null) {
+            return 0;
+        }
+        double score = 0;
+        for (int featureIndex : instance) {
+            score += nodeWeights.getWeightAt(featureIndex);
+        }
+        return score;
+    }
+
+    private double maxWeightError(FrozenGraphWeightVector lower) {
+        double maxError = 0;
+        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+            FrozenWeightVector weights = model.getNodeWeights(classIndex);
+            if (weights != null) {
+                FrozenWeightVector lowerWeights = lower.getNodeWeights(classIndex);
+                for (int pos = 0; pos < weights.getFeatureSize(); pos++) {
+                    int featureIndex = weights.indexAt(pos);
+                    maxError = Math.max(maxError,
+                            Math.abs(weights.getWeightAt(featureIndex) - lowerWeights.getWeightAt(featureIndex)));
+                }
+            }
+        }
+        return maxError;
+    }
+
+    public void report(WeightPrecision precision) {
+        FrozenGraphWeightVector lower = model.withPrecision(precision);
+
+        double sumDelta = 0;
+        double maxDelta = 0;
+        int numScores = 0;
+        int agreed = 0;
+        for (int[] instance : instances) {
+            int best = -1;
+            int lowerBest = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            double lowerBestScore = Double.NEGATIVE_INFINITY;
+            for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                double score = score(model, instance, classIndex);
+                double lowerScore = score(lower, instance, classIndex);
+                double delta = Math.abs(score - lowerScore);
+                sumDelta += delta;
+                maxDelta = Math.max(maxDelta, delta);
+                numScores++;
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = classIndex;
+                }
+                if (lowerScore > lowerBestScore) {
+                    lowerBestScore = lowerScore;
+                    lowerBest = classIndex;
+                }
+            }
+            if (best == lowerBest) {
+                agreed++;
+            }
+        }
+
+        logger.info(String.format("%s: %d bytes (%.2f of double), max weight error %.3g, score delta mean %.3g max " +
+                        "%.3g, best class agreement %.4f", precision, lower.getStorageBytes(),
+                (double) lower.getStorageBytes() / model.getStorageBytes(), maxWeightError(lower),
+                numScores == 0 ? 0 : sumDelta / numScores, maxDelta,
+                instances.length == 0 ? 1 : (double) agreed / instances.length));
+    }
+
+    public static void main(String[] args) throws IOException {
+        FrozenGraphWeightVector model = FrozenGraphWeightVector.readBinary(new File(args[0]));
+        int numInstances = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int featuresPerInstance = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        QuantizationReport report = new QuantizationReport(model, numInstances, featuresPerInstance);
+        for (WeightPrecision precision : WeightPrecision.values()) {
+            report.report(precision);
+        }
+    }
+}
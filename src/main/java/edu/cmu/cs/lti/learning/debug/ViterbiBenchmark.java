@@ -0,0 +1,210 @@
+package edu.cmu.cs.lti.learning.debug;
+
+import edu.cmu.cs.lti.learning.model.ClassAlphabet;
+import edu.cmu.cs.lti.learning.model.SequenceSolution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Measure the decoding speed of SequenceSolution on random scores. It compares the cell based decoding, the
+ * primitive k-best decoding and the 1-best decoding, and checks that the 1-best decoding gives the same solutions as
+ * the top solutions of the k-best decoding. It also reports the speed and the agreement of the beam pruned 1-best
+ * decoding.
+ * <p>
+ * Usage: ViterbiBenchmark [number of sequences] [sequence length] [number of classes] [beam width]
+ *
+ * @author Zhengzhong Liu
+ */
+public class ViterbiBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(ViterbiBenchmark.class);
+
+    private static final int kBest = 5;
+
+    private final ClassAlphabet classAlphabet;
+
+    private final int sequenceLength;
+
+    // Node scores for each sequence, position and class, the last position is the special end position.
+    private final double[][][] nodeScores;
+
+    private final double[][] edgeScores;
+
+    public ViterbiBenchmark(int numSequences, int sequenceLength, int numClasses) {
+        this.sequenceLength = sequenceLength;
+        classAlphabet = new ClassAlphabet(new String[0], false, true);
+        for (int i = 0; i < numClasses; i++) {
+            classAlphabet.addClass("class" + i);
+        }
+
+        int alphabetSize = classAlphabet.size();
+        Random random = new Random(17);
+        nodeScores = new double[numSequences][sequenceLength + 1][alphabetSize];
+        for (double[][] sequence : nodeScores) {
+            for (double[] position : sequence) {
+                for (int c = 0; c < alphabetSize; c++) {
+                    position[c] = random.nextGaussian();
+                }
+            }
+        }
+        edgeScores = new double[alphabetSize][alphabetSize];
+        for (double[] row : edgeScores) {
+            for (int c = 0; c < alphabetSize; c++) {
+                row[c] = random.nextGaussian();
+            }
+        }
+    }
+
+    private void decodeWithCells(SequenceSolution solution, double[][] sequenceScores) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            solution.getCurrentPossibleClassIndices().forEach(classIndex ->
+                    solution.getPreviousPossibleClassIndices().forEach(prevClass -> {
+                        for (SequenceSolution.LatticeCell cell : solution.getPreviousBests(prevClass)) {
+                            solution.scoreNewEdge(classIndex, cell, edgeScores[prevClass][classIndex],
+                                    sequenceScores[position][classIndex]);
+                        }
+                    }));
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    private void decodeKBest(SequenceSolution solution, double[][] sequenceScores) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            for (int classIndex : solution.getCurrentPossibleClassIndices().toArray()) {
+                for (int prevClass : solution.getPreviousPossibleClassIndices().toArray()) {
+                    int numPreviousBests = solution.getNumPreviousBests(prevClass);
+                    for (int rank = 0; rank < numPreviousBests; rank++) {
+                        solution.scoreNewEdge(classIndex, prevClass, rank, edgeScores[prevClass][classIndex],
+                                sequenceScores[position][classIndex]);
+                    }
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    private void decodeOneBest(SequenceSolution solution, double[][] sequenceScores) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            for (int classIndex : solution.getCurrentPossibleClassIndices().toArray()) {
+                for (int prevClass : solution.getPreviousPossibleClassIndices().toArray()) {
+                    solution.scoreNewEdge(classIndex, prevClass, edgeScores[prevClass][classIndex],
+                            sequenceScores[position][classIndex]);
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    private double runCells(int bestK) {
+        long start = System.nanoTime();
+        for (double[][] sequenceScores : nodeScores) {
+            decodeWithCells(new SequenceSolution(classAlphabet, sequenceLength, bestK), sequenceScores);
+        }
+        return nodeScores.length / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private double runKBest(int bestK) {
+        long start = System.nanoTime();
+        SequenceSolution solution = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+        for (double[][] sequenceScores : nodeScores) {
+            solution.reset(sequenceLength);
+            decodeKBest(solution, sequenceScores);
+        }
+        return nodeScores.length / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private double runOneBest() {
+        return runOneBest(Integer.MAX_VALUE);
+    }
+
+    private double runOneBest(int beamWidth) {
+        long start = System.nanoTime();
+        SequenceSolution solution = new SequenceSolution(classAlphabet, sequenceLength);
+        if (beamWidth != Integer.MAX_VALUE) {
+            solution.setPruning(beamWidth, Double.POSITIVE_INFINITY);
+        }
+        for (double[][] sequenceScores : nodeScores) {
+            solution.reset(sequenceLength);
+            decodeOneBest(solution, sequenceScores);
+        }
+        return nodeScores.length / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Decode with a beam, and report the pruned cells and the agreement with the exact decoding.
+     */
+    private void reportBeam(int beamWidth) {
+        long prunedCells = 0;
+        long survivedCells = 0;
+        int differences = 0;
+        for (double[][] sequenceScores : nodeScores) {
+            SequenceSolution exact = new SequenceSolution(classAlphabet, sequenceLength);
+            decodeOneBest(exact, sequenceScores);
+            SequenceSolution pruned = new SequenceSolution(classAlphabet, sequenceLength);
+            pruned.setPruning(beamWidth, Double.POSITIVE_INFINITY);
+            decodeOneBest(pruned, sequenceScores);
+            prunedCells += pruned.getNumPrunedCells();
+            survivedCells += pruned.getNumSurvivedCells();
+            if (!exact.equals(pruned)) {
+                differences++;
+            }
+        }
+        logger.info(String.format("Beam %d: pruned %d of %d cells, differ from exact decoding on %d of %d " +
+                "sequences.", beamWidth, prunedCells, prunedCells + survivedCells, differences, nodeScores.length));
+    }
+
+    /**
+     * Check that the 1-best decoding agrees with the top solution of the generic k-best decoding.
+     *
+     * @return Number of sequences that the two decoding disagree.
+     */
+    private int countDifferences() {
+        int differences = 0;
+        for (double[][] sequenceScores : nodeScores) {
+            SequenceSolution oneBest = new SequenceSolution(classAlphabet, sequenceLength);
+            decodeOneBest(oneBest, sequenceScores);
+            SequenceSolution kBestSolution = new SequenceSolution(classAlphabet, sequenceLength, kBest);
+            decodeKBest(kBestSolution, sequenceScores);
+            for (int i = 0; i < sequenceLength; i++) {
+                if (oneBest.getClassAt(i) != kBestSolution.getClassAt(i)) {
+                    differences++;
+                    break;
+                }
+            }
+        }
+        return differences;
+    }
+
+    public static void main(String[] args) {
+        int numSequences = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int sequenceLength = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int numClasses = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        int beamWidth = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        ViterbiBenchmark benchmark = new ViterbiBenchmark(numSequences, sequenceLength, numClasses);
+
+        logger.info(String.format("1-best and %d-best top solutions differ on %d of %d sequences.", kBest,
+                benchmark.countDifferences(), numSequences));
+
+        // Warm up so that all paths are compiled before measuring.
+        benchmark.runCells(1);
+        benchmark.runKBest(kBest);
+        benchmark.runOneBest();
+        benchmark.runOneBest(beamWidth);
+
+        logger.info(String.format("Cell based 1-best: %.0f sequences/s", benchmark.runCells(1)));
+        logger.info(String.format("Primitive %d-best: %.0f sequences/s", kBest, benchmark.runKBest(kBest)));
+        logger.info(String.format("Primitive 1-best: %.0f sequences/s", benchmark.runOneBest()));
+
+        benchmark.reportBeam(beamWidth);
+        logger.info(String.format("Primitive 1-best with beam %d: %.0f sequences/s", beamWidth,
+                benchmark.runOneBest(beamWidth)));
+    }
+}
@@ -0,0 +1,243 @@
+package edu.cmu.cs.lti.learning.model;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An averaged weight vector backed by primitive arrays spanning the whole feature space, which is only sensible for
+ * alphabets with a fixed size, such as the {@link HashAlphabet}. Weight lookup is a direct array read.
+ * <p>
+ * Averaging is always done lazily: the update time of each feature is recorded, and the sums are only settled when
+ * the feature is updated again, otherwise the average update would need to walk the full array.
+ *
+ * @author Zhengzhong Liu
+ */
+public class ArrayBasedAveragedWeightVector extends AveragedWeightVector {
+    private static final long serialVersionUID = -2405379233981735526L;
+
+    // Individual update count of this vector.
+    private int averageUpdateCount;
+
+    private final double[] weights;
+
+    // Holds sum of weights, unless "consolidated".
+    private final double[] averagedWeights;
+
+    // The average update count at which the sum of each feature was last settled.
+    private final int[] lastUpdateTimes;
+
+    private boolean consolidated;
+
+    public ArrayBasedAveragedWeightVector(int featureDimension) {
+        this(featureDimension, 0);
+    }
+
+    public ArrayBasedAveragedWeightVector(int featureDimension, int initialAverageUpdateCount) {
+        weights = new double[featureDimension];
+        averagedWeights = new double[featureDimension];
+        lastUpdateTimes = new int[featureDimension];
+        consolidated = false;
+        averageUpdateCount = initialAverageUpdateCount;
+    }
+
+    @Override
+    public void updateWeightsBy(FeatureVector fv, double multiplier) {
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            int index = iter.featureIndex();
+            settle(index);
+            weights[index] += iter.featureValue() * multiplier;
+        }
+    }
+
+    @Override
+    public void updateAverageWeight() {
+        averageUpdateCount++;
+    }
+
+    private void settle(int index) {
+        int missedUpdates = averageUpdateCount - lastUpdateTimes[index];
+        if (missedUpdates != 0) {
+            averagedWeights[index] += weights[index] * missedUpdates;
+            lastUpdateTimes[index] = averageUpdateCount;
+        }
+    }
+
+    private void settleAll() {
+        for (int i = 0; i < weights.length; i++) {
+            settle(i);
+        }
+    }
+
+    @Override
+    void consolidate() {
+        if (!consolidated) {
+            settleAll();
+            if (averageUpdateCount != 0) {
+                for (int i = 0; i < averagedWeights.length; i++) {
+                    // Turn sum of weights to average of weights.
+                    averagedWeights[i] /= averageUpdateCount;
+                }
+            }
+            consolidated = true;
+        }
+    }
+
+    @Override
+    void deconsolidate() {
+        if (consolidated) {
+            if (averageUpdateCount != 0) {
+                for (int i = 0; i < averagedWeights.length; i++) {
+                    // Turn average weights back to sum of weights.
+                    averagedWeights[i] *= averageUpdateCount;
+                }
+            }
+            consolidated = false;
+        }
+    }
+
+    @Override
+    void loadWeight(int i, double weight, double averageSum) {
+        weights[i] = weight;
+        averagedWeights[i] = averageSum;
+        lastUpdateTimes[i] = averageUpdateCount;
+    }
+
+    @Override
+    void visitWeights(WeightVisitor visitor) {
+        for (int i = 0; i < weights.length; i++) {
+            double averageSum = getAverageWeightAt(i);
+            if (consolidated && averageUpdateCount != 0) {
+                averageSum *= averageUpdateCount;
+            }
+            if (weights[i] != 0 || averageSum != 0) {
+                visitor.visit(i, weights[i], averageSum);
+            }
+        }
+    }
+
+    @Override
+    AveragedWeightVector emptyCopy() {
+        return new ArrayBasedAveragedWeightVector(weights.length, averageUpdateCount);
+    }
+
+    @Override
+    public double getWeightAt(int i) {
+        return weights[i];
+    }
+
+    @Override
+    public double getAverageWeightAt(int i) {
+        return averagedWeights[i] + weights[i] * (averageUpdateCount - lastUpdateTimes[i]);
+    }
+
+    @Override
+    public double dotProd(FeatureVector fv) {
+        double sum = 0;
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            sum += weights[iter.featureIndex()] * iter.featureValue();
+        }
+        return sum;
+    }
+
+    @Override
+    public double dotProdAver(FeatureVector fv) {
+        double sum = 0;
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            sum += getAverageWeightAt(iter.featureIndex()) * iter.featureValue();
+        }
+        return sum;
+    }
+
+    /**
+     * @return Number of non-zero weights.
+     */
+    @Override
+    public int getFeatureSize() {
+        int size = 0;
+        for (double weight : weights) {
+            if (weight != 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public TIntDoubleIterator getWeightsIterator() {
+        return new NonZeroIterator(weights);
+    }
+
+    @Override
+    public TIntDoubleIterator getAverageWeightsIterator() {
+        settleAll();
+        return new NonZeroIterator(averagedWeights);
+    }
+
+    public int getFeatureDimension() {
+        return weights.length;
+    }
+
+    /**
+     * Iterate the non-zero entries of an array, in index order.
+     */
+    private static class NonZeroIterator implements TIntDoubleIterator {
+        private final double[] values;
+
+        private int current = -1;
+
+        private int next;
+
+        NonZeroIterator(double[] values) {
+            this.values = values;
+            next = findNext(0);
+        }
+
+        private int findNext(int from) {
+            int i = from;
+            while (i < values.length && values[i] == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int key() {
+            return current;
+        }
+
+        @Override
+        public double value() {
+            return values[current];
+        }
+
+        @Override
+        public double setValue(double val) {
+            double old = values[current];
+            values[current] = val;
+            return old;
+        }
+
+        @Override
+        public void advance() {
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = findNext(current + 1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public void remove() {
+            values[current] = 0;
+        }
+    }
+}
@@ -23,10 +23,18 @@ public abstract class AveragedWeightVector implements Serializable {
 
     public abstract void updateAverageWeight();
 
+    /**
+     * Write the consolidated weights. The weights are copied first and the copy is consolidated, so this vector is
+     * not changed.
+     *
+     * @param outputFile The file to write to.
+     * @throws FileNotFoundException
+     */
     public void write(File outputFile) throws FileNotFoundException {
-        consolidate();
-        SerializationUtils.serialize(this, new FileOutputStream(outputFile));
-        deconsolidate();
+        AveragedWeightVector snapshot = emptyCopy();
+        visitWeights(snapshot::loadWeight);
+        snapshot.consolidate();
+        SerializationUtils.serialize(snapshot, new FileOutputStream(outputFile));
     }
 
     public double dotProd(FeatureVector fv) {
@@ -101,6 +109,38 @@ public abstract class AveragedWeightVector implements Serializable {
 
     abstract void deconsolidate();
 
+    /**
+     * Restore the weight of one feature, with the sum of its weights settled up to the current average update count.
+     * Used when loading a model, before any update.
+     *
+     * @param i          The feature index.
+     * @param weight     The weight.
+     * @param averageSum The sum of the weights over the average updates.
+     */
+    abstract void loadWeight(int i, double weight, double averageSum);
+
+    /**
+     * Receive the weight of one feature, see {@link #visitWeights(WeightVisitor)}.
+     */
+    interface WeightVisitor {
+        void visit(int i, double weight, double averageSum);
+    }
+
+    /**
+     * Visit the features with non-zero weights or sums, with the sums of the weights settled up to the current
+     * average update count, in the form taken by {@link #loadWeight(int, double, double)}. Unlike consolidation,
+     * nothing is changed, not even the settlement of the lazy sums.
+     *
+     * @param visitor The visitor.
+     */
+    abstract void visitWeights(WeightVisitor visitor);
+
+    /**
+     * @return An empty vector of the same kind, at the current average update count. Vectors sharing an average
+     * clock get a clock of their own.
+     */
+    abstract AveragedWeightVector emptyCopy();
+
     public abstract double getWeightAt(int i);
 
     public abstract double getAverageWeightAt(int i);
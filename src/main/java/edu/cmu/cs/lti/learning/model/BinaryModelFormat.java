@@ -0,0 +1,387 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The binary model format of {@link GraphWeightVector}. All numbers are little endian. The file starts with a
+ * header:
+ * <pre>
+ * int    magic, version, header length (bytes after this field)
+ * int    flags (1: lazy average, 2: dense node weights, 4: concurrent, 8: averaged only), average update count
+ * string feature spec
+ * class alphabet: byte with outside class, int number of classes, class names in index order
+ * feature alphabet: byte type, then int alphabet bits (HASH) or Java serialized bytes (SERIALIZED)
+ * int    number of blocks
+ * byte   precision of the averaged weights (since version 2, DOUBLE before)
+ * </pre>
+ * Then one block for each node and edge weight vector:
+ * <pre>
+ * int      current key, previous key (-1 for node weights), averaged size, weight size
+ * int[]    averaged weight indices, sorted
+ * double   quantization scale, only for quantized precisions
+ * values   averaged weights (averages, not sums) in the precision
+ * int[]    weight indices, sorted
+ * double[] weights
+ * </pre>
+ * Strings are written as an int byte length followed by UTF-8 bytes. The payload of a block is memory mapped when
+ * reading, so the sorted averaged weights can be read in place. Averaged only files are exported from inference
+ * models, they have no raw weights and cannot be used to resume training.
+ *
+ * @author Zhengzhong Liu
+ */
+class BinaryModelFormat {
+    static final int magic = 0x5A4C4757;
+
+    static final int version = 2;
+
+    static final int lazyAverageFlag = 1;
+    static final int denseNodeWeightsFlag = 2;
+    static final int concurrentFlag = 4;
+    static final int averagedOnlyFlag = 8;
+
+    static final byte hashAlphabetType = 0;
+    static final byte serializedAlphabetType = 1;
+
+    private static final int blockHeaderSize = 16;
+
+    private BinaryModelFormat() {
+    }
+
+    /**
+     * The sparse content of a weight vector.
+     */
+    static class VectorBlock {
+        final int currentKey;
+
+        // -1 for node weights.
+        final int previousKey;
+
+        final FrozenWeightVector averaged;
+        final IntBuffer weightIndices;
+        final DoubleBuffer weights;
+
+        VectorBlock(int currentKey, int previousKey, FrozenWeightVector averaged, IntBuffer weightIndices,
+                    DoubleBuffer weights) {
+            this.currentKey = currentKey;
+            this.previousKey = previousKey;
+            this.averaged = averaged;
+            this.weightIndices = weightIndices;
+            this.weights = weights;
+        }
+
+        boolean isNode() {
+            return previousKey < 0;
+        }
+    }
+
+    static class Header {
+        int flags;
+        int averageUpdateCount;
+        String featureSpec;
+        ClassAlphabet classAlphabet;
+        FeatureAlphabet featureAlphabet;
+        int numBlocks;
+        WeightPrecision precision = WeightPrecision.DOUBLE;
+    }
+
+    static class Writer implements Closeable {
+        private final WritableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(File outputFile) throws IOException {
+            this(FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING));
+        }
+
+        /**
+         * @param channel The channel to write to, closed with the writer.
+         */
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeHeader(Header header) throws IOException {
+            ByteBuffer content = ByteBuffer.wrap(headerBytes(header)).order(ByteOrder.LITTLE_ENDIAN);
+            ensure(12);
+            buffer.putInt(magic);
+            buffer.putInt(version);
+            buffer.putInt(content.remaining());
+            flush();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+
+        private byte[] headerBytes(Header header) {
+            byte[] spec = header.featureSpec.getBytes(StandardCharsets.UTF_8);
+            ClassAlphabet classAlphabet = header.classAlphabet;
+            byte[][] classNames = new byte[classAlphabet.size()][];
+            int size = 4 + 4 + 4 + spec.length + 1 + 4 + 1 + 4 + 4 + 1;
+            for (int i = 0; i < classNames.length; i++) {
+                classNames[i] = classAlphabet.getClassName(i).getBytes(StandardCharsets.UTF_8);
+                size += 4 + classNames[i].length;
+            }
+
+            byte[] serializedAlphabet = null;
+            if (!isPlainHashAlphabet(header.featureAlphabet)) {
+                serializedAlphabet = SerializationUtils.serialize(header.featureAlphabet);
+                size += serializedAlphabet.length;
+            }
+
+            ByteBuffer content = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            content.putInt(header.flags);
+            content.putInt(header.averageUpdateCount);
+            content.putInt(spec.length).put(spec);
+            content.put((byte) (classAlphabet.isWithOutsideClass() ? 1 : 0));
+            content.putInt(classNames.length);
+            for (byte[] name : classNames) {
+                content.putInt(name.length).put(name);
+            }
+            if (serializedAlphabet == null) {
+                content.put(hashAlphabetType);
+                content.putInt(Integer.numberOfTrailingZeros(header.featureAlphabet.getAlphabetSize()));
+            } else {
+                content.put(serializedAlphabetType);
+                content.putInt(serializedAlphabet.length).put(serializedAlphabet);
+            }
+            content.putInt(header.numBlocks);
+            content.put(header.precision.getCode());
+            return content.array();
+        }
+
+        /**
+         * Write the weights of a training vector, only the non-zero values are written.
+         *
+         * @param indices  The feature indices, sorted.
+         * @param weights  The weights of the features.
+         * @param averages The averaged weights of the features, i.e. the averages rather than the sums.
+         * @param size     Number of features.
+         */
+        void writeVector(int currentKey, int previousKey, int[] indices, double[] weights, double[] averages,
+                         int size) throws IOException {
+            int numAveraged = countNonZeros(averages, size);
+            int numWeights = countNonZeros(weights, size);
+
+            ensure(blockHeaderSize);
+            buffer.putInt(currentKey);
+            buffer.putInt(previousKey);
+            buffer.putInt(numAveraged);
+            buffer.putInt(numWeights);
+
+            writeNonZeros(indices, averages, size);
+            writeNonZeros(indices, weights, size);
+        }
+
+        private void writeNonZeros(int[] indices, double[] values, int size) throws IOException {
+            for (int pos = 0; pos < size; pos++) {
+                if (values[pos] != 0) {
+                    ensure(4);
+                    buffer.putInt(indices[pos]);
+                }
+            }
+            for (int pos = 0; pos < size; pos++) {
+                if (values[pos] != 0) {
+                    ensure(8);
+                    buffer.putDouble(values[pos]);
+                }
+            }
+        }
+
+        private int countNonZeros(double[] values, int size) {
+            int count = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (values[pos] != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Write the weights of an inference vector, in its own precision, without raw weights.
+         */
+        void writeVector(int currentKey, int previousKey, FrozenWeightVector vector) throws IOException {
+            int size = vector.getFeatureSize();
+            ensure(blockHeaderSize);
+            buffer.putInt(currentKey);
+            buffer.putInt(previousKey);
+            buffer.putInt(size);
+            buffer.putInt(0);
+
+            for (int pos = 0; pos < size; pos++) {
+                ensure(4);
+                buffer.putInt(vector.indexAt(pos));
+            }
+            if (vector.getPrecision().isQuantized()) {
+                ensure(8);
+                buffer.putDouble(vector.getScale());
+            }
+            flush();
+            ByteBuffer values = vector.rawValues();
+            values.position(0);
+            values.limit(size * vector.getPrecision().getBytes());
+            while (values.hasRemaining()) {
+                channel.write(values);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    static boolean isPlainHashAlphabet(FeatureAlphabet featureAlphabet) {
+        return featureAlphabet.getClass() == HashAlphabet.class && !((HashAlphabet) featureAlphabet).isStoreReadable();
+    }
+
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+
+        private long position;
+
+        // Precision of the averaged weights, known after reading the header.
+        private WeightPrecision precision;
+
+        Reader(File inputFile) throws IOException {
+            channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+            position = 0;
+        }
+
+        /**
+         * Map the next region of the file.
+         */
+        private ByteBuffer map(long size) throws IOException {
+            if (position + size > channel.size()) {
+                throw new IOException("Unexpected end of model file at " + position);
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            position += size;
+            return mapped;
+        }
+
+        Header readHeader() throws IOException {
+            ByteBuffer start = map(12);
+            if (start.getInt() != magic) {
+                throw new IOException("Not a binary model file.");
+            }
+            int fileVersion = start.getInt();
+            if (fileVersion < 1 || fileVersion > version) {
+                throw new IOException(String.format("Unsupported model version %d, expected at most %d.",
+                        fileVersion, version));
+            }
+            ByteBuffer content = map(start.getInt());
+
+            Header header = new Header();
+            header.flags = content.getInt();
+            header.averageUpdateCount = content.getInt();
+            header.featureSpec = readString(content);
+
+            boolean withOutsideClass = content.get() == 1;
+            ClassAlphabet classAlphabet = new ClassAlphabet(false, withOutsideClass);
+            int numClasses = content.getInt();
+            for (int i = 0; i < numClasses; i++) {
+                classAlphabet.addClass(readString(content));
+            }
+            header.classAlphabet = classAlphabet;
+
+            byte alphabetType = content.get();
+            if (alphabetType == hashAlphabetType) {
+                header.featureAlphabet = new HashAlphabet(content.getInt(), false);
+            } else if (alphabetType == serializedAlphabetType) {
+                byte[] bytes = new byte[content.getInt()];
+                content.get(bytes);
+                header.featureAlphabet = SerializationUtils.deserialize(bytes);
+            } else {
+                throw new IOException("Unknown feature alphabet type " + alphabetType);
+            }
+
+            header.numBlocks = content.getInt();
+            if (fileVersion >= 2) {
+                byte precisionCode = content.get();
+                header.precision = WeightPrecision.fromCode(precisionCode);
+                if (header.precision == null) {
+                    throw new IOException("Unknown weight precision code " + precisionCode);
+                }
+            }
+            precision = header.precision;
+            return header;
+        }
+
+        private String readString(ByteBuffer content) {
+            byte[] bytes = new byte[content.getInt()];
+            content.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the next block, the arrays are views of the mapped file.
+         */
+        VectorBlock readBlock() throws IOException {
+            ByteBuffer blockHeader = ByteBuffer.allocate(blockHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+            while (blockHeader.hasRemaining()) {
+                if (channel.read(blockHeader, position + blockHeader.position()) < 0) {
+                    throw new IOException("Unexpected end of model file at " + position);
+                }
+            }
+            blockHeader.flip();
+            position += blockHeaderSize;
+
+            int currentKey = blockHeader.getInt();
+            int previousKey = blockHeader.getInt();
+            int numAveraged = blockHeader.getInt();
+            int numWeights = blockHeader.getInt();
+
+            int scaleBytes = precision.isQuantized() ? 8 : 0;
+            ByteBuffer payload = map((4L + precision.getBytes()) * numAveraged + scaleBytes + 12L * numWeights);
+            IntBuffer averagedIndices = slice(payload, 4 * numAveraged).asIntBuffer();
+            double scale = precision.isQuantized() ? slice(payload, scaleBytes).getDouble(0) : 0;
+            ByteBuffer averagedValues = slice(payload, precision.getBytes() * numAveraged);
+            IntBuffer weightIndices = slice(payload, 4 * numWeights).asIntBuffer();
+            DoubleBuffer weights = slice(payload, 8 * numWeights).asDoubleBuffer();
+            FrozenWeightVector averaged = new FrozenWeightVector(averagedIndices, averagedValues, precision, scale);
+            return new VectorBlock(currentKey, previousKey, averaged, weightIndices, weights);
+        }
+
+        private ByteBuffer slice(ByteBuffer buffer, int size) {
+            ByteBuffer part = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            part.limit(size);
+            buffer.position(buffer.position() + size);
+            return part;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
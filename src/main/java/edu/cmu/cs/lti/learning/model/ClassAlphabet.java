@@ -16,6 +16,9 @@ import java.util.stream.IntStream;
 
 /**
  * A synchronized implementation that holds class information (what are the possible output of a classification tasks).
+ * <p>
+ * A read-only copy, see {@link #readOnlyCopy()}, cannot add classes, and {@link #lookupClassIndex(String)} reads it
+ * without locking.
  *
  * @author Zhengzhong Liu
  */
@@ -35,6 +38,8 @@ public class ClassAlphabet implements Serializable {
     private ArrayList<List<String>> backoffClassNames;
     private int index; // currently we synchronize the only accesser of it.
 
+    private boolean readOnly;
+
     public ClassAlphabet(boolean noneOfTheAbove, boolean withOutsideClass) {
         this(new String[0], noneOfTheAbove, withOutsideClass);
     }
@@ -75,6 +80,9 @@ public class ClassAlphabet implements Serializable {
      */
     public synchronized int addClass(String className) {
         if (!classIndices.containsKey(className)) {
+            if (readOnly) {
+                throw new IllegalStateException("Cannot add the class " + className + " to a read-only alphabet.");
+            }
             classes.add(className);
             classIndices.put(className, index);
             // TODO backoff is not necessary for all names.
@@ -130,6 +138,41 @@ public class ClassAlphabet implements Serializable {
         }
     }
 
+    /**
+     * Find the index of a class without adding it.
+     *
+     * @param className The class name.
+     * @return The class index, or -1 if the class is unknown.
+     */
+    public int lookupClassIndex(String className) {
+        if (readOnly) {
+            return findClassIndex(className);
+        }
+        synchronized (this) {
+            return findClassIndex(className);
+        }
+    }
+
+    private int findClassIndex(String className) {
+        return classIndices.containsKey(className) ? classIndices.get(className) : -1;
+    }
+
+    /**
+     * @return A copy of this alphabet that cannot add classes, or this alphabet if it is already read-only.
+     */
+    public synchronized ClassAlphabet readOnlyCopy() {
+        if (readOnly) {
+            return this;
+        }
+        ClassAlphabet copy = SerializationUtils.clone(this);
+        copy.readOnly = true;
+        return copy;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public synchronized String getClassName(int classIndex) {
         return classes.get(classIndex);
     }
@@ -147,6 +190,10 @@ public class ClassAlphabet implements Serializable {
         return classIndices.get(noneOfTheAboveClass);
     }
 
+    public boolean isWithOutsideClass() {
+        return withOutsideClass;
+    }
+
     public int getOutsideClassIndex() {
         return classIndices.get(outsideClass);
     }
@@ -0,0 +1,246 @@
+package edu.cmu.cs.lti.learning.model;
+
+import com.google.common.util.concurrent.AtomicDoubleArray;
+import gnu.trove.iterator.TIntDoubleIterator;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A dense averaged weight vector that can be read and updated from multiple threads without locking, for
+ * Hogwild-style training. Weight updates are accumulated atomically, so no update is lost, but a reader may see a
+ * vector that is partially updated by another thread, which is what Hogwild training tolerates.
+ * <p>
+ * Averaging is lazy like {@link ArrayBasedAveragedWeightVector}. The settlement of a feature is claimed by a compare
+ * and set on its update time, so that the residual sum of one period is only added once. The average update count
+ * is an atomic clock that can be shared by many vectors, so that the owner of the vectors advances all of them with
+ * a single increment. Note that {@link #updateAverageWeight()} advances the shared clock as well.
+ * <p>
+ * Consolidation is not thread-safe, it must only be called when training is paused.
+ *
+ * @author Zhengzhong Liu
+ */
+public class ConcurrentArrayAveragedWeightVector extends AveragedWeightVector {
+    private static final long serialVersionUID = -1470911467412581372L;
+
+    private final AtomicInteger averageClock;
+
+    private final AtomicDoubleArray weights;
+
+    // Holds sum of weights, unless "consolidated".
+    private final AtomicDoubleArray averagedWeights;
+
+    // The average update count at which the sum of each feature was last settled.
+    private final AtomicIntegerArray lastUpdateTimes;
+
+    private volatile boolean consolidated;
+
+    public ConcurrentArrayAveragedWeightVector(int featureDimension, int initialAverageUpdateCount) {
+        this(featureDimension, new AtomicInteger(initialAverageUpdateCount));
+    }
+
+    /**
+     * @param featureDimension The size of the feature space.
+     * @param averageClock     The average update count, possibly shared with other vectors.
+     */
+    public ConcurrentArrayAveragedWeightVector(int featureDimension, AtomicInteger averageClock) {
+        weights = new AtomicDoubleArray(featureDimension);
+        averagedWeights = new AtomicDoubleArray(featureDimension);
+        lastUpdateTimes = new AtomicIntegerArray(featureDimension);
+        this.averageClock = averageClock;
+        consolidated = false;
+    }
+
+    @Override
+    public void updateWeightsBy(FeatureVector fv, double multiplier) {
+        int now = averageClock.get();
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            int index = iter.featureIndex();
+            settle(index, now);
+            weights.addAndGet(index, iter.featureValue() * multiplier);
+        }
+    }
+
+    @Override
+    public void updateAverageWeight() {
+        averageClock.incrementAndGet();
+    }
+
+    /**
+     * Settle the residual sum of one feature up to the given time. The weight is read before claiming the period,
+     * and any thread changing the weight must first attempt the same claim, so the weight read is the one held
+     * during the whole period.
+     */
+    private void settle(int index, int now) {
+        int lastTime = lastUpdateTimes.get(index);
+        if (lastTime < now) {
+            double weight = weights.get(index);
+            if (lastUpdateTimes.compareAndSet(index, lastTime, now) && weight != 0) {
+                averagedWeights.addAndGet(index, weight * (now - lastTime));
+            }
+        }
+    }
+
+    private void settleAll() {
+        int now = averageClock.get();
+        for (int i = 0; i < weights.length(); i++) {
+            settle(i, now);
+        }
+    }
+
+    @Override
+    void consolidate() {
+        if (!consolidated) {
+            settleAll();
+            int count = averageClock.get();
+            if (count != 0) {
+                for (int i = 0; i < averagedWeights.length(); i++) {
+                    // Turn sum of weights to average of weights.
+                    averagedWeights.set(i, averagedWeights.get(i) / count);
+                }
+            }
+            consolidated = true;
+        }
+    }
+
+    @Override
+    void deconsolidate() {
+        if (consolidated) {
+            int count = averageClock.get();
+            if (count != 0) {
+                for (int i = 0; i < averagedWeights.length(); i++) {
+                    // Turn average weights back to sum of weights.
+                    averagedWeights.set(i, averagedWeights.get(i) * count);
+                }
+            }
+            consolidated = false;
+        }
+    }
+
+    @Override
+    void loadWeight(int i, double weight, double averageSum) {
+        weights.set(i, weight);
+        averagedWeights.set(i, averageSum);
+        lastUpdateTimes.set(i, averageClock.get());
+    }
+
+    /**
+     * Could be called during training, the visited weights then include part of the concurrent updates.
+     */
+    @Override
+    void visitWeights(WeightVisitor visitor) {
+        int now = averageClock.get();
+        for (int i = 0; i < weights.length(); i++) {
+            double weight = weights.get(i);
+            double averageSum = averagedWeights.get(i);
+            if (consolidated) {
+                averageSum = now == 0 ? averageSum : averageSum * now;
+            } else {
+                averageSum += weight * (now - lastUpdateTimes.get(i));
+            }
+            if (weight != 0 || averageSum != 0) {
+                visitor.visit(i, weight, averageSum);
+            }
+        }
+    }
+
+    @Override
+    AveragedWeightVector emptyCopy() {
+        return new ConcurrentArrayAveragedWeightVector(weights.length(), averageClock.get());
+    }
+
+    @Override
+    public double getWeightAt(int i) {
+        return weights.get(i);
+    }
+
+    @Override
+    public double getAverageWeightAt(int i) {
+        return averagedWeights.get(i) + weights.get(i) * (averageClock.get() - lastUpdateTimes.get(i));
+    }
+
+    /**
+     * @return Number of non-zero weights.
+     */
+    @Override
+    public int getFeatureSize() {
+        int size = 0;
+        for (int i = 0; i < weights.length(); i++) {
+            if (weights.get(i) != 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public TIntDoubleIterator getWeightsIterator() {
+        return new NonZeroIterator(weights);
+    }
+
+    @Override
+    public TIntDoubleIterator getAverageWeightsIterator() {
+        settleAll();
+        return new NonZeroIterator(averagedWeights);
+    }
+
+    /**
+     * Iterate the non-zero entries of an atomic array, in index order.
+     */
+    private static class NonZeroIterator implements TIntDoubleIterator {
+        private final AtomicDoubleArray values;
+
+        private int current = -1;
+
+        private int next;
+
+        NonZeroIterator(AtomicDoubleArray values) {
+            this.values = values;
+            next = findNext(0);
+        }
+
+        private int findNext(int from) {
+            int i = from;
+            while (i < values.length() && values.get(i) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int key() {
+            return current;
+        }
+
+        @Override
+        public double value() {
+            return values.get(current);
+        }
+
+        @Override
+        public double setValue(double val) {
+            return values.getAndSet(current, val);
+        }
+
+        @Override
+        public void advance() {
+            if (next >= values.length()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = findNext(current + 1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length();
+        }
+
+        @Override
+        public void remove() {
+            values.set(current, 0);
+        }
+    }
+}
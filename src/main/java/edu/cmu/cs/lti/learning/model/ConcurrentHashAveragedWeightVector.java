@@ -0,0 +1,404 @@
+package edu.cmu.cs.lti.learning.model;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A sparse averaged weight vector that can be read and updated from multiple threads without locking. It is the
+ * sparse counterpart of {@link ConcurrentArrayAveragedWeightVector}, and follows the same lazy averaging scheme with a
+ * possibly shared average clock. Each feature is stored in its own entry, and the values of an entry are updated by
+ * compare and set.
+ * <p>
+ * The entries are kept in an open addressing table keyed by the primitive feature index, so a lookup does not box
+ * the index. Entries are never removed during training, so finding an existing entry is a lock-free probe of the
+ * table. Only the insertion of a new feature takes the lock of the vector, and the table is replaced by a larger
+ * copy when it is half full. A reader still probing the old table either finds the entry, which is shared by both
+ * tables, or misses a feature just inserted, as any Hogwild read may.
+ * <p>
+ * Consolidation is not thread-safe, it must only be called when training is paused.
+ *
+ * @author Zhengzhong Liu
+ */
+public class ConcurrentHashAveragedWeightVector extends AveragedWeightVector {
+    private static final long serialVersionUID = -6113064412093683404L;
+
+    private static final int initialCapacity = 16;
+
+    private final AtomicInteger averageClock;
+
+    // Linear probing table, at most half full, replaced as a whole when growing.
+    private volatile AtomicReferenceArray<WeightEntry> table;
+
+    // Number of entries, only changed with the lock.
+    private volatile int size;
+
+    private volatile boolean consolidated;
+
+    public ConcurrentHashAveragedWeightVector(int initialAverageUpdateCount) {
+        this(new AtomicInteger(initialAverageUpdateCount));
+    }
+
+    /**
+     * @param averageClock The average update count, possibly shared with other vectors.
+     */
+    public ConcurrentHashAveragedWeightVector(AtomicInteger averageClock) {
+        this.averageClock = averageClock;
+        table = new AtomicReferenceArray<>(initialCapacity);
+        consolidated = false;
+    }
+
+    private static class WeightEntry implements Serializable {
+        private static final long serialVersionUID = -3129860473290593461L;
+
+        private static final AtomicLongFieldUpdater<WeightEntry> weightUpdater =
+                AtomicLongFieldUpdater.newUpdater(WeightEntry.class, "weightBits");
+
+        private static final AtomicLongFieldUpdater<WeightEntry> averagedWeightUpdater =
+                AtomicLongFieldUpdater.newUpdater(WeightEntry.class, "averagedWeightBits");
+
+        private static final AtomicIntegerFieldUpdater<WeightEntry> lastUpdateTimeUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(WeightEntry.class, "lastUpdateTime");
+
+        private final int index;
+
+        // Doubles are stored as raw long bits to be updated by compare and set.
+        private volatile long weightBits;
+
+        private volatile long averagedWeightBits;
+
+        private volatile int lastUpdateTime;
+
+        private WeightEntry(int index, int lastUpdateTime) {
+            this.index = index;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        double weight() {
+            return Double.longBitsToDouble(weightBits);
+        }
+
+        double averagedWeight() {
+            return Double.longBitsToDouble(averagedWeightBits);
+        }
+
+        void addWeight(double delta) {
+            add(weightUpdater, delta);
+        }
+
+        void addAveragedWeight(double delta) {
+            add(averagedWeightUpdater, delta);
+        }
+
+        void setWeight(double value) {
+            weightBits = Double.doubleToRawLongBits(value);
+        }
+
+        void setAveragedWeight(double value) {
+            averagedWeightBits = Double.doubleToRawLongBits(value);
+        }
+
+        private void add(AtomicLongFieldUpdater<WeightEntry> updater, double delta) {
+            while (true) {
+                long current = updater.get(this);
+                long next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + delta);
+                if (updater.compareAndSet(this, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Settle the residual sum up to the given time, see ConcurrentArrayAveragedWeightVector.
+         */
+        void settle(int now) {
+            int lastTime = lastUpdateTime;
+            if (lastTime < now) {
+                double weight = weight();
+                if (lastUpdateTimeUpdater.compareAndSet(this, lastTime, now) && weight != 0) {
+                    addAveragedWeight(weight * (now - lastTime));
+                }
+            }
+        }
+
+        double averagedWeightAt(int now) {
+            return averagedWeight() + weight() * (now - lastUpdateTime);
+        }
+    }
+
+    private static int slotOf(int index, int mask) {
+        int h = index * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Find the entry of a feature without locking.
+     *
+     * @return The entry, or null if the feature has no entry.
+     */
+    private WeightEntry find(int index) {
+        AtomicReferenceArray<WeightEntry> t = table;
+        int mask = t.length() - 1;
+        for (int slot = slotOf(index, mask); ; slot = (slot + 1) & mask) {
+            WeightEntry entry = t.get(slot);
+            if (entry == null || entry.index == index) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Find the entry of a feature, or insert a new one created at the given time.
+     */
+    private synchronized WeightEntry findOrInsert(int index, int now) {
+        WeightEntry entry = find(index);
+        if (entry == null) {
+            entry = new WeightEntry(index, now);
+            AtomicReferenceArray<WeightEntry> t = table;
+            if ((size + 1) * 2 > t.length()) {
+                t = copyOf(t, t.length() * 2);
+            }
+            put(t, entry);
+            size++;
+            // Publish the new table after it is complete.
+            table = t;
+        }
+        return entry;
+    }
+
+    private static void put(AtomicReferenceArray<WeightEntry> t, WeightEntry entry) {
+        int mask = t.length() - 1;
+        int slot = slotOf(entry.index, mask);
+        while (t.get(slot) != null) {
+            slot = (slot + 1) & mask;
+        }
+        t.set(slot, entry);
+    }
+
+    private static AtomicReferenceArray<WeightEntry> copyOf(AtomicReferenceArray<WeightEntry> t, int capacity) {
+        AtomicReferenceArray<WeightEntry> copy = new AtomicReferenceArray<>(capacity);
+        for (int slot = 0; slot < t.length(); slot++) {
+            WeightEntry entry = t.get(slot);
+            if (entry != null) {
+                put(copy, entry);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public void updateWeightsBy(FeatureVector fv, double multiplier) {
+        int now = averageClock.get();
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            int index = iter.featureIndex();
+            WeightEntry entry = find(index);
+            if (entry == null) {
+                // The weight was zero till now, so there is nothing to settle for the new entry.
+                entry = findOrInsert(index, now);
+            }
+            entry.settle(now);
+            entry.addWeight(iter.featureValue() * multiplier);
+        }
+    }
+
+    @Override
+    public void updateAverageWeight() {
+        averageClock.incrementAndGet();
+    }
+
+    private void settleAll() {
+        int now = averageClock.get();
+        AtomicReferenceArray<WeightEntry> t = table;
+        for (int slot = 0; slot < t.length(); slot++) {
+            WeightEntry entry = t.get(slot);
+            if (entry != null) {
+                entry.settle(now);
+            }
+        }
+    }
+
+    @Override
+    synchronized void consolidate() {
+        if (!consolidated) {
+            settleAll();
+            int count = averageClock.get();
+            // Rebuild the table without the zero entries, as they cannot be removed from the probing sequence.
+            AtomicReferenceArray<WeightEntry> t = table;
+            AtomicReferenceArray<WeightEntry> kept = new AtomicReferenceArray<>(t.length());
+            int keptSize = 0;
+            for (int slot = 0; slot < t.length(); slot++) {
+                WeightEntry entry = t.get(slot);
+                if (entry == null || (entry.weight() == 0 && entry.averagedWeight() == 0)) {
+                    continue;
+                }
+                if (count != 0) {
+                    // Turn sum of weights to average of weights.
+                    entry.setAveragedWeight(entry.averagedWeight() / count);
+                }
+                put(kept, entry);
+                keptSize++;
+            }
+            table = kept;
+            size = keptSize;
+            consolidated = true;
+        }
+    }
+
+    @Override
+    synchronized void deconsolidate() {
+        if (consolidated) {
+            int count = averageClock.get();
+            if (count != 0) {
+                AtomicReferenceArray<WeightEntry> t = table;
+                for (int slot = 0; slot < t.length(); slot++) {
+                    WeightEntry entry = t.get(slot);
+                    if (entry != null) {
+                        // Turn average weights back to sum of weights.
+                        entry.setAveragedWeight(entry.averagedWeight() * count);
+                    }
+                }
+            }
+            consolidated = false;
+        }
+    }
+
+    @Override
+    void loadWeight(int i, double weight, double averageSum) {
+        int now = averageClock.get();
+        WeightEntry entry = findOrInsert(i, now);
+        entry.setWeight(weight);
+        entry.setAveragedWeight(averageSum);
+        entry.lastUpdateTime = now;
+    }
+
+    /**
+     * Could be called during training, the visited weights then include part of the concurrent updates.
+     */
+    @Override
+    void visitWeights(WeightVisitor visitor) {
+        int now = averageClock.get();
+        AtomicReferenceArray<WeightEntry> t = table;
+        for (int slot = 0; slot < t.length(); slot++) {
+            WeightEntry weightEntry = t.get(slot);
+            if (weightEntry == null) {
+                continue;
+            }
+            double weight = weightEntry.weight();
+            double averageSum;
+            if (consolidated) {
+                averageSum = now == 0 ? weightEntry.averagedWeight() : weightEntry.averagedWeight() * now;
+            } else {
+                averageSum = weightEntry.averagedWeightAt(now);
+            }
+            if (weight != 0 || averageSum != 0) {
+                visitor.visit(weightEntry.index, weight, averageSum);
+            }
+        }
+    }
+
+    @Override
+    AveragedWeightVector emptyCopy() {
+        return new ConcurrentHashAveragedWeightVector(averageClock.get());
+    }
+
+    @Override
+    public double getWeightAt(int i) {
+        WeightEntry entry = find(i);
+        return entry == null ? 0 : entry.weight();
+    }
+
+    @Override
+    public double getAverageWeightAt(int i) {
+        WeightEntry entry = find(i);
+        return entry == null ? 0 : entry.averagedWeightAt(averageClock.get());
+    }
+
+    @Override
+    public int getFeatureSize() {
+        return size;
+    }
+
+    @Override
+    public TIntDoubleIterator getWeightsIterator() {
+        return new EntryIterator(false);
+    }
+
+    @Override
+    public TIntDoubleIterator getAverageWeightsIterator() {
+        settleAll();
+        return new EntryIterator(true);
+    }
+
+    /**
+     * Iterate the entries of the table when the iterator is created, entries inserted later may be missed. Entries
+     * cannot be removed one by one, see {@link #consolidate()}.
+     */
+    private class EntryIterator implements TIntDoubleIterator {
+        private final AtomicReferenceArray<WeightEntry> entries = table;
+
+        private final boolean average;
+
+        private WeightEntry current;
+
+        private int next;
+
+        EntryIterator(boolean average) {
+            this.average = average;
+            next = findNext(0);
+        }
+
+        private int findNext(int from) {
+            int slot = from;
+            while (slot < entries.length() && entries.get(slot) == null) {
+                slot++;
+            }
+            return slot;
+        }
+
+        @Override
+        public int key() {
+            return current.index;
+        }
+
+        @Override
+        public double value() {
+            return average ? current.averagedWeight() : current.weight();
+        }
+
+        @Override
+        public double setValue(double val) {
+            double old = value();
+            if (average) {
+                current.setAveragedWeight(val);
+            } else {
+                current.setWeight(val);
+            }
+            return old;
+        }
+
+        @Override
+        public void advance() {
+            if (next >= entries.length()) {
+                throw new NoSuchElementException();
+            }
+            current = entries.get(next);
+            next = findNext(next + 1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < entries.length();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Entries are only removed by consolidation.");
+        }
+    }
+}
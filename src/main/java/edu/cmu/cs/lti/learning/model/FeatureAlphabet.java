@@ -24,12 +24,31 @@ public abstract class FeatureAlphabet implements Serializable {
 
     public abstract int getFeatureId(String featureName);
 
+    /**
+     * Get the feature id of a feature name that is not necessarily a String, such as a reused StringBuilder.
+     * Implementations may avoid creating the String.
+     *
+     * @param featureName The feature name.
+     * @return The feature id.
+     */
+    public int getFeatureId(CharSequence featureName) {
+        return getFeatureId(featureName.toString());
+    }
+
     public abstract String[] getFeatureNames(int featureIndex);
 
     public abstract String getFeatureNameRepre(int featureIndex);
 
     public abstract int getAlphabetSize();
 
+    /**
+     * @return True if all feature ids are known to be smaller than the alphabet size, so that feature spaces can be
+     * allocated upfront.
+     */
+    public boolean isFixedSize() {
+        return false;
+    }
+
     public void write(File outputFile) throws FileNotFoundException {
         SerializationUtils.serialize(this, new FileOutputStream(outputFile));
     }
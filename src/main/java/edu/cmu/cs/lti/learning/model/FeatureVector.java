@@ -40,6 +40,10 @@ public abstract class FeatureVector implements Serializable {
         return addFeature(alphabet.getFeatureId(featureName), featureValue);
     }
 
+    public int addFeature(CharSequence featureName, double featureValue) {
+        return addFeature(alphabet.getFeatureId(featureName), featureValue);
+    }
+
     /**
      * Create a feature vector sharing this one's setting (such as Binary/Real, Alphabet)
      *
@@ -91,15 +95,26 @@ public abstract class FeatureVector implements Serializable {
         }
     }
 
+    /**
+     * Put the difference between this vector and the other one into the result vector, features with the same values
+     * are skipped. Implementations provide faster paths when the other vector is of the same class.
+     *
+     * @param vectorToDiff The vector to subtract.
+     * @param resultVector The vector to put the difference to.
+     */
     public void diff(FeatureVector vectorToDiff, FeatureVector resultVector) {
         TIntSet overlappedFeatures = new TIntHashSet();
         for (FeatureIterator iter = vectorToDiff.featureIterator(); iter.hasNext(); ) {
             iter.next();
+            // A feature can be repeated in vectors like the lazy list, the values are summed by getFeatureValue.
+            if (!overlappedFeatures.add(iter.featureIndex())) {
+                continue;
+            }
             double thisValue = this.getFeatureValue(iter.featureIndex()); // This will always return a value.
-            if (thisValue != iter.featureValue()) {
-                resultVector.addFeature(iter.featureIndex(), thisValue - iter.featureValue());
+            double otherValue = vectorToDiff.getFeatureValue(iter.featureIndex());
+            if (thisValue != otherValue) {
+                resultVector.addFeature(iter.featureIndex(), thisValue - otherValue);
             }
-            overlappedFeatures.add(iter.featureIndex());
         }
 
         for (FeatureIterator iter = this.featureIterator(); iter.hasNext(); ) {
@@ -112,17 +127,53 @@ public abstract class FeatureVector implements Serializable {
     }
 
     /**
-     * Get the negation of this feature by diff it from an empty feature vector.
+     * Get the negation of this feature vector, features with value 0 are dropped.
      *
      * @return Negated vector
      */
     public FeatureVector negation() {
         FeatureVector negatedVector = newVector();
-        FeatureVector emptyVector = newVector();
-        emptyVector.diff(this, negatedVector);
+        scaleInto(negatedVector, -1);
         return negatedVector;
     }
 
+    /**
+     * Add this vector times the multiplier into the result vector, in place.
+     *
+     * @param resultVector The vector to add to.
+     * @param multiplier   The multiplier.
+     */
+    public void scaleInto(FeatureVector resultVector, double multiplier) {
+        resultVector.addScaled(this, multiplier);
+    }
+
+    /**
+     * Add the vector times the multiplier to this vector, in place. Unlike {@link #extend(FeatureVector, double)},
+     * features whose scaled value is 0 are skipped, since they do not change the vector. Implementations provide
+     * faster paths when the other vector is of the same class.
+     *
+     * @param vectorToAdd The vector to add.
+     * @param multiplier  The multiplier.
+     */
+    public void addScaled(FeatureVector vectorToAdd, double multiplier) {
+        for (FeatureIterator iter = vectorToAdd.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            double value = iter.featureValue() * multiplier;
+            if (value != 0) {
+                addFeature(iter.featureIndex(), value);
+            }
+        }
+    }
+
+    /**
+     * Subtract the vector from this vector, in place.
+     *
+     * @param vectorToSubtract The vector to subtract.
+     */
+    public void subtract(FeatureVector vectorToSubtract) {
+        addScaled(vectorToSubtract, -1);
+    }
+
     public double getFeatureValue(String featureName) {
         return getFeatureValue(alphabet.getFeatureId(featureName));
     }
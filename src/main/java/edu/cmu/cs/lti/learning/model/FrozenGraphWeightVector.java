@@ -0,0 +1,464 @@
+package edu.cmu.cs.lti.learning.model;
+
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable.TIntIntObjectIterator;
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only inference model derived from a {@link GraphWeightVector}, which only keeps the averaged weights. It
+ * has no locks and never creates vectors, scoring a node or an edge without weights simply gives 0, so it can be
+ * shared by any number of threads.
+ * <p>
+ * It is created by {@link GraphWeightVector#freeze()}, or read from a binary model file by
+ * {@link #readBinary(File)}, in which case the weights are read in place from the memory mapped file. The weights
+ * can be stored in a lower {@link WeightPrecision} to save memory, see {@link #withPrecision(WeightPrecision)}, and
+ * exported in that precision by {@link #writeBinary(File)}.
+ * <p>
+ * To score all the classes of a node at once, the node weights can also be packed into a feature major copy, see
+ * {@link #withPackedNodeWeights()}. Packing is never done implicitly, as the copy is held on the heap in addition to
+ * the sparse vectors.
+ *
+ * @author Zhengzhong Liu
+ */
+public class FrozenGraphWeightVector {
+    private final ClassAlphabet classAlphabet;
+
+    private final FeatureAlphabet featureAlphabet;
+
+    private final String featureSpec;
+
+    // Indexed by class index, null if there is no weight.
+    private final FrozenWeightVector[] nodeWeights;
+
+    // Indexed by [current key][previous key], null if there is no weight.
+    private final FrozenWeightVector[][] edgeWeights;
+
+    // Feature major copy of the node weights for scoring all classes at once, null if not packed.
+    private final PackedNodeWeights packedNodeWeights;
+
+    FrozenGraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec,
+                            FrozenWeightVector[] nodeWeights, FrozenWeightVector[][] edgeWeights) {
+        this(classAlphabet, featureAlphabet, featureSpec, nodeWeights, edgeWeights, false);
+    }
+
+    private FrozenGraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec,
+                                    FrozenWeightVector[] nodeWeights, FrozenWeightVector[][] edgeWeights,
+                                    boolean packNodeWeights) {
+        // Scoring must not add classes, nor wait for a lock on the alphabet.
+        this.classAlphabet = classAlphabet.readOnlyCopy();
+        this.featureAlphabet = featureAlphabet;
+        this.featureSpec = featureSpec;
+        this.nodeWeights = nodeWeights;
+        this.edgeWeights = edgeWeights;
+        this.packedNodeWeights = packNodeWeights ?
+                new PackedNodeWeights(nodeWeights, this.classAlphabet.size()) : null;
+    }
+
+    /**
+     * Read the averaged weights of a model written by {@link GraphWeightVector#writeBinary(File)} or
+     * {@link #writeBinary(File)}. The weights stay in the memory mapped file, the raw weights are skipped.
+     *
+     * @param inputFile The binary model file.
+     * @return The frozen model.
+     * @throws IOException
+     */
+    public static FrozenGraphWeightVector readBinary(File inputFile) throws IOException {
+        try (BinaryModelFormat.Reader reader = new BinaryModelFormat.Reader(inputFile)) {
+            BinaryModelFormat.Header header = reader.readHeader();
+            Builder builder = new Builder();
+            for (int i = 0; i < header.numBlocks; i++) {
+                BinaryModelFormat.VectorBlock block = reader.readBlock();
+                if (block.isNode()) {
+                    builder.addNode(block.currentKey, block.averaged);
+                } else {
+                    builder.addEdge(block.currentKey, block.previousKey, block.averaged);
+                }
+            }
+            return builder.build(header.classAlphabet, header.featureAlphabet, header.featureSpec);
+        }
+    }
+
+    /**
+     * Store all the weights in another precision. The 16 and 8 bit precisions quantize each vector with its own
+     * scale.
+     *
+     * @param precision The new precision.
+     * @return The model with the new precision, with packed node weights if this model has them.
+     */
+    public FrozenGraphWeightVector withPrecision(WeightPrecision precision) {
+        Builder builder = new Builder();
+        for (int nodeKey = 0; nodeKey < nodeWeights.length; nodeKey++) {
+            if (nodeWeights[nodeKey] != null) {
+                builder.addNode(nodeKey, nodeWeights[nodeKey].withPrecision(precision));
+            }
+        }
+        for (int currentKey = 0; currentKey < edgeWeights.length; currentKey++) {
+            FrozenWeightVector[] row = edgeWeights[currentKey];
+            if (row != null) {
+                for (int previousKey = 0; previousKey < row.length; previousKey++) {
+                    if (row[previousKey] != null) {
+                        builder.addEdge(currentKey, previousKey, row[previousKey].withPrecision(precision));
+                    }
+                }
+            }
+        }
+        FrozenGraphWeightVector lower = builder.build(classAlphabet, featureAlphabet, featureSpec);
+        return isNodeWeightsPacked() ? lower.withPackedNodeWeights() : lower;
+    }
+
+    /**
+     * Pack the node weights into a dense feature major matrix, where the weights of all the classes for a feature
+     * are adjacent, so that {@link #scoreAllClasses(FeatureVector, double[])} takes one binary search per feature
+     * and a loop over the classes that the JIT can vectorize.
+     * <p>
+     * The matrix is held on the heap, even for a model read from a memory mapped file, in the precision of the node
+     * weights, with one scale per class for the quantized precisions. It takes (4 + number of classes * bytes per
+     * weight) bytes for every feature having any node weight, e.g. about 690MB for 2^22 features and 40 classes in
+     * FLOAT, and is counted by {@link #getStorageBytes()}.
+     *
+     * @return A model sharing the weights of this one, with the packed node weights.
+     */
+    public FrozenGraphWeightVector withPackedNodeWeights() {
+        if (isNodeWeightsPacked()) {
+            return this;
+        }
+        return new FrozenGraphWeightVector(classAlphabet, featureAlphabet, featureSpec, nodeWeights, edgeWeights,
+                true);
+    }
+
+    public boolean isNodeWeightsPacked() {
+        return packedNodeWeights != null;
+    }
+
+    /**
+     * Export the weights in their current precision, the file can be read by {@link #readBinary(File)} only, it
+     * cannot be used to resume training.
+     *
+     * @param outputFile The file to write to.
+     * @throws IOException
+     */
+    public void writeBinary(File outputFile) throws IOException {
+        WeightPrecision precision = null;
+        int numBlocks = 0;
+        for (FrozenWeightVector v : allVectors()) {
+            if (precision != null && precision != v.getPrecision()) {
+                throw new IllegalStateException("Vectors with different precisions cannot be written together.");
+            }
+            precision = v.getPrecision();
+            numBlocks++;
+        }
+
+        try (BinaryModelFormat.Writer writer = new BinaryModelFormat.Writer(outputFile)) {
+            BinaryModelFormat.Header header = new BinaryModelFormat.Header();
+            header.flags = BinaryModelFormat.averagedOnlyFlag;
+            header.featureSpec = featureSpec;
+            header.classAlphabet = classAlphabet;
+            header.featureAlphabet = featureAlphabet;
+            header.numBlocks = numBlocks;
+            header.precision = precision == null ? WeightPrecision.DOUBLE : precision;
+            writer.writeHeader(header);
+
+            for (int nodeKey = 0; nodeKey < nodeWeights.length; nodeKey++) {
+                if (nodeWeights[nodeKey] != null) {
+                    writer.writeVector(nodeKey, -1, nodeWeights[nodeKey]);
+                }
+            }
+            for (int currentKey = 0; currentKey < edgeWeights.length; currentKey++) {
+                FrozenWeightVector[] row = edgeWeights[currentKey];
+                if (row != null) {
+                    for (int previousKey = 0; previousKey < row.length; previousKey++) {
+                        if (row[previousKey] != null) {
+                            writer.writeVector(currentKey, previousKey, row[previousKey]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private List<FrozenWeightVector> allVectors() {
+        List<FrozenWeightVector> vectors = new ArrayList<>();
+        for (FrozenWeightVector v : nodeWeights) {
+            if (v != null) {
+                vectors.add(v);
+            }
+        }
+        for (FrozenWeightVector[] row : edgeWeights) {
+            if (row != null) {
+                for (FrozenWeightVector v : row) {
+                    if (v != null) {
+                        vectors.add(v);
+                    }
+                }
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * @return Number of bytes taken by the weight storage, including the packed node weights.
+     */
+    public long getStorageBytes() {
+        long bytes = isNodeWeightsPacked() ? packedNodeWeights.getStorageBytes() : 0;
+        for (FrozenWeightVector v : allVectors()) {
+            bytes += v.getStorageBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Collect the frozen vectors into the lookup arrays.
+     */
+    static class Builder {
+        private FrozenWeightVector[] nodeWeights = new FrozenWeightVector[0];
+
+        private FrozenWeightVector[][] edgeWeights = new FrozenWeightVector[0][];
+
+        void addNode(int nodeKey, FrozenWeightVector v) {
+            if (nodeKey >= nodeWeights.length) {
+                nodeWeights = Arrays.copyOf(nodeWeights, nodeKey + 1);
+            }
+            nodeWeights[nodeKey] = v;
+        }
+
+        void addEdge(int currentKey, int previousKey, FrozenWeightVector v) {
+            if (currentKey >= edgeWeights.length) {
+                edgeWeights = Arrays.copyOf(edgeWeights, currentKey + 1);
+            }
+            FrozenWeightVector[] row = edgeWeights[currentKey];
+            if (row == null) {
+                row = new FrozenWeightVector[previousKey + 1];
+            } else if (previousKey >= row.length) {
+                row = Arrays.copyOf(row, previousKey + 1);
+            }
+            row[previousKey] = v;
+            edgeWeights[currentKey] = row;
+        }
+
+        FrozenGraphWeightVector build(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet,
+                                      String featureSpec) {
+            return new FrozenGraphWeightVector(classAlphabet, featureAlphabet, featureSpec, nodeWeights,
+                    edgeWeights);
+        }
+    }
+
+    public FrozenWeightVector getNodeWeights(int nodeKey) {
+        return nodeKey < nodeWeights.length ? nodeWeights[nodeKey] : null;
+    }
+
+    public FrozenWeightVector getEdgeWeights(int currentKey, int previousKey) {
+        if (currentKey < edgeWeights.length) {
+            FrozenWeightVector[] row = edgeWeights[currentKey];
+            if (row != null && previousKey < row.length) {
+                return row[previousKey];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The score of the class, 0 if the class is unknown.
+     */
+    public double dotProdAver(FeatureVector fv, String classLabel) {
+        int classIndex = classAlphabet.lookupClassIndex(classLabel);
+        return classIndex < 0 ? 0 : dotProdAver(fv, classIndex);
+    }
+
+    public double dotProdAver(FeatureVector fv, int nodeKey) {
+        FrozenWeightVector weights = getNodeWeights(nodeKey);
+        return weights == null ? 0 : weights.dotProd(fv);
+    }
+
+    public double dotProdAver(FeatureVector fv, int currentKey, int previousKey) {
+        FrozenWeightVector weights = getEdgeWeights(currentKey, previousKey);
+        return weights == null ? 0 : weights.dotProd(fv);
+    }
+
+    /**
+     * Compute the node scores of all the classes, i.e. out[c] = dotProdAver(fv, c). With packed node weights, see
+     * {@link #withPackedNodeWeights()}, this is one pass over the features, otherwise each class is scored
+     * separately.
+     *
+     * @param fv  The feature vector.
+     * @param out The scores, indexed by class index, at least as long as the class alphabet.
+     */
+    public void scoreAllClasses(FeatureVector fv, double[] out) {
+        if (packedNodeWeights != null) {
+            packedNodeWeights.score(fv, out);
+        } else {
+            for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+                out[classIndex] = dotProdAver(fv, classIndex);
+            }
+        }
+    }
+
+    /**
+     * Node weights stored as a dense feature major matrix, over the features that have any node weight. The weights
+     * keep the precision of the node vectors, a quantized weight is multiplied by the scale of its class after the
+     * sum over the features.
+     */
+    private static class PackedNodeWeights {
+        private final int numClasses;
+
+        // Sorted features having node weights.
+        private final int[] featureIndices;
+
+        private final WeightPrecision precision;
+
+        // Only the array of the precision is used. The weight of class c for the feature at position p is at
+        // p * numClasses + c.
+        private final double[] doubleWeights;
+        private final float[] floatWeights;
+        private final short[] shortWeights;
+        private final byte[] byteWeights;
+
+        // The quantization scale of each class, null if the precision is not quantized.
+        private final double[] scales;
+
+        PackedNodeWeights(FrozenWeightVector[] nodeWeights, int numClasses) {
+            this.numClasses = numClasses;
+            int numVectors = Math.min(nodeWeights.length, numClasses);
+
+            // Vectors of different precisions are packed in double.
+            WeightPrecision commonPrecision = null;
+            TIntHashSet features = new TIntHashSet();
+            for (int classIndex = 0; classIndex < numVectors; classIndex++) {
+                FrozenWeightVector v = nodeWeights[classIndex];
+                if (v != null) {
+                    commonPrecision = commonPrecision == null || commonPrecision == v.getPrecision() ?
+                            v.getPrecision() : WeightPrecision.DOUBLE;
+                    for (int pos = 0; pos < v.getFeatureSize(); pos++) {
+                        features.add(v.indexAt(pos));
+                    }
+                }
+            }
+            precision = commonPrecision == null ? WeightPrecision.DOUBLE : commonPrecision;
+            featureIndices = features.toArray();
+            Arrays.sort(featureIndices);
+
+            long numCells = (long) featureIndices.length * numClasses;
+            if (numCells > Integer.MAX_VALUE) {
+                throw new IllegalStateException(String.format("%d features of %d classes are too many to pack.",
+                        featureIndices.length, numClasses));
+            }
+            int size = (int) numCells;
+            doubleWeights = precision == WeightPrecision.DOUBLE ? new double[size] : null;
+            floatWeights = precision == WeightPrecision.FLOAT ? new float[size] : null;
+            shortWeights = precision == WeightPrecision.SHORT ? new short[size] : null;
+            byteWeights = precision == WeightPrecision.BYTE ? new byte[size] : null;
+            scales = precision.isQuantized() ? new double[numClasses] : null;
+
+            for (int classIndex = 0; classIndex < numVectors; classIndex++) {
+                FrozenWeightVector v = nodeWeights[classIndex];
+                if (v == null) {
+                    continue;
+                }
+                double scale = v.getScale();
+                if (scales != null) {
+                    scales[classIndex] = scale;
+                }
+                // Both index lists are sorted, so the positions are found by walking them together.
+                int featurePos = 0;
+                for (int pos = 0; pos < v.getFeatureSize(); pos++) {
+                    int featureIndex = v.indexAt(pos);
+                    while (featureIndices[featurePos] != featureIndex) {
+                        featurePos++;
+                    }
+                    int cell = featurePos * numClasses + classIndex;
+                    double value = v.valueAt(pos);
+                    switch (precision) {
+                        case DOUBLE:
+                            doubleWeights[cell] = value;
+                            break;
+                        case FLOAT:
+                            floatWeights[cell] = (float) value;
+                            break;
+                        case SHORT:
+                            shortWeights[cell] = (short) (scale == 0 ? 0 : Math.round(value / scale));
+                            break;
+                        case BYTE:
+                            byteWeights[cell] = (byte) (scale == 0 ? 0 : Math.round(value / scale));
+                            break;
+                    }
+                }
+            }
+        }
+
+        void score(FeatureVector fv, double[] out) {
+            Arrays.fill(out, 0, numClasses, 0);
+            for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+                iter.next();
+                int featurePos = Arrays.binarySearch(featureIndices, iter.featureIndex());
+                if (featurePos < 0) {
+                    continue;
+                }
+                double featureValue = iter.featureValue();
+                int offset = featurePos * numClasses;
+                switch (precision) {
+                    case DOUBLE:
+                        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                            out[classIndex] += doubleWeights[offset + classIndex] * featureValue;
+                        }
+                        break;
+                    case FLOAT:
+                        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                            out[classIndex] += floatWeights[offset + classIndex] * featureValue;
+                        }
+                        break;
+                    case SHORT:
+                        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                            out[classIndex] += shortWeights[offset + classIndex] * featureValue;
+                        }
+                        break;
+                    case BYTE:
+                        for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                            out[classIndex] += byteWeights[offset + classIndex] * featureValue;
+                        }
+                        break;
+                }
+            }
+            if (scales != null) {
+                for (int classIndex = 0; classIndex < numClasses; classIndex++) {
+                    out[classIndex] *= scales[classIndex];
+                }
+            }
+        }
+
+        long getStorageBytes() {
+            return featureIndices.length * 4L + (long) featureIndices.length * numClasses * precision.getBytes() +
+                    (scales == null ? 0 : scales.length * 8L);
+        }
+    }
+
+    public double dotProdAver(GraphFeatureVector fv) {
+        double prod = 0;
+        for (TIntObjectIterator<FeatureVector> iter = fv.nodeFvIter(); iter.hasNext(); ) {
+            iter.advance();
+            prod += dotProdAver(iter.value(), iter.key());
+        }
+
+        for (TIntIntObjectIterator<FeatureVector> iter = fv.edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            prod += dotProdAver(iter.value(), iter.rowKey(), iter.colKey());
+        }
+        return prod;
+    }
+
+    public ClassAlphabet getClassAlphabet() {
+        return classAlphabet;
+    }
+
+    public FeatureAlphabet getFeatureAlphabet() {
+        return featureAlphabet;
+    }
+
+    public String getFeatureSpec() {
+        return featureSpec;
+    }
+}
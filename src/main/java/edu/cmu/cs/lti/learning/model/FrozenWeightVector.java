@@ -0,0 +1,177 @@
+package edu.cmu.cs.lti.learning.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * An immutable sparse weight vector for inference, the non-zero weights are stored as sorted indices and their
+ * values, and looked up by binary search. The storage can be heap buffers or a memory mapped model file, only
+ * absolute reads are done on the buffers so the vector can be shared by many threads.
+ * <p>
+ * The values can be stored in a lower {@link WeightPrecision} to save memory, the lookup works the same way for all
+ * precisions.
+ *
+ * @author Zhengzhong Liu
+ */
+public class FrozenWeightVector {
+    private final IntBuffer indices;
+
+    // Little endian values in the given precision.
+    private final ByteBuffer values;
+
+    private final WeightPrecision precision;
+
+    // Value of one quantization step, only used by quantized precisions.
+    private final double scale;
+
+    private final int size;
+
+    FrozenWeightVector(int[] indices, double[] weights) {
+        this(IntBuffer.wrap(indices), toBuffer(weights), WeightPrecision.DOUBLE, 0);
+    }
+
+    /**
+     * @param indices   Sorted feature indices.
+     * @param values    The little endian weights of the features.
+     * @param precision The precision of the values.
+     * @param scale     The value of a quantization step, if the precision is quantized.
+     */
+    FrozenWeightVector(IntBuffer indices, ByteBuffer values, WeightPrecision precision, double scale) {
+        this.indices = indices;
+        this.values = values;
+        this.precision = precision;
+        this.scale = scale;
+        this.size = indices.limit();
+    }
+
+    private static ByteBuffer toBuffer(double[] weights) {
+        ByteBuffer buffer = ByteBuffer.allocate(weights.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < weights.length; i++) {
+            buffer.putDouble(i * 8, weights[i]);
+        }
+        return buffer;
+    }
+
+    /**
+     * Store the weights of this vector in another precision, the indices are shared.
+     *
+     * @param newPrecision The new precision.
+     * @return The vector with the new precision.
+     */
+    public FrozenWeightVector withPrecision(WeightPrecision newPrecision) {
+        if (newPrecision == precision) {
+            return this;
+        }
+
+        double newScale = 0;
+        if (newPrecision.isQuantized()) {
+            double maxAbs = 0;
+            for (int pos = 0; pos < size; pos++) {
+                maxAbs = Math.max(maxAbs, Math.abs(valueAt(pos)));
+            }
+            newScale = maxAbs / newPrecision.getMaxQuantized();
+        }
+
+        int bytes = newPrecision.getBytes();
+        ByteBuffer newValues = ByteBuffer.allocate(size * bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int pos = 0; pos < size; pos++) {
+            double value = valueAt(pos);
+            switch (newPrecision) {
+                case DOUBLE:
+                    newValues.putDouble(pos * bytes, value);
+                    break;
+                case FLOAT:
+                    newValues.putFloat(pos * bytes, (float) value);
+                    break;
+                case SHORT:
+                    newValues.putShort(pos * bytes, (short) quantize(value, newScale));
+                    break;
+                case BYTE:
+                    newValues.put(pos * bytes, (byte) quantize(value, newScale));
+                    break;
+            }
+        }
+        return new FrozenWeightVector(indices, newValues, newPrecision, newScale);
+    }
+
+    private static long quantize(double value, double scale) {
+        return scale == 0 ? 0 : Math.round(value / scale);
+    }
+
+    /**
+     * @param pos Position in the sorted indices, from 0 to {@link #getFeatureSize()} - 1.
+     * @return The feature index at the position.
+     */
+    public int indexAt(int pos) {
+        return indices.get(pos);
+    }
+
+    double valueAt(int pos) {
+        switch (precision) {
+            case DOUBLE:
+                return values.getDouble(pos * 8);
+            case FLOAT:
+                return values.getFloat(pos * 4);
+            case SHORT:
+                return values.getShort(pos * 2) * scale;
+            default:
+                return values.get(pos) * scale;
+        }
+    }
+
+    /**
+     * @return A view of the raw values, for writing.
+     */
+    ByteBuffer rawValues() {
+        return values.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public double getWeightAt(int featureIndex) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = indices.get(mid);
+            if (midIndex < featureIndex) {
+                low = mid + 1;
+            } else if (midIndex > featureIndex) {
+                high = mid - 1;
+            } else {
+                return valueAt(mid);
+            }
+        }
+        return 0;
+    }
+
+    public double dotProd(FeatureVector fv) {
+        double sum = 0;
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            sum += getWeightAt(iter.featureIndex()) * iter.featureValue();
+        }
+        return sum;
+    }
+
+    /**
+     * @return Number of non-zero weights.
+     */
+    public int getFeatureSize() {
+        return size;
+    }
+
+    public WeightPrecision getPrecision() {
+        return precision;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * @return Number of bytes taken by the indices and the values.
+     */
+    public long getStorageBytes() {
+        return (long) size * (4 + precision.getBytes());
+    }
+}
@@ -1,13 +1,15 @@
 package edu.cmu.cs.lti.learning.model;
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable;
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable.TIntIntObjectIterator;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Iterator;
 
@@ -23,7 +25,8 @@ public class GraphFeatureVector implements Serializable {
 
     private TIntObjectMap<FeatureVector> nodeFv;
 
-    private Table<Integer, Integer, FeatureVector> edgeFv;
+    // <Edge End, Edge From, Vector>, stored as a Guava table by older versions, see readObject().
+    private TIntIntObjectHashTable<FeatureVector> edgeFv;
 
     private FeatureAlphabet featureAlphabet;
 
@@ -31,7 +34,7 @@ public class GraphFeatureVector implements Serializable {
 
     public GraphFeatureVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet) {
         nodeFv = new TIntObjectHashMap<>();
-        edgeFv = HashBasedTable.create();
+        edgeFv = new TIntIntObjectHashTable<>();
         this.featureAlphabet = featureAlphabet;
         this.classAlphabet = classAlphabet;
     }
@@ -44,8 +47,33 @@ public class GraphFeatureVector implements Serializable {
         return nodeFv.iterator();
     }
 
+    /**
+     * Iterate the edge feature vectors, the row key is the edge end and the column key is the edge start. This
+     * creates a cell object per edge, use {@link #edgeFvIterator()} to iterate with primitive keys.
+     *
+     * @return Iterator of the edge vectors as table cells.
+     */
     public Iterator<Table.Cell<Integer, Integer, FeatureVector>> edgeFvIter() {
-        return edgeFv.cellSet().iterator();
+        TIntIntObjectIterator<FeatureVector> iter = edgeFv.iterator();
+        return new Iterator<Table.Cell<Integer, Integer, FeatureVector>>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Table.Cell<Integer, Integer, FeatureVector> next() {
+                iter.advance();
+                return Tables.immutableCell(iter.rowKey(), iter.colKey(), iter.value());
+            }
+        };
+    }
+
+    /**
+     * @return Iterator of the edge vectors, the row key is the edge end and the column key is the edge start.
+     */
+    public TIntIntObjectIterator<FeatureVector> edgeFvIterator() {
+        return edgeFv.iterator();
     }
 
     private FeatureVector newFeatureVector() {
@@ -53,14 +81,7 @@ public class GraphFeatureVector implements Serializable {
     }
 
     public void add(String featureName, double featureValue, int edgeEnd, int edgeFrom) {
-        FeatureVector thisFv;
-        if (edgeFv.contains(edgeEnd, edgeFrom)) {
-            thisFv = edgeFv.get(edgeEnd, edgeFrom);
-        } else {
-            thisFv = newFeatureVector();
-            edgeFv.put(edgeEnd, edgeFrom, thisFv);
-        }
-        thisFv.addFeature(featureName, featureValue);
+        getOrCreateEdgeVector(edgeEnd, edgeFrom).addFeature(featureName, featureValue);
     }
 
     public void extend(FeatureVector fv, String endClassName, String fromClassName) {
@@ -72,14 +93,7 @@ public class GraphFeatureVector implements Serializable {
     }
 
     public void extend(FeatureVector fv, int edgeEnd, int edgeFrom, double multiplier) {
-        FeatureVector thisFv;
-        if (edgeFv.contains(edgeEnd, edgeFrom)) {
-            thisFv = edgeFv.get(edgeEnd, edgeFrom);
-        } else {
-            thisFv = newFeatureVector();
-            edgeFv.put(edgeEnd, edgeFrom, thisFv);
-        }
-        thisFv.extend(fv, multiplier);
+        getOrCreateEdgeVector(edgeEnd, edgeFrom).extend(fv, multiplier);
     }
 
     public void extend(FeatureVector fv, String className) {
@@ -108,14 +122,7 @@ public class GraphFeatureVector implements Serializable {
      * @param multiplier The multiplier.
      */
     public void extend(FeatureVector fv, int nodeKey, double multiplier) {
-        FeatureVector thisFv;
-        if (nodeFv.containsKey(nodeKey)) {
-            thisFv = nodeFv.get(nodeKey);
-        } else {
-            thisFv = newFeatureVector();
-            nodeFv.put(nodeKey, thisFv);
-        }
-        thisFv.extend(fv, multiplier);
+        getOrCreateNodeVector(nodeKey).extend(fv, multiplier);
     }
 
     public void extend(GraphFeatureVector vectorToAdd) {
@@ -130,13 +137,10 @@ public class GraphFeatureVector implements Serializable {
             extend(newNodeVector, addKey, multiplier);
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> newNodeEdgeFvIter = vectorToAdd.edgeFvIter();
+        for (TIntIntObjectIterator<FeatureVector> newNodeEdgeFvIter = vectorToAdd.edgeFvIterator();
              newNodeEdgeFvIter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> newEdgeFeature = newNodeEdgeFvIter.next();
-            int row = newEdgeFeature.getRowKey();
-            int col = newEdgeFeature.getColumnKey();
-            FeatureVector newEdgeVector = newEdgeFeature.getValue();
-            extend(newEdgeVector, row, col, multiplier);
+            newNodeEdgeFvIter.advance();
+            extend(newNodeEdgeFvIter.value(), newNodeEdgeFvIter.rowKey(), newNodeEdgeFvIter.colKey(), multiplier);
         }
     }
 
@@ -145,21 +149,35 @@ public class GraphFeatureVector implements Serializable {
 
         for (TIntObjectIterator<FeatureVector> newNodeFvIter = vectorToDeduct.nodeFvIter(); newNodeFvIter.hasNext(); ) {
             newNodeFvIter.advance();
-            int addKey = newNodeFvIter.key();
-            FeatureVector newNodeVector = newNodeFvIter.value();
-            resultVector.extend(newNodeVector.negation(), addKey);
+            resultVector.getOrCreateNodeVector(newNodeFvIter.key()).subtract(newNodeFvIter.value());
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> newNodeEdgeFvIter = vectorToDeduct.edgeFvIter();
+        for (TIntIntObjectIterator<FeatureVector> newNodeEdgeFvIter = vectorToDeduct.edgeFvIterator();
              newNodeEdgeFvIter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> newEdgeFeature = newNodeEdgeFvIter.next();
-            int row = newEdgeFeature.getRowKey();
-            int col = newEdgeFeature.getColumnKey();
-            FeatureVector newEdgeVector = newEdgeFeature.getValue();
-            resultVector.extend(newEdgeVector.negation(), row, col);
+            newNodeEdgeFvIter.advance();
+            resultVector.getOrCreateEdgeVector(newNodeEdgeFvIter.rowKey(), newNodeEdgeFvIter.colKey())
+                    .subtract(newNodeEdgeFvIter.value());
         }
     }
 
+    private FeatureVector getOrCreateNodeVector(int nodeKey) {
+        FeatureVector thisFv = nodeFv.get(nodeKey);
+        if (thisFv == null) {
+            thisFv = newFeatureVector();
+            nodeFv.put(nodeKey, thisFv);
+        }
+        return thisFv;
+    }
+
+    private FeatureVector getOrCreateEdgeVector(int edgeEnd, int edgeFrom) {
+        FeatureVector thisFv = edgeFv.get(edgeEnd, edgeFrom);
+        if (thisFv == null) {
+            thisFv = newFeatureVector();
+            edgeFv.put(edgeEnd, edgeFrom, thisFv);
+        }
+        return thisFv;
+    }
+
     public FeatureVector getFeatureVectorAtClass(int classIndex) {
         return nodeFv.get(classIndex);
     }
@@ -172,9 +190,6 @@ public class GraphFeatureVector implements Serializable {
     public GraphFeatureVector nodeOnlyDiff(GraphFeatureVector minusVector) {
         GraphFeatureVector resultVector = new GraphFeatureVector(classAlphabet, featureAlphabet);
 
-        TIntSet classesUsed = new TIntHashSet();
-        FeatureVector zeroVector = newFeatureVector();
-
         for (TIntObjectIterator<FeatureVector> minusIter = minusVector.nodeFvIter(); minusIter.hasNext(); ) {
             minusIter.advance();
             int classIndex = minusIter.key();
@@ -183,19 +198,18 @@ public class GraphFeatureVector implements Serializable {
             if (thisVectorAtClass != null) {
                 thisVectorAtClass.diff(minusIter.value(), resultVectorAtClass);
             } else {
-                zeroVector.diff(minusIter.value(), resultVectorAtClass);
+                resultVectorAtClass.subtract(minusIter.value());
             }
-            resultVector.extend(resultVectorAtClass, classIndex);
-            classesUsed.add(classIndex);
+            resultVector.nodeFv.put(classIndex, resultVectorAtClass);
         }
 
         for (TIntObjectIterator<FeatureVector> iter = nodeFvIter(); iter.hasNext(); ) {
             iter.advance();
             int classIndex = iter.key();
-            if (!classesUsed.contains(classIndex)) {
+            if (!minusVector.nodeFv.containsKey(classIndex)) {
                 FeatureVector resultVectorAtClass = newFeatureVector();
                 resultVectorAtClass.extend(iter.value());
-                resultVector.extend(resultVectorAtClass, classIndex);
+                resultVector.nodeFv.put(classIndex, resultVectorAtClass);
             }
         }
 
@@ -233,9 +247,9 @@ public class GraphFeatureVector implements Serializable {
             l2Sq += fv.dotProd(fv);
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> iter = edgeFvIter(); iter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> cell = iter.next();
-            FeatureVector fv = cell.getValue();
+        for (TIntIntObjectIterator<FeatureVector> iter = edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            FeatureVector fv = iter.value();
             l2Sq += fv.dotProd(fv);
         }
 
@@ -269,14 +283,33 @@ public class GraphFeatureVector implements Serializable {
     public String readableEdgeVector() {
         StringBuilder sb = new StringBuilder();
         sb.append("Edge Vector:");
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> iter = edgeFvIter(); iter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> cell = iter.next();
-            sb.append("\n###### Feature at class ").append(classAlphabet.getClassName(cell.getRowKey())).append(" <- " +
-                    "").append(classAlphabet.getClassName(cell.getColumnKey())).append("\n");
-            sb.append(cell.getValue().readableString());
+        for (TIntIntObjectIterator<FeatureVector> iter = edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            sb.append("\n###### Feature at class ").append(classAlphabet.getClassName(iter.rowKey())).append(" <- " +
+                    "").append(classAlphabet.getClassName(iter.colKey())).append("\n");
+            sb.append(iter.value().readableString());
             sb.append("\n");
         }
         return sb.toString();
     }
 
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        nodeFv = (TIntObjectMap<FeatureVector>) fields.get("nodeFv", null);
+        featureAlphabet = (FeatureAlphabet) fields.get("featureAlphabet", null);
+        classAlphabet = (ClassAlphabet) fields.get("classAlphabet", null);
+
+        Object edges = fields.get("edgeFv", null);
+        if (edges instanceof Table) {
+            // Vectors written before the primitive table, the edges are stored in a Guava table.
+            edgeFv = new TIntIntObjectHashTable<>();
+            for (Table.Cell<Integer, Integer, FeatureVector> cell :
+                    ((Table<Integer, Integer, FeatureVector>) edges).cellSet()) {
+                edgeFv.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+            }
+        } else {
+            edgeFv = (TIntIntObjectHashTable<FeatureVector>) edges;
+        }
+    }
 }
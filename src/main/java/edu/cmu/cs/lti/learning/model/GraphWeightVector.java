@@ -1,9 +1,12 @@
 package edu.cmu.cs.lti.learning.model;
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable;
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable.TIntIntObjectIterator;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import org.apache.commons.lang3.SerializationUtils;
 import org.javatuples.Pair;
@@ -12,7 +15,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.Iterator;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -31,6 +41,9 @@ public class GraphWeightVector implements Serializable {
     private TIntObjectMap<AveragedWeightVector> nodeWeights;
 
     // <Current Key, Previous Key, Vector>
+    private TIntIntObjectHashTable<AveragedWeightVector> edgeWeightTable;
+
+    // Edge weights of models serialized before edgeWeightTable is introduced, only read for migration.
     private Table<Integer, Integer, AveragedWeightVector> edgeWeights;
 
     private final ClassAlphabet classAlphabet;
@@ -43,54 +56,245 @@ public class GraphWeightVector implements Serializable {
 
     private int averageUpdateCount;
 
+    // Whether the weight vectors only settle the average sums for updated features, see
+    // HashBasedAveragedWeightVector.
+    private final boolean lazyAverage;
+
+    // Whether node weights are stored in arrays spanning the full feature space, see ArrayBasedAveragedWeightVector.
+    private final boolean denseNodeWeights;
+
+    // Whether updates are done without the global lock, see createConcurrent().
+    private final boolean concurrent;
+
+    // Lock-free views of the node and edge weights, indexed by class indices. A new array is published whenever a
+    // vector is added, so the views always hold all the vectors, and a key missing from them has no vector. Readers
+    // never need the lock.
+    private transient volatile AveragedWeightVector[] nodeWeightLookup;
+
+    // Indexed by [current key][previous key].
+    private transient volatile AveragedWeightVector[][] edgeWeightLookup;
+
+    // In concurrent mode, the average update count shared by all the vectors, so that it is advanced without
+    // visiting them.
+    private AtomicInteger averageClock;
+
     public GraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec) {
+        this(classAlphabet, featureAlphabet, featureSpec, false);
+    }
+
+    /**
+     * Create a graph weight vector with a chosen averaging strategy.
+     *
+     * @param classAlphabet   The class alphabet.
+     * @param featureAlphabet The feature alphabet.
+     * @param featureSpec     Specification of the feature extractors.
+     * @param lazyAverage     If true, updating the average weights only costs time proportional to the features
+     *                        updated since, instead of the full model size. The resulting averages are the same.
+     */
+    public GraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec,
+                             boolean lazyAverage) {
+        this(classAlphabet, featureAlphabet, featureSpec, lazyAverage, false);
+    }
+
+    /**
+     * Create a graph weight vector, with the option to store node weights in dense arrays. Dense node weights make
+     * weight lookup a direct array read, but each class takes memory proportional to the alphabet size, so it only
+     * works with alphabets of fixed size. Edge weights are always stored sparsely, because there are quadratically
+     * many of them and their features are usually few. Dense vectors always average lazily.
+     *
+     * @param classAlphabet    The class alphabet.
+     * @param featureAlphabet  The feature alphabet.
+     * @param featureSpec      Specification of the feature extractors.
+     * @param lazyAverage      Whether the sparse weight vectors average lazily.
+     * @param denseNodeWeights Whether to store node weights in dense arrays.
+     */
+    public GraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec,
+                             boolean lazyAverage, boolean denseNodeWeights) {
+        this(classAlphabet, featureAlphabet, featureSpec, lazyAverage, denseNodeWeights, false);
+    }
+
+    /**
+     * Create a graph weight vector for Hogwild-style parallel training. Weights are updated atomically without any
+     * lock, and scoring never takes a lock once the vector is created. Node weights are dense if the alphabet has a
+     * fixed size, edge weights are sparse. All vectors average lazily with a shared clock, so
+     * {@link #updateAverageWeights()} is a single atomic increment.
+     * <p>
+     * Updates from different threads may interleave, i.e. a thread could score with a model partially updated by
+     * another thread. Models written during training (e.g. by {@link #write(File)}) are likewise snapshots that may
+     * contain partial updates.
+     *
+     * @param classAlphabet   The class alphabet.
+     * @param featureAlphabet The feature alphabet.
+     * @param featureSpec     Specification of the feature extractors.
+     * @return A weight vector supporting concurrent training.
+     */
+    public static GraphWeightVector createConcurrent(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet,
+                                                     String featureSpec) {
+        return new GraphWeightVector(classAlphabet, featureAlphabet, featureSpec, true,
+                featureAlphabet.isFixedSize(), true);
+    }
+
+    private GraphWeightVector(ClassAlphabet classAlphabet, FeatureAlphabet featureAlphabet, String featureSpec,
+                              boolean lazyAverage, boolean denseNodeWeights, boolean concurrent) {
+        if (denseNodeWeights && !featureAlphabet.isFixedSize()) {
+            throw new IllegalArgumentException("Dense node weights require a feature alphabet with fixed size.");
+        }
+
         nodeWeights = new TIntObjectHashMap<>();
-        edgeWeights = HashBasedTable.create();
+        edgeWeightTable = new TIntIntObjectHashTable<>();
 
         this.featureAlphabet = featureAlphabet;
         this.classAlphabet = classAlphabet;
         this.featureSpec = featureSpec;
+        this.lazyAverage = lazyAverage;
+        this.denseNodeWeights = denseNodeWeights;
+        this.concurrent = concurrent;
+
+        if (concurrent) {
+            averageClock = new AtomicInteger();
+        }
 
         averageUpdateCount = 0;
     }
 
     private AveragedWeightVector newWeightVector() {
-        return new HashBasedAveragedWeightVector(averageUpdateCount);
+        if (concurrent) {
+            return new ConcurrentHashAveragedWeightVector(averageClock);
+        }
+        return new HashBasedAveragedWeightVector(averageUpdateCount, lazyAverage);
+    }
+
+    private AveragedWeightVector newNodeWeightVector() {
+        if (concurrent) {
+            return denseNodeWeights ? new ConcurrentArrayAveragedWeightVector(featureAlphabet.getAlphabetSize(),
+                    averageClock) : newWeightVector();
+        }
+        if (denseNodeWeights) {
+            return new ArrayBasedAveragedWeightVector(featureAlphabet.getAlphabetSize(), averageUpdateCount);
+        }
+        return newWeightVector();
     }
 
 
     public AveragedWeightVector getNodeWeights(String className) {
-        return nodeWeights.get(classAlphabet.getClassIndex(className));
+        return getNodeWeights(classAlphabet.getClassIndex(className));
     }
 
+    /**
+     * @return The node weights of the class, or null if the class has no weights yet.
+     */
     public AveragedWeightVector getNodeWeights(int classIndex) {
-        return nodeWeights.get(classIndex);
+        return lookupNodeWeights(classIndex);
     }
 
+    /**
+     * @return The edge weights, or null if the edge has no weights yet.
+     */
     public AveragedWeightVector getEdgeWeights(int currentKey, int previousKey) {
-        return edgeWeights.get(currentKey, previousKey);
+        return lookupEdgeWeights(currentKey, previousKey);
     }
 
-    private synchronized AveragedWeightVector getOrCreateNodeWeights(int classIndex) {
-        if (nodeWeights.containsKey(classIndex)) {
-            return nodeWeights.get(classIndex);
-        } else {
-            AveragedWeightVector v = newWeightVector();
-            nodeWeights.put(classIndex, v);
-            return v;
+    private AveragedWeightVector getOrCreateNodeWeights(int classIndex) {
+        AveragedWeightVector v = lookupNodeWeights(classIndex);
+        return v != null ? v : createNodeWeights(classIndex);
+    }
+
+    private AveragedWeightVector getOrCreateEdgeWeights(int currentKey, int previousKey) {
+        AveragedWeightVector v = lookupEdgeWeights(currentKey, previousKey);
+        return v != null ? v : createEdgeWeights(currentKey, previousKey);
+    }
+
+    private AveragedWeightVector lookupNodeWeights(int classIndex) {
+        AveragedWeightVector[] lookup = nodeWeightLookup;
+        if (lookup != null && classIndex >= 0 && classIndex < lookup.length) {
+            return lookup[classIndex];
         }
+        return null;
     }
 
-    private synchronized AveragedWeightVector getOrCreateEdgeWeights(int currentKey, int previousKey) {
-        if (edgeWeights.contains(currentKey, previousKey)) {
-            return edgeWeights.get(currentKey, previousKey);
-        } else {
-            AveragedWeightVector v = newWeightVector();
-            edgeWeights.put(currentKey, previousKey, v);
-            return v;
+    private AveragedWeightVector lookupEdgeWeights(int currentKey, int previousKey) {
+        AveragedWeightVector[][] lookup = edgeWeightLookup;
+        if (lookup != null && currentKey >= 0 && currentKey < lookup.length) {
+            AveragedWeightVector[] row = lookup[currentKey];
+            if (row != null && previousKey >= 0 && previousKey < row.length) {
+                return row[previousKey];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create the node weights unless another thread just did, and publish it to the lookup array.
+     */
+    private synchronized AveragedWeightVector createNodeWeights(int classIndex) {
+        AveragedWeightVector v = nodeWeights.get(classIndex);
+        if (v == null) {
+            v = newNodeWeightVector();
+            putNodeWeights(classIndex, v);
+        }
+        return v;
+    }
+
+    /**
+     * Create the edge weights unless another thread just did, and publish it to the lookup array.
+     */
+    private synchronized AveragedWeightVector createEdgeWeights(int currentKey, int previousKey) {
+        AveragedWeightVector v = edgeWeightTable.get(currentKey, previousKey);
+        if (v == null) {
+            v = newWeightVector();
+            putEdgeWeights(currentKey, previousKey, v);
+        }
+        return v;
+    }
+
+    /**
+     * Add node weights, when holding the lock or before the vector is shared. A negative key is rejected before the
+     * map or the lookup array is changed.
+     */
+    private void putNodeWeights(int classIndex, AveragedWeightVector v) {
+        checkKey(classIndex);
+        nodeWeights.put(classIndex, v);
+        publishNodeWeights(classIndex, v);
+    }
+
+    /**
+     * Add edge weights, when holding the lock or before the vector is shared. Negative keys are rejected before the
+     * table or the lookup arrays are changed.
+     */
+    private void putEdgeWeights(int currentKey, int previousKey, AveragedWeightVector v) {
+        checkKey(currentKey);
+        checkKey(previousKey);
+        edgeWeightTable.put(currentKey, previousKey, v);
+        publishEdgeWeights(currentKey, previousKey, v);
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Weight keys must not be negative, got " + key);
         }
     }
 
+    private void publishNodeWeights(int classIndex, AveragedWeightVector v) {
+        AveragedWeightVector[] current = nodeWeightLookup;
+        int size = Math.max(classIndex + 1, classAlphabet.size());
+        AveragedWeightVector[] lookup = current == null ? new AveragedWeightVector[size] :
+                Arrays.copyOf(current, Math.max(size, current.length));
+        lookup[classIndex] = v;
+        nodeWeightLookup = lookup;
+    }
+
+    private void publishEdgeWeights(int currentKey, int previousKey, AveragedWeightVector v) {
+        AveragedWeightVector[][] current = edgeWeightLookup;
+        int size = Math.max(Math.max(currentKey, previousKey) + 1, classAlphabet.size());
+        AveragedWeightVector[][] lookup = current == null ? new AveragedWeightVector[size][] :
+                Arrays.copyOf(current, Math.max(size, current.length));
+        AveragedWeightVector[] row = lookup[currentKey];
+        row = row == null ? new AveragedWeightVector[size] : Arrays.copyOf(row, Math.max(size, row.length));
+        row[previousKey] = v;
+        lookup[currentKey] = row;
+        edgeWeightLookup = lookup;
+    }
+
     public Iterator<Pair<Integer, AveragedWeightVector>> nodeWeightIterator() {
         TIntObjectIterator<AveragedWeightVector> iter = nodeWeights.iterator();
 
@@ -109,7 +313,7 @@ public class GraphWeightVector implements Serializable {
     }
 
     public Iterator<Triplet<Integer, Integer, AveragedWeightVector>> edgeWeightIterator() {
-        Iterator<Table.Cell<Integer, Integer, AveragedWeightVector>> iter = edgeWeights.cellSet().iterator();
+        TIntIntObjectIterator<AveragedWeightVector> iter = edgeWeightTable.iterator();
 
         return new Iterator<Triplet<Integer, Integer, AveragedWeightVector>>() {
             @Override
@@ -119,33 +323,56 @@ public class GraphWeightVector implements Serializable {
 
             @Override
             public Triplet<Integer, Integer, AveragedWeightVector> next() {
-                Table.Cell<Integer, Integer, AveragedWeightVector> cell = iter.next();
-                return Triplet.with(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+                iter.advance();
+                return Triplet.with(iter.rowKey(), iter.colKey(), iter.value());
             }
         };
     }
 
-    public synchronized void updateWeightsBy(FeatureVector fv, int currentKey, double multiplier) {
+    public void updateWeightsBy(FeatureVector fv, int currentKey, double multiplier) {
         AveragedWeightVector weightVector = getOrCreateNodeWeights(currentKey);
-        weightVector.updateWeightsBy(fv, multiplier);
+        if (concurrent) {
+            weightVector.updateWeightsBy(fv, multiplier);
+        } else {
+            synchronized (this) {
+                weightVector.updateWeightsBy(fv, multiplier);
+            }
+        }
     }
 
-    public synchronized void updateWeightsBy(FeatureVector fv, int currentKey, int previousKey, double multiplier) {
+    public void updateWeightsBy(FeatureVector fv, int currentKey, int previousKey, double multiplier) {
 //        logger.debug("Updating features for " + classAlphabet.getClassName(currentKey) + " and " + classAlphabet
 //                .getClassName(previousKey) + " by " + multiplier);
 //        logger.debug(fv.readableString());
-        getOrCreateEdgeWeights(currentKey, previousKey).updateWeightsBy(fv, multiplier);
+        AveragedWeightVector weightVector = getOrCreateEdgeWeights(currentKey, previousKey);
+        if (concurrent) {
+            weightVector.updateWeightsBy(fv, multiplier);
+        } else {
+            synchronized (this) {
+                weightVector.updateWeightsBy(fv, multiplier);
+            }
+        }
+    }
+
+    public void updateWeightsBy(GraphFeatureVector updateVector, double multiplier) {
+        if (concurrent) {
+            updateAllWeightsBy(updateVector, multiplier);
+        } else {
+            synchronized (this) {
+                updateAllWeightsBy(updateVector, multiplier);
+            }
+        }
     }
 
-    public synchronized void updateWeightsBy(GraphFeatureVector updateVector, double multiplier) {
+    private void updateAllWeightsBy(GraphFeatureVector updateVector, double multiplier) {
         for (TIntObjectIterator<FeatureVector> iter = updateVector.nodeFvIter(); iter.hasNext(); ) {
             iter.advance();
             updateWeightsBy(iter.value(), iter.key(), multiplier);
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> iter = updateVector.edgeFvIter(); iter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> v = iter.next();
-            updateWeightsBy(v.getValue(), v.getRowKey(), v.getColumnKey(), multiplier);
+        for (TIntIntObjectIterator<FeatureVector> iter = updateVector.edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            updateWeightsBy(iter.value(), iter.rowKey(), iter.colKey(), multiplier);
         }
     }
 
@@ -165,9 +392,9 @@ public class GraphWeightVector implements Serializable {
             prod += dotProd(iter.value(), iter.key());
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> iter = fv.edgeFvIter(); iter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> cell = iter.next();
-            prod += dotProd(cell.getValue(), cell.getRowKey(), cell.getColumnKey());
+        for (TIntIntObjectIterator<FeatureVector> iter = fv.edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            prod += dotProd(iter.value(), iter.rowKey(), iter.colKey());
         }
 
         return prod;
@@ -175,11 +402,7 @@ public class GraphWeightVector implements Serializable {
 
     public double dotProd(FeatureVector fv, int currentKey, int previousKey) {
         AveragedWeightVector weights = getOrCreateEdgeWeights(currentKey, previousKey);
-        if (weights != null) {
-            return weights.dotProd(fv);
-        } else {
-            return 0;
-        }
+        return weights.dotProd(fv);
     }
 
     public double dotProdAver(FeatureVector fv, String classLabel) {
@@ -203,22 +426,90 @@ public class GraphWeightVector implements Serializable {
             prod += dotProdAver(iter.value(), iter.key());
         }
 
-        for (Iterator<Table.Cell<Integer, Integer, FeatureVector>> iter = fv.edgeFvIter(); iter.hasNext(); ) {
-            Table.Cell<Integer, Integer, FeatureVector> cell = iter.next();
-            prod += dotProdAver(cell.getValue(), cell.getRowKey(), cell.getColumnKey());
+        for (TIntIntObjectIterator<FeatureVector> iter = fv.edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            prod += dotProdAver(iter.value(), iter.rowKey(), iter.colKey());
         }
         return prod;
     }
 
+    /**
+     * Compute the node scores of all the classes with the averaged weights, i.e. out[c] = dotProdAver(fv, c), without
+     * locking and without creating vectors, classes without weights are scored 0.
+     * <p>
+     * With dense node weights, the features are the outer loop, so each feature is read once and its weights of all
+     * the classes are array reads. Otherwise each class is scored separately.
+     *
+     * @param fv  The feature vector.
+     * @param out The scores, indexed by class index, at least as long as the class alphabet.
+     */
+    public void scoreAllClassesAver(FeatureVector fv, double[] out) {
+        int numClasses = classAlphabet.size();
+        Arrays.fill(out, 0, numClasses, 0);
+        AveragedWeightVector[] lookup = nodeWeightLookup;
+        if (lookup == null) {
+            return;
+        }
+        int numVectors = Math.min(numClasses, lookup.length);
+        if (!denseNodeWeights) {
+            for (int classIndex = 0; classIndex < numVectors; classIndex++) {
+                AveragedWeightVector weights = lookup[classIndex];
+                if (weights != null) {
+                    out[classIndex] = weights.dotProdAver(fv);
+                }
+            }
+            return;
+        }
+        for (FeatureVector.FeatureIterator iter = fv.featureIterator(); iter.hasNext(); ) {
+            iter.next();
+            int featureIndex = iter.featureIndex();
+            double featureValue = iter.featureValue();
+            for (int classIndex = 0; classIndex < numVectors; classIndex++) {
+                AveragedWeightVector weights = lookup[classIndex];
+                if (weights != null) {
+                    out[classIndex] += weights.getAverageWeightAt(featureIndex) * featureValue;
+                }
+            }
+        }
+    }
+
     public double dotProdAverDebug(FeatureVector fv, String classLabel, Logger logger) {
         AveragedWeightVector weights = getOrCreateNodeWeights(classAlphabet.getClassIndex(classLabel));
         return weights.dotProdAverDebug(fv, logger);
     }
 
+    /**
+     * Write the model with Java serialization, which stores the averages instead of the sums. This vector is not
+     * changed. Java serialization needs the whole object, so a consolidated copy is built, but the vectors are copied
+     * one at a time, see {@link #readSettled(AveragedWeightVector)}, so training only waits for one vector. Prefer
+     * {@link #writeBinary(File)} for large models, which streams the vectors without the copy.
+     *
+     * @param outputFile The file to write to.
+     * @throws FileNotFoundException
+     */
     public void write(File outputFile) throws FileNotFoundException {
-        consolidate();
-        SerializationUtils.serialize(this, new FileOutputStream(outputFile));
-        deconsolidate();
+        GraphWeightVector consolidated = emptyCopy();
+        int count = getAverageUpdateCount();
+        consolidated.averageUpdateCount = count;
+        if (concurrent) {
+            consolidated.averageClock.set(count);
+        }
+        for (Triplet<Integer, Integer, AveragedWeightVector> key : listVectors()) {
+            SettledWeights settled = readSettled(key.getValue2());
+            boolean isNode = key.getValue1() < 0;
+            AveragedWeightVector v = isNode ? consolidated.newNodeWeightVector() : consolidated.newWeightVector();
+            for (int pos = 0; pos < settled.size; pos++) {
+                double average = settled.averages[pos];
+                v.loadWeight(settled.indices[pos], settled.weights[pos], count == 0 ? average : average * count);
+            }
+            v.consolidate();
+            if (isNode) {
+                consolidated.putNodeWeights(key.getValue0(), v);
+            } else {
+                consolidated.putEdgeWeights(key.getValue0(), key.getValue1(), v);
+            }
+        }
+        SerializationUtils.serialize(consolidated, new FileOutputStream(outputFile));
     }
 
     /**
@@ -235,6 +526,419 @@ public class GraphWeightVector implements Serializable {
         return wv;
     }
 
+    /**
+     * Write the model in the binary format of {@link BinaryModelFormat}, which is much faster to load than the Java
+     * serialization of {@link #write(File)}. The vectors are streamed to the file one at a time, see
+     * {@link #readSettled(AveragedWeightVector)}, so the model is neither copied nor changed, and training only
+     * waits for the reading of one vector.
+     *
+     * @param outputFile The file to write to.
+     * @throws IOException
+     */
+    public void writeBinary(File outputFile) throws IOException {
+        writeBinary(FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Write the model in the binary format to a channel, e.g. one that limits the write rate.
+     *
+     * @param channel The channel to write to, it is closed after writing.
+     * @throws IOException
+     */
+    public void writeBinary(WritableByteChannel channel) throws IOException {
+        try (BinaryModelFormat.Writer writer = new BinaryModelFormat.Writer(channel)) {
+            List<Triplet<Integer, Integer, AveragedWeightVector>> vectors = listVectors();
+            BinaryModelFormat.Header header = new BinaryModelFormat.Header();
+            header.flags = (lazyAverage ? BinaryModelFormat.lazyAverageFlag : 0)
+                    | (denseNodeWeights ? BinaryModelFormat.denseNodeWeightsFlag : 0)
+                    | (concurrent ? BinaryModelFormat.concurrentFlag : 0);
+            header.averageUpdateCount = getAverageUpdateCount();
+            header.featureSpec = featureSpec;
+            header.classAlphabet = classAlphabet;
+            header.featureAlphabet = featureAlphabet;
+            header.numBlocks = vectors.size();
+            writer.writeHeader(header);
+
+            for (Triplet<Integer, Integer, AveragedWeightVector> key : vectors) {
+                SettledWeights settled = readSettled(key.getValue2());
+                writer.writeVector(key.getValue0(), key.getValue1(), settled.indices, settled.weights,
+                        settled.averages, settled.size);
+            }
+        }
+    }
+
+    /**
+     * List the vectors from the lookup arrays, which hold all of them, without locking. Node weights come first,
+     * with -1 as the previous key.
+     */
+    private List<Triplet<Integer, Integer, AveragedWeightVector>> listVectors() {
+        List<Triplet<Integer, Integer, AveragedWeightVector>> vectors = new ArrayList<>();
+        AveragedWeightVector[] nodeLookup = nodeWeightLookup;
+        if (nodeLookup != null) {
+            for (int classIndex = 0; classIndex < nodeLookup.length; classIndex++) {
+                AveragedWeightVector v = nodeLookup[classIndex];
+                if (v != null) {
+                    vectors.add(Triplet.with(classIndex, -1, v));
+                }
+            }
+        }
+        AveragedWeightVector[][] edgeLookup = edgeWeightLookup;
+        if (edgeLookup != null) {
+            for (int currentKey = 0; currentKey < edgeLookup.length; currentKey++) {
+                AveragedWeightVector[] row = edgeLookup[currentKey];
+                if (row != null) {
+                    for (int previousKey = 0; previousKey < row.length; previousKey++) {
+                        AveragedWeightVector v = row[previousKey];
+                        if (v != null) {
+                            vectors.add(Triplet.with(currentKey, previousKey, v));
+                        }
+                    }
+                }
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Read the weights of one vector with their averages, without changing it. In the default mode, the lock is only
+     * held while reading this vector, so the vector is consistent with the average update count, but a model read
+     * during training may hold vectors from different updates. In the concurrent mode no lock is taken, and the
+     * weights may contain part of the concurrent updates, as any Hogwild read does.
+     *
+     * @param v The vector to read.
+     * @return The weights, sorted by feature index.
+     */
+    private SettledWeights readSettled(AveragedWeightVector v) {
+        SettledWeights settled = new SettledWeights();
+        if (concurrent) {
+            settled.read(v, averageClock.get());
+        } else {
+            synchronized (this) {
+                settled.read(v, averageUpdateCount);
+            }
+        }
+        settled.sortByIndex();
+        return settled;
+    }
+
+    /**
+     * The weights of one vector in parallel arrays, with the averages computed from the sums like consolidation does.
+     */
+    private static class SettledWeights {
+        int size;
+
+        int[] indices = new int[16];
+
+        double[] weights = new double[16];
+
+        double[] averages = new double[16];
+
+        void read(AveragedWeightVector v, int count) {
+            v.visitWeights((i, weight, averageSum) -> {
+                if (size == indices.length) {
+                    indices = Arrays.copyOf(indices, size * 2);
+                    weights = Arrays.copyOf(weights, size * 2);
+                    averages = Arrays.copyOf(averages, size * 2);
+                }
+                indices[size] = i;
+                weights[size] = weight;
+                averages[size] = count == 0 ? averageSum : averageSum / count;
+                size++;
+            });
+        }
+
+        void sortByIndex() {
+            // Sort the indices with their positions packed in the lower bits, then permute the values.
+            long[] keys = new long[size];
+            for (int pos = 0; pos < size; pos++) {
+                keys[pos] = ((long) indices[pos] << 32) | pos;
+            }
+            Arrays.sort(keys);
+            int[] sortedIndices = new int[size];
+            double[] sortedWeights = new double[size];
+            double[] sortedAverages = new double[size];
+            for (int pos = 0; pos < size; pos++) {
+                int from = (int) keys[pos];
+                sortedIndices[pos] = indices[from];
+                sortedWeights[pos] = weights[from];
+                sortedAverages[pos] = averages[from];
+            }
+            indices = sortedIndices;
+            weights = sortedWeights;
+            averages = sortedAverages;
+        }
+
+        /**
+         * @return The non-zero averaged weights as a frozen vector.
+         */
+        FrozenWeightVector freezeAverages() {
+            int numAveraged = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (averages[pos] != 0) {
+                    numAveraged++;
+                }
+            }
+            int[] frozenIndices = new int[numAveraged];
+            double[] frozenWeights = new double[numAveraged];
+            int frozenPos = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (averages[pos] != 0) {
+                    frozenIndices[frozenPos] = indices[pos];
+                    frozenWeights[frozenPos++] = averages[pos];
+                }
+            }
+            return new FrozenWeightVector(frozenIndices, frozenWeights);
+        }
+    }
+
+    /**
+     * Read a model written by {@link #writeBinary(File)}. The model file is memory mapped while loading, and the
+     * model is ready to resume training, like the one returned by {@link #read(File)}.
+     *
+     * @param inputFile The file to read from.
+     * @return The model.
+     * @throws IOException
+     */
+    public static GraphWeightVector readBinary(File inputFile) throws IOException {
+        try (BinaryModelFormat.Reader reader = new BinaryModelFormat.Reader(inputFile)) {
+            BinaryModelFormat.Header header = reader.readHeader();
+            if ((header.flags & BinaryModelFormat.averagedOnlyFlag) != 0) {
+                throw new IOException("The model file only contains averaged weights for inference, read it with " +
+                        "FrozenGraphWeightVector.readBinary.");
+            }
+            GraphWeightVector wv = new GraphWeightVector(header.classAlphabet, header.featureAlphabet,
+                    header.featureSpec, (header.flags & BinaryModelFormat.lazyAverageFlag) != 0,
+                    (header.flags & BinaryModelFormat.denseNodeWeightsFlag) != 0,
+                    (header.flags & BinaryModelFormat.concurrentFlag) != 0);
+
+            int count = header.averageUpdateCount;
+            wv.averageUpdateCount = count;
+            if (wv.concurrent) {
+                wv.averageClock.set(count);
+            }
+
+            for (int i = 0; i < header.numBlocks; i++) {
+                BinaryModelFormat.VectorBlock block = reader.readBlock();
+                AveragedWeightVector v;
+                if (block.isNode()) {
+                    v = wv.newNodeWeightVector();
+                    wv.putNodeWeights(block.currentKey, v);
+                } else {
+                    v = wv.newWeightVector();
+                    wv.putEdgeWeights(block.currentKey, block.previousKey, v);
+                }
+                loadBlock(v, block, count);
+            }
+            return wv;
+        }
+    }
+
+    /**
+     * Load the weights of a block to a new vector, the averages in the file are turned back to sums.
+     */
+    private static void loadBlock(AveragedWeightVector v, BinaryModelFormat.VectorBlock block, int count) {
+        int numAveraged = block.averaged.getFeatureSize();
+        int numWeights = block.weightIndices.limit();
+        int a = 0;
+        int w = 0;
+        // Merge the two sorted index lists.
+        while (a < numAveraged || w < numWeights) {
+            int averagedIndex = a < numAveraged ? block.averaged.indexAt(a) : Integer.MAX_VALUE;
+            int weightIndex = w < numWeights ? block.weightIndices.get(w) : Integer.MAX_VALUE;
+            int index = Math.min(averagedIndex, weightIndex);
+            double average = 0;
+            double weight = 0;
+            if (averagedIndex == index) {
+                average = block.averaged.valueAt(a++);
+            }
+            if (weightIndex == index) {
+                weight = block.weights.get(w++);
+            }
+            v.loadWeight(index, weight, count == 0 ? average : average * count);
+        }
+    }
+
+    /**
+     * @return An empty weight vector with the same alphabets and settings as this one.
+     */
+    public GraphWeightVector emptyCopy() {
+        return new GraphWeightVector(classAlphabet, featureAlphabet, featureSpec, lazyAverage, denseNodeWeights,
+                concurrent);
+    }
+
+    /**
+     * Copy the weights to a new vector, which can be trained or mixed independently of this one. The copy holds the
+     * lock of this vector, so in the default mode training waits for the whole copy, and the copy is consistent. In
+     * the concurrent mode training goes on, and the copy may contain part of the updates made meanwhile, as any
+     * Hogwild read does. Writing and freezing do not need a copy, they read the vectors one at a time.
+     *
+     * @return The copy.
+     */
+    public synchronized GraphWeightVector snapshot() {
+        GraphWeightVector copy = emptyCopy();
+        int count = getAverageUpdateCount();
+        copy.averageUpdateCount = count;
+        if (concurrent) {
+            copy.averageClock.set(count);
+        }
+
+        for (TIntObjectIterator<AveragedWeightVector> iter = nodeWeights.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (iter.value() != null) {
+                AveragedWeightVector v = copy.newNodeWeightVector();
+                iter.value().visitWeights(v::loadWeight);
+                copy.putNodeWeights(iter.key(), v);
+            }
+        }
+        for (TIntIntObjectIterator<AveragedWeightVector> iter = edgeWeightTable.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (iter.value() != null) {
+                AveragedWeightVector v = copy.newWeightVector();
+                iter.value().visitWeights(v::loadWeight);
+                copy.putEdgeWeights(iter.rowKey(), iter.colKey(), v);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Replace the weights of this vector by the mix of the given vectors, as in iterative parameter mixing. The raw
+     * weights are the mean of the raw weights of the sources. The averaged weights are the average over all the
+     * average updates of the sources, i.e. the averages of the sources weighted by their average update counts, and
+     * the average update count becomes the mean of the counts. Mixing a single source makes a copy of it.
+     * <p>
+     * The sources are only read, but none of them should be trained meanwhile. The vectors of each node and edge key
+     * are mixed in parallel by the executor.
+     *
+     * @param sources  The vectors to mix, with the same settings as this one.
+     * @param executor The executor to run the mixing of the keys.
+     */
+    public synchronized void mixFrom(List<GraphWeightVector> sources, ExecutorService executor) {
+        int numSources = sources.size();
+        long countSum = 0;
+        for (GraphWeightVector source : sources) {
+            countSum += source.getAverageUpdateCount();
+        }
+        int count = (int) Math.round((double) countSum / numSources);
+
+        nodeWeights = new TIntObjectHashMap<>();
+        edgeWeightTable = new TIntIntObjectHashTable<>();
+        nodeWeightLookup = null;
+        edgeWeightLookup = null;
+        averageUpdateCount = count;
+        if (concurrent) {
+            averageClock.set(count);
+        }
+
+        // Create the vectors of all the keys first, with the source vectors of each key, their average update counts
+        // and the weights of their averages. A source without any average update counts once, as its average is its
+        // weight.
+        Map<AveragedWeightVector, List<Triplet<AveragedWeightVector, Integer, Double>>> toMix = new HashMap<>();
+        for (GraphWeightVector source : sources) {
+            int sourceCount = source.getAverageUpdateCount();
+            double averageWeight = countSum == 0 ? 1.0 / numSources : (double) sourceCount / countSum;
+            for (Iterator<Pair<Integer, AveragedWeightVector>> iter = source.nodeWeightIterator(); iter.hasNext(); ) {
+                Pair<Integer, AveragedWeightVector> node = iter.next();
+                AveragedWeightVector v = nodeWeights.get(node.getValue0());
+                if (v == null) {
+                    v = newNodeWeightVector();
+                    putNodeWeights(node.getValue0(), v);
+                    toMix.put(v, new ArrayList<>());
+                }
+                toMix.get(v).add(Triplet.with(node.getValue1(), sourceCount, averageWeight));
+            }
+            for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = source.edgeWeightIterator();
+                 iter.hasNext(); ) {
+                Triplet<Integer, Integer, AveragedWeightVector> edge = iter.next();
+                AveragedWeightVector v = edgeWeightTable.get(edge.getValue0(), edge.getValue1());
+                if (v == null) {
+                    v = newWeightVector();
+                    putEdgeWeights(edge.getValue0(), edge.getValue1(), v);
+                    toMix.put(v, new ArrayList<>());
+                }
+                toMix.get(v).add(Triplet.with(edge.getValue2(), sourceCount, averageWeight));
+            }
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<AveragedWeightVector, List<Triplet<AveragedWeightVector, Integer, Double>>> entry :
+                toMix.entrySet()) {
+            futures.add(executor.submit(() -> mixVector(entry.getKey(), entry.getValue(), numSources, count)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Mix the vectors of the same key into the target, sources missing the key count as zero.
+     */
+    private static void mixVector(AveragedWeightVector target,
+                                  List<Triplet<AveragedWeightVector, Integer, Double>> vectors, int numSources,
+                                  int count) {
+        TIntDoubleHashMap weightSums = new TIntDoubleHashMap();
+        TIntDoubleHashMap averages = new TIntDoubleHashMap();
+        for (Triplet<AveragedWeightVector, Integer, Double> source : vectors) {
+            int sourceCount = source.getValue1();
+            double averageWeight = source.getValue2();
+            source.getValue0().visitWeights((i, weight, averageSum) -> {
+                weightSums.adjustOrPutValue(i, weight, weight);
+                double average = (sourceCount == 0 ? averageSum : averageSum / sourceCount) * averageWeight;
+                averages.adjustOrPutValue(i, average, average);
+            });
+        }
+
+        for (TIntDoubleIterator iter = averages.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            double average = iter.value();
+            target.loadWeight(iter.key(), weightSums.get(iter.key()) / numSources,
+                    count == 0 ? average : average * count);
+        }
+    }
+
+    int getAverageUpdateCount() {
+        return concurrent ? averageClock.get() : averageUpdateCount;
+    }
+
+    /**
+     * Create a read-only inference model with the current averaged weights. The frozen model does not change with
+     * further training of this one.
+     *
+     * @return The frozen model.
+     */
+    public FrozenGraphWeightVector freeze() {
+        return freeze(WeightPrecision.DOUBLE);
+    }
+
+    /**
+     * Create a read-only inference model with the current averaged weights stored in the given precision. The vectors
+     * are read one at a time, see {@link #readSettled(AveragedWeightVector)}, and each is converted to the precision
+     * right away, so the full precision model is never copied.
+     *
+     * @param precision The storage precision of the weights.
+     * @return The frozen model.
+     */
+    public FrozenGraphWeightVector freeze(WeightPrecision precision) {
+        FrozenGraphWeightVector.Builder builder = new FrozenGraphWeightVector.Builder();
+        for (Triplet<Integer, Integer, AveragedWeightVector> key : listVectors()) {
+            FrozenWeightVector frozen = readSettled(key.getValue2()).freezeAverages().withPrecision(precision);
+            if (key.getValue1() < 0) {
+                builder.addNode(key.getValue0(), frozen);
+            } else {
+                builder.addEdge(key.getValue0(), key.getValue1(), frozen);
+            }
+        }
+        return builder.build(classAlphabet, featureAlphabet, featureSpec);
+    }
+
     protected synchronized void consolidate() {
         logger.info("Consolidating graph weights.");
         applyToAll(AveragedWeightVector::consolidate);
@@ -252,7 +956,7 @@ public class GraphWeightVector implements Serializable {
             }
         }
 
-        for (AveragedWeightVector edgeWeightVector : edgeWeights.values()) {
+        for (AveragedWeightVector edgeWeightVector : edgeWeightTable.values()) {
             if (edgeWeightVector != null) {
                 oper.accept(edgeWeightVector);
             }
@@ -272,11 +976,47 @@ public class GraphWeightVector implements Serializable {
     }
 
     public void updateAverageWeights() {
-        applyToAll(AveragedWeightVector::updateAverageWeight);
-        averageUpdateCount++;
+        if (concurrent) {
+            // All vectors share the clock.
+            averageClock.incrementAndGet();
+        } else {
+            synchronized (this) {
+                applyToAll(AveragedWeightVector::updateAverageWeight);
+                averageUpdateCount++;
+            }
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
     }
 
+
     public String getFeatureSpec() {
         return featureSpec;
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (edgeWeights != null) {
+            // Migrate the edge weights from the old table format.
+            edgeWeightTable = new TIntIntObjectHashTable<>();
+            for (Table.Cell<Integer, Integer, AveragedWeightVector> cell : edgeWeights.cellSet()) {
+                edgeWeightTable.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+            }
+            edgeWeights = null;
+        }
+        for (TIntObjectIterator<AveragedWeightVector> iter = nodeWeights.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (iter.value() != null) {
+                publishNodeWeights(iter.key(), iter.value());
+            }
+        }
+        for (TIntIntObjectIterator<AveragedWeightVector> iter = edgeWeightTable.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (iter.value() != null) {
+                publishEdgeWeights(iter.rowKey(), iter.colKey(), iter.value());
+            }
+        }
+    }
 }
@@ -1,32 +1,57 @@
 package edu.cmu.cs.lti.learning.model;
 
-import com.google.common.base.Charsets;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-import gnu.trove.TCollections;
+import edu.cmu.cs.lti.utils.HyperLogLog;
+import edu.cmu.cs.lti.utils.MurmurHash3;
+import gnu.trove.iterator.TObjectIntIterator;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * A hash based implementation of the feature alphabet. Because the use of hashing, the lookup of feature index is
- * easily thread-safe. Feature counters are made thread-safe by employing synchronized Trove maps.
+ * easily thread-safe. Feature counters are made thread-safe by lock striping: the buckets are guarded by a fixed
+ * number of locks, so threads recording different buckets rarely wait for each other. To further reduce the cost of
+ * recording, only a sample of the lookups can be recorded, and the number of names recorded per bucket can be
+ * limited.
+ * <p>
+ * Without storing the names, the alphabet can still estimate the number of distinct features and their collision
+ * rate, by a HyperLogLog sketch of the full 32 bit hash values updated at every lookup. This costs a fixed 64KB and
+ * one register read per lookup, so it can be kept on during training, and used to choose the alphabet bits from data
+ * (see {@link #suggestAlphabetBits(double)}).
  *
  * @author Zhengzhong Liu
  */
 public class HashAlphabet extends FeatureAlphabet {
     private static final long serialVersionUID = 8684276781666018103L;
 
-    private final HashFunction hasher = Hashing.murmur3_32();
+    // Number of locks guarding the feature counters, must be a power of 2.
+    private static final int numLockStripes = 256;
 
     private final TObjectIntMap<String>[] featureCounters;
 
     private final boolean storeReadable;
 
+    // Record one in every sampleRate lookups, 1 means recording all lookups.
+    private int sampleRate;
+
+    // Maximum number of distinct names recorded in one bucket, names beyond are not recorded.
+    private int maxNamesPerBucket;
+
+    private transient Object[] locks;
+
     private final int alphabetSize;
 
     private final int hashMask;
 
+    // Precision of the distinct feature sketch, it has 2^14 registers, with about 0.8% standard error.
+    private static final int sketchPrecision = 14;
+
+    // Sketch of the distinct features, null if not estimating, or for alphabets written before it is supported.
+    private final HyperLogLog featureSketch;
+
     /**
      * Create a alphabet that also stores all feature names to integer id count. This will make the training about
      * 25% slower.
@@ -36,7 +61,38 @@ public class HashAlphabet extends FeatureAlphabet {
      *                      count. This will make the training about25% slower.
      */
     public HashAlphabet(int alphabetBits, boolean storeReadable) {
+        this(alphabetBits, storeReadable, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a alphabet that can store a sample of feature names, which reduce the cost of storing readable names.
+     *
+     * @param alphabetBits      The power of 2 of this is the alphabet size, i.e. number of bits for feature.
+     * @param storeReadable     Whether to store feature names to integer id count.
+     * @param sampleRate        Only one in every sampleRate lookups is recorded, the counts are then sampled counts.
+     * @param maxNamesPerBucket Only the first maxNamesPerBucket distinct names of a feature id are recorded.
+     */
+    public HashAlphabet(int alphabetBits, boolean storeReadable, int sampleRate, int maxNamesPerBucket) {
+        this(alphabetBits, storeReadable, sampleRate, maxNamesPerBucket, false);
+    }
+
+    /**
+     * Create a alphabet that can also estimate the number of distinct features and their collisions, which does not
+     * require storing the names.
+     *
+     * @param alphabetBits       The power of 2 of this is the alphabet size, i.e. number of bits for feature.
+     * @param storeReadable      Whether to store feature names to integer id count.
+     * @param sampleRate         Only one in every sampleRate lookups is recorded, the counts are then sampled counts.
+     * @param maxNamesPerBucket  Only the first maxNamesPerBucket distinct names of a feature id are recorded.
+     * @param estimateCollisions Whether to sketch the distinct features to estimate the collisions, every lookup is
+     *                           sketched regardless of the sample rate.
+     */
+    public HashAlphabet(int alphabetBits, boolean storeReadable, int sampleRate, int maxNamesPerBucket,
+                        boolean estimateCollisions) {
         super();
+        if (sampleRate < 1 || maxNamesPerBucket < 1) {
+            throw new IllegalArgumentException("Sample rate and maximum names per bucket must be positive.");
+        }
         if (alphabetBits >= 31) {
             throw new IllegalArgumentException("Alphabet size exceed the power of current Murmur");
         }
@@ -44,56 +100,104 @@ public class HashAlphabet extends FeatureAlphabet {
         int alphabetSize = (int) Math.pow(2, alphabetBits);
 
         this.storeReadable = storeReadable;
+        this.sampleRate = sampleRate;
+        this.maxNamesPerBucket = maxNamesPerBucket;
         this.alphabetSize = alphabetSize;
         this.hashMask = alphabetSize - 1;
         logger.info(String.format("Feature Alphabet initialized with size %d", alphabetSize));
         logger.info(String.format("Feature Mask is %s", Integer.toBinaryString(hashMask)));
 
         featureCounters = new TObjectIntMap[alphabetSize];
+        featureSketch = estimateCollisions ? new HyperLogLog(sketchPrecision) : null;
+        createLocks();
         if (storeReadable) {
             logger.info("Alphabet will store feature name to hash value mappings. " +
                     "This may take additional memory and make the process slower.");
         }
     }
 
-    private int hash(String feature) {
-        int hashVal = plainHash(feature);
+    private void createLocks() {
+        locks = new Object[numLockStripes];
+        for (int i = 0; i < numLockStripes; i++) {
+            locks[i] = new Object();
+        }
+    }
 
-        if (storeReadable) {
+    private Object lockOf(int featureIndex) {
+        return locks[featureIndex & (numLockStripes - 1)];
+    }
+
+    private int hash(CharSequence feature) {
+        // It is murmur32 of the UTF-8 bytes, which can produce a maximum 4 byte element.
+        int fullHash = MurmurHash3.murmur3_32Utf8(feature);
+        if (featureSketch != null) {
+            featureSketch.offer(fullHash);
+        }
+        int hashVal = fullHash & hashMask;
+
+        if (storeReadable && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            record(hashVal, feature.toString());
+        }
+        return hashVal;
+    }
+
+    private void record(int hashVal, String feature) {
+        synchronized (lockOf(hashVal)) {
             TObjectIntMap<String> counter = featureCounters[hashVal];
             if (counter == null) {
-                counter = TCollections.synchronizedMap(new TObjectIntHashMap());
+                counter = new TObjectIntHashMap<>();
                 featureCounters[hashVal] = counter;
             }
-            counter.adjustOrPutValue("[" + feature + "]", 1, 1);
+            if (counter.size() < maxNamesPerBucket || counter.containsKey(feature)) {
+                counter.adjustOrPutValue(feature, 1, 1);
+            }
         }
-        return hashVal;
-    }
-
-    private int plainHash(String feature) {
-        // It is murmur32, which can produce a maximum 4 byte element.
-        return hasher.hashString(feature, Charsets.UTF_8).asInt() & hashMask;
     }
 
     public String getMappedFeatureCounters(int featureIndex) {
         if (storeReadable) {
-            TObjectIntMap counter = featureCounters[featureIndex];
-            if (counter == null) {
-                return null;
+            synchronized (lockOf(featureIndex)) {
+                TObjectIntMap<String> counter = featureCounters[featureIndex];
+                if (counter == null) {
+                    return null;
+                }
+                // Names are bracketed so that the boundaries are visible.
+                StringBuilder sb = new StringBuilder("{");
+                for (TObjectIntIterator<String> iter = counter.iterator(); iter.hasNext(); ) {
+                    iter.advance();
+                    if (sb.length() > 1) {
+                        sb.append(",");
+                    }
+                    sb.append("[").append(iter.key()).append("]=").append(iter.value());
+                }
+                return sb.append("}").toString();
             }
-            return counter.toString();
         } else {
             return "<UNSAVED>";
         }
     }
 
+    /**
+     * Whether any name is recorded for the feature index, without building the names.
+     */
+    public boolean hasMappedFeatureNames(int featureIndex) {
+        if (storeReadable) {
+            synchronized (lockOf(featureIndex)) {
+                return featureCounters[featureIndex] != null;
+            }
+        }
+        return false;
+    }
+
     private String[] getMappedFeatureNames(int featureIndex) {
         if (storeReadable) {
-            TObjectIntMap<String> counter = featureCounters[featureIndex];
-            if (featureCounters[featureIndex] == null) {
-                return null;
+            synchronized (lockOf(featureIndex)) {
+                TObjectIntMap<String> counter = featureCounters[featureIndex];
+                if (counter == null) {
+                    return null;
+                }
+                return counter.keys(new String[counter.size()]);
             }
-            return counter.keys(new String[counter.size()]);
         } else {
             return null;
         }
@@ -101,30 +205,133 @@ public class HashAlphabet extends FeatureAlphabet {
 
     public void computeConflictRates() {
         if (storeReadable) {
-            int actualFeatures = 0;
-            int occupied = 0;
-            for (TObjectIntMap featureCounter : featureCounters) {
+            int[] counts = countRecordedNames();
+            logger.info(String.format("Actual features : %d, actual occupied,: %d, alphabet size : %d",
+                    counts[0], counts[1], alphabetSize));
+        } else if (isEstimateCollisions()) {
+            double features = estimateDistinctFeatures();
+            logger.info(String.format("Estimated features : %.0f, features per bucket : %.4f, collision rate : " +
+                    "%.4f, alphabet size : %d", features, features / alphabetSize, estimateCollisionRate(),
+                    alphabetSize));
+        } else {
+            throw new NotImplementedException();
+        }
+    }
+
+    /**
+     * Count the recorded names, the buckets with any name, and the buckets with more than one name, i.e. the buckets
+     * where the recorded names collide.
+     *
+     * @return The three counts, or null if the names are not stored.
+     */
+    public int[] countRecordedNames() {
+        if (!storeReadable) {
+            return null;
+        }
+        int actualFeatures = 0;
+        int occupied = 0;
+        int collided = 0;
+        for (int featureIndex = 0; featureIndex < alphabetSize; featureIndex++) {
+            synchronized (lockOf(featureIndex)) {
+                TObjectIntMap featureCounter = featureCounters[featureIndex];
                 if (featureCounter != null) {
                     actualFeatures += featureCounter.size();
                     occupied += 1;
+                    if (featureCounter.size() > 1) {
+                        collided += 1;
+                    }
                 }
             }
-            logger.info(String.format("Actual features : %d, actual occupied,: %d, alphabet size : %d",
-                    actualFeatures, occupied, alphabetSize));
-        } else {
-            throw new NotImplementedException();
         }
+        return new int[]{actualFeatures, occupied, collided};
+    }
+
+    /**
+     * @return Whether the distinct features are sketched, i.e. the estimates of the collisions are available.
+     */
+    public boolean isEstimateCollisions() {
+        return featureSketch != null;
+    }
+
+    /**
+     * Estimate the number of distinct features looked up so far, from the sketch of their full 32 bit hash values.
+     */
+    public double estimateDistinctFeatures() {
+        if (featureSketch == null) {
+            throw new IllegalStateException("This alphabet does not estimate collisions.");
+        }
+        return featureSketch.estimate();
+    }
+
+    /**
+     * Estimate the fraction of the distinct features that share their bucket with another feature, assuming uniform
+     * hashing.
+     */
+    public double estimateCollisionRate() {
+        return expectedCollisionRate(estimateDistinctFeatures(), alphabetSize);
+    }
+
+    /**
+     * Suggest the alphabet bits for the features seen so far.
+     *
+     * @param maxCollisionRate The largest acceptable fraction of features sharing a bucket.
+     * @return The smallest bits with a collision rate below the limit, capped at 30.
+     */
+    public int suggestAlphabetBits(double maxCollisionRate) {
+        return suggestAlphabetBits(estimateDistinctFeatures(), maxCollisionRate);
+    }
+
+    /**
+     * Suggest the alphabet bits for a number of distinct features.
+     *
+     * @param numFeatures      The number of distinct features.
+     * @param maxCollisionRate The largest acceptable fraction of features sharing a bucket.
+     * @return The smallest bits with a collision rate below the limit, capped at 30.
+     */
+    public static int suggestAlphabetBits(double numFeatures, double maxCollisionRate) {
+        int bits = 1;
+        while (bits < 30 && expectedCollisionRate(numFeatures, 1 << bits) > maxCollisionRate) {
+            bits++;
+        }
+        return bits;
+    }
+
+    /**
+     * The probability that a feature shares its bucket with any of the other n - 1 features, among m buckets, which
+     * is 1 - (1 - 1/m)^(n - 1).
+     */
+    private static double expectedCollisionRate(double numFeatures, int alphabetSize) {
+        if (numFeatures <= 1) {
+            return 0;
+        }
+        return -Math.expm1((numFeatures - 1) * Math.log1p(-1.0 / alphabetSize));
     }
 
     public boolean isStoreReadable() {
         return storeReadable;
     }
 
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getMaxNamesPerBucket() {
+        return maxNamesPerBucket;
+    }
+
     @Override
     public int getFeatureId(String featureName) {
         return hash(featureName);
     }
 
+    /**
+     * Hash the feature name without allocation, the name is only copied when it is recorded as readable.
+     */
+    @Override
+    public int getFeatureId(CharSequence featureName) {
+        return hash(featureName);
+    }
+
     @Override
     public String[] getFeatureNames(int featureIndex) {
         return getMappedFeatureNames(featureIndex);
@@ -143,4 +350,36 @@ public class HashAlphabet extends FeatureAlphabet {
     public int getAlphabetSize() {
         return alphabetSize;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isFixedSize() {
+        return true;
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        createLocks();
+
+        if (sampleRate == 0) {
+            // Alphabets written before sampling is supported record all names, in synchronized maps with bracketed
+            // names, which are converted to the plain names.
+            sampleRate = 1;
+            maxNamesPerBucket = Integer.MAX_VALUE;
+            for (int featureIndex = 0; featureIndex < featureCounters.length; featureIndex++) {
+                TObjectIntMap<String> oldCounter = featureCounters[featureIndex];
+                if (oldCounter != null) {
+                    TObjectIntMap<String> counter = new TObjectIntHashMap<>();
+                    for (TObjectIntIterator<String> iter = oldCounter.iterator(); iter.hasNext(); ) {
+                        iter.advance();
+                        String name = iter.key();
+                        if (name.length() >= 2 && name.startsWith("[") && name.endsWith("]")) {
+                            name = name.substring(1, name.length() - 1);
+                        }
+                        counter.adjustOrPutValue(name, iter.value(), iter.value());
+                    }
+                    featureCounters[featureIndex] = counter;
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package edu.cmu.cs.lti.learning.model;
 
 import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -23,6 +26,11 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
     // Average weight vector actually holds sum of weights, unless "consolidated".
     private TIntDoubleMap averagedWeights;
 
+    // In lazy mode, the average update count at which the sum of each feature was last brought up to date. The
+    // weight of a feature stays constant since then, so the missing part of the sum is simply the weight times the
+    // number of average updates since that time. Null when eager averaging is used.
+    private TIntIntMap lastUpdateTimes;
+
     private boolean consolidated;
 
     public HashBasedAveragedWeightVector() {
@@ -30,8 +38,25 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
     }
 
     public HashBasedAveragedWeightVector(int initialAverageUpdateCount) {
+        this(initialAverageUpdateCount, false);
+    }
+
+    /**
+     * Create a weight vector with a chosen averaging strategy.
+     *
+     * @param initialAverageUpdateCount The number of average updates happened before this vector is created.
+     * @param lazyAverage               If true, {@link #updateAverageWeight()} only advances a counter, and the
+     *                                  sums are only adjusted for the features touched by
+     *                                  {@link #updateWeightsBy(FeatureVector, double)}. The averages are the same as
+     *                                  the eager ones, but the cost is proportional to the update size instead of
+     *                                  the model size.
+     */
+    public HashBasedAveragedWeightVector(int initialAverageUpdateCount, boolean lazyAverage) {
         weights = new TIntDoubleHashMap();
         averagedWeights = new TIntDoubleHashMap();
+        if (lazyAverage) {
+            lastUpdateTimes = new TIntIntHashMap();
+        }
         consolidated = false;
         averageUpdateCount = initialAverageUpdateCount;
     }
@@ -42,6 +67,10 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
             iter.next();
             int index = iter.featureIndex();
             double updateAmount = iter.featureValue() * multiplier;
+            if (isLazyAverage()) {
+                // Bring the sum up to date before the weight changes.
+                settle(index);
+            }
             weights.adjustOrPutValue(index, updateAmount, updateAmount);
         }
     }
@@ -49,23 +78,61 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
     @Override
     /**
      * Add the weights of to the average weights. This should be done once weight vector is updated. The calling time
-     * is to be determined by the update algorithm.
+     * is to be determined by the update algorithm. In lazy mode this only advances the update count, the sums are
+     * settled when the weights are touched again or during consolidation.
      */
     public void updateAverageWeight() {
-        for (TIntDoubleIterator iter = weights.iterator(); iter.hasNext(); ) {
-            iter.advance();
-            int index = iter.key();
-            double value = iter.value();
-            averagedWeights.adjustOrPutValue(index, value, value);
+        if (!isLazyAverage()) {
+            for (TIntDoubleIterator iter = weights.iterator(); iter.hasNext(); ) {
+                iter.advance();
+                int index = iter.key();
+                double value = iter.value();
+                averagedWeights.adjustOrPutValue(index, value, value);
+            }
         }
         averageUpdateCount++;
     }
 
+    public boolean isLazyAverage() {
+        return lastUpdateTimes != null;
+    }
+
+    /**
+     * Add the residual sum accumulated since the last settlement of this feature, i.e. the current weight repeated
+     * for each average update since then.
+     *
+     * @param index The feature index.
+     */
+    private void settle(int index) {
+        int missedUpdates = averageUpdateCount - lastUpdateTimes.get(index);
+        if (missedUpdates != 0) {
+            double residual = weights.get(index) * missedUpdates;
+            if (residual != 0) {
+                averagedWeights.adjustOrPutValue(index, residual, residual);
+            }
+        }
+        lastUpdateTimes.put(index, averageUpdateCount);
+    }
+
+    /**
+     * Settle all features so that the averaged weights hold the actual sums.
+     */
+    private void settleAll() {
+        if (isLazyAverage()) {
+            for (TIntDoubleIterator iter = weights.iterator(); iter.hasNext(); ) {
+                iter.advance();
+                settle(iter.key());
+            }
+        }
+    }
+
     @Override
     void consolidate() {
 //        int numRemoved = 0;
 //        int total = 0;
         if (!consolidated) {
+            settleAll();
+
             for (TIntDoubleIterator iter = weights.iterator(); iter.hasNext(); ) {
                 iter.advance();
                 if (iter.value() == 0) {
@@ -75,6 +142,16 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
 //                total++;
             }
 
+            if (isLazyAverage()) {
+                // Timestamps of removed weights are not needed, the residual of a zero weight is always zero.
+                for (TIntIntIterator iter = lastUpdateTimes.iterator(); iter.hasNext(); ) {
+                    iter.advance();
+                    if (!weights.containsKey(iter.key())) {
+                        iter.remove();
+                    }
+                }
+            }
+
             for (TIntDoubleIterator iter = averagedWeights.iterator(); iter.hasNext(); ) {
                 iter.advance();
                 if (iter.value() == 0) {
@@ -107,6 +184,47 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
         }
     }
 
+    @Override
+    void loadWeight(int i, double weight, double averageSum) {
+        if (weight != 0) {
+            weights.put(i, weight);
+        }
+        if (averageSum != 0) {
+            averagedWeights.put(i, averageSum);
+        }
+        if (isLazyAverage()) {
+            lastUpdateTimes.put(i, averageUpdateCount);
+        }
+    }
+
+    @Override
+    void visitWeights(WeightVisitor visitor) {
+        for (TIntDoubleIterator iter = weights.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            int index = iter.key();
+            double averageSum = toSum(getAverageWeightAt(index));
+            if (iter.value() != 0 || averageSum != 0) {
+                visitor.visit(index, iter.value(), averageSum);
+            }
+        }
+        for (TIntDoubleIterator iter = averagedWeights.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            // Features without weights have no lazy residual.
+            if (!weights.containsKey(iter.key()) && iter.value() != 0) {
+                visitor.visit(iter.key(), 0, toSum(iter.value()));
+            }
+        }
+    }
+
+    private double toSum(double averagedWeight) {
+        return consolidated && averageUpdateCount != 0 ? averagedWeight * averageUpdateCount : averagedWeight;
+    }
+
+    @Override
+    AveragedWeightVector emptyCopy() {
+        return new HashBasedAveragedWeightVector(averageUpdateCount, isLazyAverage());
+    }
+
     @Override
     public double getWeightAt(int i) {
         return weights.get(i);
@@ -114,6 +232,10 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
 
     @Override
     public double getAverageWeightAt(int i) {
+        if (isLazyAverage()) {
+            // Include the part of the sum that is not settled yet.
+            return averagedWeights.get(i) + weights.get(i) * (averageUpdateCount - lastUpdateTimes.get(i));
+        }
         return averagedWeights.get(i);
     }
 
@@ -127,6 +249,7 @@ public class HashBasedAveragedWeightVector extends AveragedWeightVector {
     }
 
     public TIntDoubleIterator getAverageWeightsIterator() {
+        settleAll();
         return averagedWeights.iterator();
     }
 }
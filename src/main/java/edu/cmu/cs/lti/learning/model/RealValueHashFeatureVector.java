@@ -44,6 +44,44 @@ public class RealValueHashFeatureVector extends FeatureVector {
         return new RealValueHashFeatureVector(alphabet);
     }
 
+    @Override
+    public void addScaled(FeatureVector vectorToAdd, double multiplier) {
+        if (!(vectorToAdd instanceof RealValueHashFeatureVector)) {
+            super.addScaled(vectorToAdd, multiplier);
+            return;
+        }
+        ((RealValueHashFeatureVector) vectorToAdd).fv.forEachEntry((featureIndex, featureValue) -> {
+            double value = featureValue * multiplier;
+            if (value != 0) {
+                addFeature(featureIndex, value);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void diff(FeatureVector vectorToDiff, FeatureVector resultVector) {
+        if (!(vectorToDiff instanceof RealValueHashFeatureVector)) {
+            super.diff(vectorToDiff, resultVector);
+            return;
+        }
+        // Same results as the general diff, the maps are checked directly instead of collecting the overlaps.
+        TIntDoubleMap otherFv = ((RealValueHashFeatureVector) vectorToDiff).fv;
+        otherFv.forEachEntry((featureIndex, otherValue) -> {
+            double thisValue = fv.get(featureIndex);
+            if (thisValue != otherValue) {
+                resultVector.addFeature(featureIndex, thisValue - otherValue);
+            }
+            return true;
+        });
+        fv.forEachEntry((featureIndex, thisValue) -> {
+            if (!otherFv.containsKey(featureIndex)) {
+                resultVector.addFeature(featureIndex, thisValue);
+            }
+            return true;
+        });
+    }
+
     @Override
     public FeatureIterator featureIterator() {
         TIntDoubleIterator iter = fv.iterator();
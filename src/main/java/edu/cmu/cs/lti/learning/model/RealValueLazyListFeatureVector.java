@@ -1,9 +1,11 @@
 package edu.cmu.cs.lti.learning.model;
 
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import org.javatuples.Pair;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -14,17 +16,30 @@ import java.util.List;
  * This feature vector is a lazy list implementation, all features added to it are considered as unique, it does not do
  * any checks on feature index. Duplicated features will simply be used multiple times. This will create performance
  * overhead when number of duplicates is large.
+ * <p>
+ * The features are appended to primitive arrays. The value of a feature, i.e. the sum of all its entries, is looked up
+ * from an index built on the first lookup and extended with the entries added after that.
  *
  * @author Zhengzhong Liu
  */
 public class RealValueLazyListFeatureVector extends FeatureVector {
     private static final long serialVersionUID = 5154909346179407831L;
 
-    List<Pair<Integer, Double>> fv;
+    private int[] indices;
+
+    private double[] values;
+
+    private int size;
+
+    // Summed value of each feature of the first indexedSize entries, built on the first lookup.
+    private transient TIntDoubleHashMap valueIndex;
+
+    private transient volatile int indexedSize;
 
     public RealValueLazyListFeatureVector(FeatureAlphabet alphabet) {
         super(alphabet);
-        fv = new ArrayList<>();
+        indices = new int[16];
+        values = new double[16];
     }
 
     @Override
@@ -40,49 +55,112 @@ public class RealValueLazyListFeatureVector extends FeatureVector {
 
     @Override
     protected boolean addFeatureInternal(int featureIndex, double featureValue) {
-        return fv.add(Pair.with(featureIndex, featureValue));
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        indices[size] = featureIndex;
+        values[size] = featureValue;
+        size++;
+        return true;
     }
 
     @Override
     public double getFeatureValue(int featureIndex) {
-        return fv.get(featureIndex).getValue1();
+        if (indexedSize != size || valueIndex == null) {
+            updateIndex();
+        }
+        // Note that the no entry default of trove is 0.
+        return valueIndex.get(featureIndex);
     }
 
-    @Override
-    public FeatureIterator featureIterator() {
+    private synchronized void updateIndex() {
+        if (valueIndex == null) {
+            valueIndex = new TIntDoubleHashMap(Math.max(size, 10));
+        }
+        int indexed = indexedSize;
+        for (; indexed < size; indexed++) {
+            valueIndex.adjustOrPutValue(indices[indexed], values[indexed], values[indexed]);
+        }
+        indexedSize = indexed;
+    }
 
-        Iterator<Pair<Integer, Double>> iter = fv.iterator();
+    @Override
+    public void addScaled(FeatureVector vectorToAdd, double multiplier) {
+        if (!(vectorToAdd instanceof RealValueLazyListFeatureVector)) {
+            super.addScaled(vectorToAdd, multiplier);
+            return;
+        }
+        RealValueLazyListFeatureVector other = (RealValueLazyListFeatureVector) vectorToAdd;
+        int otherSize = other.size;
+        if (size + otherSize > indices.length) {
+            int capacity = Math.max(indices.length * 2, size + otherSize);
+            indices = Arrays.copyOf(indices, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        for (int pos = 0; pos < otherSize; pos++) {
+            double value = other.values[pos] * multiplier;
+            if (value != 0) {
+                indices[size] = other.indices[pos];
+                values[size] = value;
+                size++;
+                featureSize++;
+            }
+        }
+    }
 
+    @Override
+    public FeatureIterator featureIterator() {
         return new FeatureIterator() {
-            Pair<Integer, Double> current = null;
+            int pos = -1;
 
             @Override
             public int featureIndex() {
-                return current.getValue0();
+                return indices[pos];
             }
 
             @Override
             public double featureValue() {
-                return current.getValue1();
+                return values[pos];
             }
 
             @Override
             public boolean hasNext() {
-                return iter.hasNext();
+                return pos + 1 < size;
             }
 
             @Override
             public void next() {
-                current = iter.next();
+                pos++;
             }
         };
     }
 
     public RealValueHashFeatureVector getUniqifyVector() {
         RealValueHashFeatureVector consolidatedFv = new RealValueHashFeatureVector(alphabet);
-        for (Pair<Integer, Double> fvElement : fv) {
-            consolidatedFv.addFeature(fvElement.getValue0(), fvElement.getValue1());
+        for (int pos = 0; pos < size; pos++) {
+            consolidatedFv.addFeature(indices[pos], values[pos]);
         }
         return consolidatedFv;
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        if (fields.getObjectStreamClass().getField("fv") != null) {
+            // Vectors written before the arrays, the features are stored as a list of pairs.
+            @SuppressWarnings("unchecked")
+            List<Pair<Integer, Double>> pairs = (List<Pair<Integer, Double>>) fields.get("fv", null);
+            size = pairs.size();
+            indices = new int[Math.max(size, 16)];
+            values = new double[Math.max(size, 16)];
+            for (int pos = 0; pos < size; pos++) {
+                indices[pos] = pairs.get(pos).getValue0();
+                values[pos] = pairs.get(pos).getValue1();
+            }
+        } else {
+            indices = (int[]) fields.get("indices", null);
+            values = (double[]) fields.get("values", null);
+            size = fields.get("size", 0);
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package edu.cmu.cs.lti.learning.model;
+
+import java.util.Arrays;
+
+/**
+ * Cache the node scores (position, class) and the edge scores (class, previous class) of one sequence, so that
+ * decoding the same sequence again, e.g. a k-best pass after a 1-best pass, or with a different loss augmentation,
+ * does not compute the model scores again. The cache only holds the model scores, anything depending on the decoding
+ * setting (such as loss) should be added by the caller.
+ * <p>
+ * Positions follow {@link SequenceSolution}, i.e. from 0 to the sequence length, which is the special ending
+ * position. The arrays are reused by {@link #reset(int)}, which must be called for a new sequence or when the weights
+ * change. Entries are invalidated by a generation stamp, so reset does not clear the arrays. The cache is meant to be
+ * used by one decoding thread.
+ *
+ * @author Zhengzhong Liu
+ */
+public class SequenceScoreCache {
+    /**
+     * Compute the node score of a class at a position.
+     */
+    public interface NodeScorer {
+        double score(int position, int classIndex);
+    }
+
+    /**
+     * Compute the score of the edge from the previous class to the current class.
+     */
+    public interface EdgeScorer {
+        double score(int currentClass, int previousClass);
+    }
+
+    private final int numClasses;
+
+    private int sequenceLength;
+
+    // Node score of (position, class) is at position * numClasses + class.
+    private double[] nodeScores;
+    private int[] nodeGenerations;
+
+    // Edge score of (current class, previous class) is at current * numClasses + previous.
+    private final double[] edgeScores;
+    private final int[] edgeGenerations;
+
+    // Entries stamped with the current generation are valid.
+    private int generation = 1;
+
+    private long numHits;
+
+    private long numMisses;
+
+    /**
+     * @param numClasses     Number of classes, usually the size of the class alphabet.
+     * @param sequenceLength Length of the first sequence, the arrays grow for longer sequences.
+     */
+    public SequenceScoreCache(int numClasses, int sequenceLength) {
+        this.numClasses = numClasses;
+        this.sequenceLength = sequenceLength;
+        nodeScores = new double[(sequenceLength + 1) * numClasses];
+        nodeGenerations = new int[nodeScores.length];
+        edgeScores = new double[numClasses * numClasses];
+        edgeGenerations = new int[edgeScores.length];
+    }
+
+    /**
+     * Drop all the cached scores and prepare for a new sequence. The hit and miss counters are kept.
+     *
+     * @param sequenceLength Length of the new sequence.
+     */
+    public void reset(int sequenceLength) {
+        this.sequenceLength = sequenceLength;
+        int size = (sequenceLength + 1) * numClasses;
+        if (size > nodeScores.length) {
+            nodeScores = new double[size];
+            nodeGenerations = new int[size];
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            // Stamps would wrap around, start over with cleared arrays.
+            Arrays.fill(nodeGenerations, 0);
+            Arrays.fill(edgeGenerations, 0);
+            generation = 1;
+        }
+    }
+
+    private int nodeSlot(int position, int classIndex) {
+        if (position < 0 || position > sequenceLength) {
+            throw new IndexOutOfBoundsException(String.format("Position %d is out of the sequence of length %d.",
+                    position, sequenceLength));
+        }
+        return position * numClasses + classIndex;
+    }
+
+    /**
+     * Get the node score from the cache, or compute it with the scorer and cache it.
+     *
+     * @param position   The position.
+     * @param classIndex The class.
+     * @param scorer     The scorer called on a miss.
+     * @return The node score.
+     */
+    public double getNodeScore(int position, int classIndex, NodeScorer scorer) {
+        int slot = nodeSlot(position, classIndex);
+        if (nodeGenerations[slot] == generation) {
+            numHits++;
+            return nodeScores[slot];
+        }
+        numMisses++;
+        double score = scorer.score(position, classIndex);
+        nodeScores[slot] = score;
+        nodeGenerations[slot] = generation;
+        return score;
+    }
+
+    /**
+     * Get the edge score from the cache, or compute it with the scorer and cache it.
+     *
+     * @param currentClass  The class at the current position.
+     * @param previousClass The class at the previous position.
+     * @param scorer        The scorer called on a miss.
+     * @return The edge score.
+     */
+    public double getEdgeScore(int currentClass, int previousClass, EdgeScorer scorer) {
+        int slot = currentClass * numClasses + previousClass;
+        if (edgeGenerations[slot] == generation) {
+            numHits++;
+            return edgeScores[slot];
+        }
+        numMisses++;
+        double score = scorer.score(currentClass, previousClass);
+        edgeScores[slot] = score;
+        edgeGenerations[slot] = generation;
+        return score;
+    }
+
+    /**
+     * Whether the node scores of all the classes at the position are cached.
+     */
+    public boolean hasAllNodeScores(int position) {
+        int start = nodeSlot(position, 0);
+        for (int slot = start; slot < start + numClasses; slot++) {
+            if (nodeGenerations[slot] != generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cache the node scores of all the classes at the position at once, e.g. computed by
+     * {@link GraphWeightVector#scoreAllClassesAver(FeatureVector, double[])} or
+     * {@link FrozenGraphWeightVector#scoreAllClasses(FeatureVector, double[])}.
+     *
+     * @param position The position.
+     * @param scores   The scores indexed by class.
+     */
+    public void putAllNodeScores(int position, double[] scores) {
+        int start = nodeSlot(position, 0);
+        System.arraycopy(scores, 0, nodeScores, start, numClasses);
+        Arrays.fill(nodeGenerations, start, start + numClasses, generation);
+        numMisses += numClasses;
+    }
+
+    public long getNumHits() {
+        return numHits;
+    }
+
+    public long getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * @return Fraction of the lookups answered by the cache.
+     */
+    public double getHitRate() {
+        long total = numHits + numMisses;
+        return total == 0 ? 0 : (double) numHits / total;
+    }
+
+    public void resetCounters() {
+        numHits = 0;
+        numMisses = 0;
+    }
+
+    public int getSequenceLength() {
+        return sequenceLength;
+    }
+}
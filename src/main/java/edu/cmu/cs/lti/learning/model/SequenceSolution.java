@@ -1,6 +1,5 @@
 package edu.cmu.cs.lti.learning.model;
 
-import com.google.common.collect.MinMaxPriorityQueue;
 import edu.cmu.cs.lti.dist.CommonDistributions;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -11,7 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -20,6 +19,18 @@ import java.util.stream.IntStream;
  * Created with IntelliJ IDEA.
  * Date: 8/21/15
  * Time: 3:44 PM
+ * <p>
+ * The decoding lattice is stored as parallel primitive arrays, each cell (position, class) holds up to K ranked
+ * entries, with their scores and back pointers (class and rank of the previous position). The arrays are allocated
+ * once and can be reused for other sequences through {@link #reset(int, int...)}. Decoders could use the primitive
+ * methods ({@link #getNumPreviousBests(int)}, {@link #scoreNewEdge(int, int, int, double, double)}) to avoid any
+ * allocation, the {@link LatticeCell} based methods are views on the same arrays. When K is 1, each cell holds
+ * a single max score and back pointer, which is updated with a single comparison.
+ * <p>
+ * Optionally, a beam can be set by {@link #setPruning(int, double)}, then only the best classes at each position are
+ * extended to the next position.
+ * <p>
+ * To decode the same sequence several times, the model scores can be kept in a {@link SequenceScoreCache}.
  *
  * @author Zhengzhong Liu
  */
@@ -37,17 +48,44 @@ public class SequenceSolution implements Serializable {
     // Element scores: the score is the additional score given by each step, to get the solution score, sum them up.
     private double[][] elementScores;
 
-    // Each cells stores a list of best states that ended here, stored as a queue (heap).
-    // Because the MinMaxQueue will remove the greatest element when full, we reverse the comparator.
-    // To retrieve the best score for each pointer, just do poll (remove afterwards), and take the negative.
-    // This also implies tie is broken on the smaller state index.
-    // The queue can be iterate in order only once, hence it is temporary and will be iterate and convert as a list.
-    private MinMaxPriorityQueue<LatticeCell>[] temporaryCells;
+    // Number of classes when the lattice is allocated.
+    private int numClasses;
 
-    // A full back pointer lattice that store all the cells, each cell store a list of k best back pointers.
-    // Some cells are empty because they are not possible: e.g. The first class is <OUTSIDE>, which is not possible for
-    // normal index, except the special ending index.
-    private List<LatticeCell>[][] latticeCells;
+    // The lattice rows: row 0 holds the single start cell, row p + 1 holds the cells at sequence position p, up to
+    // the special ending position (sequenceLength). The cell of (row, class) is row * numClasses + class, and the
+    // entry of rank r in this cell is at cell * bestK + r. Entries of a cell are sorted by descending score, tie is
+    // broken in favor of the entry added first.
+    private double[] latticeScores;
+
+    // The node score and edge score added by each entry, used for debug.
+    private double[] latticeNodeScores;
+    private double[] latticeEdgeScores;
+
+    // The back pointer of each entry, the class and the rank of an entry in the previous row.
+    private int[] backPointerClasses;
+    private int[] backPointerRanks;
+
+    // Number of filled entries of each cell.
+    private int[] cellSizes;
+
+    // The number of rows allocated, can be larger than needed when the solution is reset to a shorter sequence.
+    private int allocatedRows;
+
+    // Beam pruning: at most beamWidth classes are kept at each position, and classes whose best score is lower than
+    // the position best by more than pruneMargin are dropped. Pruning is disabled with the default values.
+    private int beamWidth = Integer.MAX_VALUE;
+    private double pruneMargin = Double.POSITIVE_INFINITY;
+
+    // The classes survived the pruning, stored from position * numClasses, numSurvivedClasses is -1 for positions
+    // that are not pruned.
+    private int[] survivedClasses;
+    private int[] numSurvivedClasses;
+
+    // Scratch space to rank the classes during pruning.
+    private int[] rankedClasses;
+
+    private int numPrunedCells;
+    private int numSurvivedCells;
 
     private double[] softMaxLabelProbs;
 
@@ -108,38 +146,158 @@ public class SequenceSolution implements Serializable {
      * @param bestK          How many sequence should be contained in the solution.
      * @param outsideIndices A list of outside index to avoid.
      */
-    @SuppressWarnings("unchecked")
     public SequenceSolution(ClassAlphabet classAlphabet, int sequenceLength, int bestK, int... outsideIndices) {
         this.bestK = bestK;
         this.classAlphabet = classAlphabet;
+        this.numClasses = classAlphabet.size();
+        outsideSet = new TIntHashSet();
+        reset(sequenceLength, outsideIndices);
+    }
+
+    /**
+     * Prepare this solution for decoding another sequence, with the same class alphabet and K. The lattice arrays are
+     * reused when they are large enough.
+     *
+     * @param sequenceLength The length of the new sequence.
+     * @param outsideIndices A list of outside index to avoid.
+     */
+    public void reset(int sequenceLength, int... outsideIndices) {
+        if (outsideSet == null) {
+            throw new IllegalStateException("Cannot reset a solution that is not created for decoding.");
+        }
+
         this.sequenceLength = sequenceLength;
         solution = new int[bestK][sequenceLength];
         elementScores = new double[bestK][sequenceLength];
+        softMaxLabelProbs = null;
+        score = Double.NEGATIVE_INFINITY;
 
-        temporaryCells = new MinMaxPriorityQueue[classAlphabet.size()];
-        latticeCells = new List[sequenceLength + 1][classAlphabet.size()];
-
-        outsideSet = new TIntHashSet();
-        for (Integer indice : outsideIndices) {
+        outsideSet.clear();
+        for (int indice : outsideIndices) {
             outsideSet.add(indice);
         }
 
+        int rows = sequenceLength + 2;
+        if (rows > allocatedRows) {
+            int numEntries = rows * numClasses * bestK;
+            latticeScores = new double[numEntries];
+            latticeNodeScores = new double[numEntries];
+            latticeEdgeScores = new double[numEntries];
+            backPointerClasses = new int[numEntries];
+            backPointerRanks = new int[numEntries];
+            cellSizes = new int[rows * numClasses];
+            survivedClasses = new int[rows * numClasses];
+            numSurvivedClasses = new int[rows];
+            rankedClasses = new int[numClasses];
+            allocatedRows = rows;
+        } else {
+            Arrays.fill(cellSizes, 0, rows * numClasses, 0);
+        }
+
+        // The start cell, which is the only previous cell of the first position.
+        int startEntry = startCell() * bestK;
+        latticeScores[startEntry] = 0;
+        latticeNodeScores[startEntry] = 0;
+        latticeEdgeScores[startEntry] = 0;
+        cellSizes[startCell()] = 1;
+
+        Arrays.fill(numSurvivedClasses, 0, rows, -1);
+        numPrunedCells = 0;
+        numSurvivedCells = 0;
+
         currentPosition = 0;
     }
 
+    /**
+     * Enable beam pruning, which is applied at each {@link #advance()}: only the best classes at the position are
+     * kept, and only these classes are returned as possible previous classes for the next position.
+     *
+     * @param beamWidth   Maximum number of classes kept at each position, use Integer.MAX_VALUE for no limit.
+     * @param pruneMargin Classes whose best score is lower than the best class by more than this margin are pruned,
+     *                    use Double.POSITIVE_INFINITY for no threshold.
+     */
+    public void setPruning(int beamWidth, double pruneMargin) {
+        if (beamWidth < 1) {
+            throw new IllegalArgumentException("Beam width must be positive, but is " + beamWidth);
+        }
+        this.beamWidth = beamWidth;
+        this.pruneMargin = pruneMargin;
+    }
 
+    private boolean isPruning() {
+        return beamWidth != Integer.MAX_VALUE || pruneMargin != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return Number of cells pruned in the current sequence.
+     */
+    public int getNumPrunedCells() {
+        return numPrunedCells;
+    }
+
+    /**
+     * @return Number of cells survived the pruning in the current sequence.
+     */
+    public int getNumSurvivedCells() {
+        return numSurvivedCells;
+    }
+
+    private int startCell() {
+        return classAlphabet.getOutsideClassIndex();
+    }
+
+    private int cellAt(int position, int classIndex) {
+        return (position + 1) * numClasses + classIndex;
+    }
+
+    /**
+     * The cell from which the entries at the current position are extended.
+     */
+    private int previousCell(int classIndex) {
+        return currentPosition == 0 ? startCell() : cellAt(currentPosition - 1, classIndex);
+    }
+
+    /**
+     * A view on one entry of the lattice. Cells created by the public constructor are detached from the lattice and
+     * hold their own values, as cells did before the lattice was stored in arrays.
+     */
     public class LatticeCell implements Serializable, Comparable<LatticeCell> {
         private static final long serialVersionUID = 5198803127418485563L;
 
-        private double score;
-        private double currentScore;
-        private double previousScore;
-        private double transitionScore;
-        private int classIndex;
-        private LatticeCell backPointer;
+        // The lattice cell of this entry, -1 if the cell is detached.
+        private final int cell;
+
+        private final int rank;
+
+        // The values of a detached cell.
+        private final double score;
+        private final double currentScore;
+        private final double previousScore;
+        private final double transitionScore;
+        private final int classIndex;
+        private final LatticeCell backPointer;
+
+        private LatticeCell(int cell, int rank) {
+            this(cell, rank, 0, -1, null, 0, 0, 0);
+        }
 
+        /**
+         * Create a cell detached from the lattice, it cannot be extended by
+         * {@link #scoreNewEdge(int, LatticeCell, double, double)}.
+         *
+         * @deprecated Cells are views on the lattice, obtained from {@link #getPreviousBests(int)} or
+         * {@link #getEmptyCell()}.
+         */
+        @Deprecated
         public LatticeCell(double score, int classIndex, LatticeCell backPointer, double currentScore, double
                 previousScore, double transitionScore) {
+            this(-1, 0, score, classIndex, backPointer, currentScore, previousScore, transitionScore);
+        }
+
+        private LatticeCell(int cell, int rank, double score, int classIndex, LatticeCell backPointer,
+                            double currentScore, double previousScore, double transitionScore) {
+            this.cell = cell;
+            this.rank = rank;
             this.score = score;
             this.classIndex = classIndex;
             this.backPointer = backPointer;
@@ -149,6 +307,59 @@ public class SequenceSolution implements Serializable {
             this.transitionScore = transitionScore;
         }
 
+        private boolean isDetached() {
+            return cell < 0;
+        }
+
+        private int entry() {
+            return cell * bestK + rank;
+        }
+
+        public double getScore() {
+            return isDetached() ? score : latticeScores[entry()];
+        }
+
+        public int getClassIndex() {
+            return isDetached() ? classIndex : cell % numClasses;
+        }
+
+        /**
+         * @return The entry of the previous position this entry is extended from, null at the start.
+         */
+        public LatticeCell getBackPointer() {
+            if (isDetached()) {
+                return backPointer;
+            }
+            int row = cell / numClasses;
+            return row == 0 ? null :
+                    new LatticeCell((row - 1) * numClasses + backPointerClasses[entry()], backPointerRanks[entry()]);
+        }
+
+        /**
+         * @return The node score added by this entry.
+         */
+        public double getCurrentScore() {
+            return isDetached() ? currentScore : latticeNodeScores[entry()];
+        }
+
+        /**
+         * @return The score of the entry this entry is extended from.
+         */
+        public double getPreviousScore() {
+            if (isDetached()) {
+                return previousScore;
+            }
+            LatticeCell previous = getBackPointer();
+            return previous == null ? 0 : previous.getScore();
+        }
+
+        /**
+         * @return The edge score added by this entry.
+         */
+        public double getTransitionScore() {
+            return isDetached() ? transitionScore : latticeEdgeScores[entry()];
+        }
+
         /**
          * This is a reverse comparator, the greatest scored element will be treated as the least.
          *
@@ -157,22 +368,26 @@ public class SequenceSolution implements Serializable {
          */
         @Override
         public int compareTo(LatticeCell o) {
-            return new CompareToBuilder().append(o.score, score).build();
+            return new CompareToBuilder().append(o.getScore(), getScore()).build();
         }
 
         @Override
         public String toString() {
-            return new ToStringBuilder(this).append(score).append(classIndex).toString();
+            return new ToStringBuilder(this).append(getScore()).append(getClassIndex()).toString();
         }
 
         public String shortString() {
-            return String.format("[%.2f=%.2f+%.2f+%.2f,%s <- %s]", score, previousScore, currentScore, transitionScore,
-                    classAlphabet.getClassName(classIndex), classAlphabet.getClassName(backPointer.classIndex));
+            if (isDetached()) {
+                return String.format("[%.2f=%.2f+%.2f+%.2f,%s <- %s]", score, previousScore, currentScore,
+                        transitionScore, classAlphabet.getClassName(classIndex),
+                        backPointer == null ? "null" : classAlphabet.getClassName(backPointer.getClassIndex()));
+            }
+            return entryString(entry());
         }
     }
 
     public LatticeCell getEmptyCell() {
-        return new LatticeCell(0, classAlphabet.getOutsideClassIndex(), null, 0, 0, 0);
+        return new LatticeCell(startCell(), 0);
     }
 
     /**
@@ -206,32 +421,78 @@ public class SequenceSolution implements Serializable {
     }
 
     public IntStream getPossibleClassIndices(int position) {
-        if (position >= sequenceLength || position < 0 || outsideSet.contains(position)) {
+        if (isOutsidePosition(position)) {
             return classAlphabet.getOutsideClassRange();
+        } else if (position < currentPosition && numSurvivedClasses[position] >= 0) {
+            int offset = position * numClasses;
+            return Arrays.stream(survivedClasses, offset, offset + numSurvivedClasses[position]);
         } else {
             return classAlphabet.getNormalClassesRange();
         }
     }
 
-    @SuppressWarnings("unchecked")
+    private boolean isOutsidePosition(int position) {
+        return position >= sequenceLength || position < 0 || outsideSet.contains(position);
+    }
+
     public void advance() {
-        // Store all temporary back pointers from the heap to a list for further access.
+        // Check that all possible cells are filled before moving on.
         if (currentPosition >= 0) {
-            getPossibleClassIndices(currentPosition).forEach(classIndex -> {
-                MinMaxPriorityQueue<LatticeCell> tempBackPointer = temporaryCells[classIndex];
-                if (tempBackPointer == null) {
-                    throw new IllegalStateException(String.format("Temp pointers are not updated before call, cannot " +
-                            "find cell at position %d, class %d", currentPosition - 1, classIndex));
-                }
-                latticeCells[currentPosition][classIndex] = new ArrayList<>();
-                while (!tempBackPointer.isEmpty()) {
-                    latticeCells[currentPosition][classIndex].add(tempBackPointer.poll());
+            int[] possibleClasses = getPossibleClassIndices(currentPosition).toArray();
+            for (int classIndex : possibleClasses) {
+                if (cellSizes[cellAt(currentPosition, classIndex)] == 0) {
+                    throw new IllegalStateException(String.format("Temp pointers are not updated before call, " +
+                            "cannot find cell at position %d, class %d", currentPosition - 1, classIndex));
                 }
-            });
+            }
+
+            if (isPruning() && !isOutsidePosition(currentPosition)) {
+                prune(possibleClasses);
+            }
         }
 
         ++currentPosition;
-        temporaryCells = new MinMaxPriorityQueue[classAlphabet.size()];
+    }
+
+    /**
+     * Prune the classes at the current position by their best scores, the cells of the pruned classes are emptied.
+     */
+    private void prune(int[] possibleClasses) {
+        // Rank the classes by the best score with an insertion sort, tie is broken on the smaller class index.
+        int numRanked = 0;
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (int classIndex : possibleClasses) {
+            double classScore = latticeScores[cellAt(currentPosition, classIndex) * bestK];
+            maxScore = Math.max(maxScore, classScore);
+            int insert = numRanked;
+            while (insert > 0 &&
+                    latticeScores[cellAt(currentPosition, rankedClasses[insert - 1]) * bestK] < classScore) {
+                rankedClasses[insert] = rankedClasses[insert - 1];
+                insert--;
+            }
+            rankedClasses[insert] = classIndex;
+            numRanked++;
+        }
+
+        for (int rank = 0; rank < numRanked; rank++) {
+            int cell = cellAt(currentPosition, rankedClasses[rank]);
+            if (rank >= beamWidth || latticeScores[cell * bestK] < maxScore - pruneMargin) {
+                cellSizes[cell] = 0;
+            }
+        }
+
+        // Record the survived classes in the class order, so the decoding order is not changed.
+        int offset = currentPosition * numClasses;
+        int numSurvived = 0;
+        for (int classIndex : possibleClasses) {
+            if (cellSizes[cellAt(currentPosition, classIndex)] > 0) {
+                survivedClasses[offset + numSurvived] = classIndex;
+                numSurvived++;
+            }
+        }
+        numSurvivedClasses[currentPosition] = numSurvived;
+        numSurvivedCells += numSurvived;
+        numPrunedCells += possibleClasses.length - numSurvived;
     }
 
     public int getBestK() {
@@ -273,48 +534,182 @@ public class SequenceSolution implements Serializable {
         return solution[k][sequenceIndex];
     }
 
+    /**
+     * A list of views on the ranked entries of the class at the previous position, allocated at each call. Decoders
+     * should use {@link #getNumPreviousBests(int)}, {@link #getPreviousBestScore(int, int)} and
+     * {@link #getPreviousBestClass(int, int)} instead.
+     *
+     * @param classIndex The class at the previous position.
+     * @return The ranked entries that ends at the class of the previous position.
+     */
     public List<LatticeCell> getPreviousBests(int classIndex) {
-        if (currentPosition == 0) {
-            return Collections.singletonList(getEmptyCell());
+        int cell = previousCell(classIndex);
+        int size = cellSizes[cell];
+        List<LatticeCell> previousBests = new ArrayList<>(size);
+        for (int rank = 0; rank < size; rank++) {
+            previousBests.add(new LatticeCell(cell, rank));
         }
-        return latticeCells[currentPosition - 1][classIndex];
+        return previousBests;
+    }
+
+    /**
+     * @param classIndex The class at the previous position.
+     * @return The number of ranked entries that ends at the class of the previous position.
+     */
+    public int getNumPreviousBests(int classIndex) {
+        return cellSizes[previousCell(classIndex)];
+    }
+
+    /**
+     * @param classIndex The class at the previous position.
+     * @param rank       The rank of the entry.
+     * @return The score of the entry ending at the class of the previous position.
+     */
+    public double getPreviousBestScore(int classIndex, int rank) {
+        return latticeScores[previousCell(classIndex) * bestK + rank];
     }
 
-    private MinMaxPriorityQueue<LatticeCell> createMaxFirstQueue() {
-        // Note that the comparison is revered within LatticCell, this make the Queue always discard the element with
-        // minimum value.
-        // You could consider this Queue compare elements by their rank (higher value with lower rank number), maximum
-        // value rank number 1.
-        return MinMaxPriorityQueue.maximumSize(bestK).create();
+    /**
+     * @param classIndex The class at the previous position.
+     * @param rank       The rank of the entry.
+     * @return The class, at the position before the previous one, that the entry is extended from, or -1 if the
+     * entry is at the start.
+     */
+    public int getPreviousBestClass(int classIndex, int rank) {
+        return currentPosition == 0 ? -1 : backPointerClasses[previousCell(classIndex) * bestK + rank];
+    }
+
+    /**
+     * @param classIndex The class at the previous position.
+     * @return The best score of the entries ending at the class of the previous position.
+     */
+    public double getPreviousBestScore(int classIndex) {
+        return getPreviousBestScore(classIndex, 0);
     }
 
     public int scoreNewEdge(int toCellClassIndex, LatticeCell fromCell, double newEdgeScore, double newNodeScore) {
         if (fromCell == null) {
             return 0;
         }
+        if (fromCell.isDetached()) {
+            throw new IllegalArgumentException("A detached cell cannot be extended, use a cell of the lattice.");
+        }
+        return addEntry(toCellClassIndex, fromCell.cell, fromCell.rank, newEdgeScore, newNodeScore);
+    }
+
+    /**
+     * Score a new edge from an entry of the previous position to a class of the current position, the new entry is
+     * kept if it is among the best K of this class.
+     *
+     * @param toCellClassIndex   The class at the current position.
+     * @param fromCellClassIndex The class at the previous position.
+     * @param fromRank           The rank of the previous entry.
+     * @param newEdgeScore       The score of the edge.
+     * @param newNodeScore       The score of the node at the current position.
+     * @return 1 if the new entry becomes the best of this cell, -1 if it is not among the best K, 0 otherwise.
+     */
+    public int scoreNewEdge(int toCellClassIndex, int fromCellClassIndex, int fromRank, double newEdgeScore,
+                            double newNodeScore) {
+        int fromCell = previousCell(fromCellClassIndex);
+        if (fromRank >= cellSizes[fromCell]) {
+            return 0;
+        }
+        return addEntry(toCellClassIndex, fromCell, fromRank, newEdgeScore, newNodeScore);
+    }
 
-        int addResult = 0;
+    /**
+     * Score a new edge from the best entry of the previous position, the 1-best version of
+     * {@link #scoreNewEdge(int, int, int, double, double)}.
+     *
+     * @param toCellClassIndex   The class at the current position.
+     * @param fromCellClassIndex The class at the previous position.
+     * @param newEdgeScore       The score of the edge.
+     * @param newNodeScore       The score of the node at the current position.
+     * @return 1 if the new entry becomes the best of this cell, -1 if it is not among the best K, 0 otherwise.
+     */
+    public int scoreNewEdge(int toCellClassIndex, int fromCellClassIndex, double newEdgeScore, double newNodeScore) {
+        return scoreNewEdge(toCellClassIndex, fromCellClassIndex, 0, newEdgeScore, newNodeScore);
+    }
 
-        double newScoreTillHere = fromCell.score + newEdgeScore + newNodeScore;
+    private int addEntry(int toCellClassIndex, int fromCell, int fromRank, double newEdgeScore,
+                         double newNodeScore) {
+        double newScoreTillHere = latticeScores[fromCell * bestK + fromRank] + newEdgeScore + newNodeScore;
 
-        MinMaxPriorityQueue<LatticeCell> queue = temporaryCells[toCellClassIndex];
-        if (queue == null) {
-            temporaryCells[toCellClassIndex] = createMaxFirstQueue();
-            queue = temporaryCells[toCellClassIndex];
-            addResult = 1;
-        } else if (queue.isEmpty()) {
-            addResult = 1;
-        } else if (queue.peek().score < newScoreTillHere) {
-            addResult = 1;
+        int cell = cellAt(currentPosition, toCellClassIndex);
+
+        if (bestK == 1) {
+            return replaceBest(cell, fromCell, newScoreTillHere, newEdgeScore, newNodeScore);
         }
 
-        boolean rejected = !queue.offer(new LatticeCell(newScoreTillHere, toCellClassIndex, fromCell, newNodeScore,
-                fromCell.score, newEdgeScore));
-        if (rejected) {
-            addResult = -1;
+        int base = cell * bestK;
+        int size = cellSizes[cell];
+
+        // Find the insertion rank, after all entries that are at least as good.
+        int rank = size;
+        while (rank > 0 && latticeScores[base + rank - 1] < newScoreTillHere) {
+            rank--;
         }
 
-        return addResult;
+        if (rank >= bestK) {
+            return -1;
+        }
+
+        // Shift the worse entries down by one rank, the last one falls off when the cell is full.
+        int last = Math.min(size, bestK - 1);
+        for (int r = last; r > rank; r--) {
+            copyEntry(base + r - 1, base + r);
+        }
+
+        int entry = base + rank;
+        latticeScores[entry] = newScoreTillHere;
+        latticeNodeScores[entry] = newNodeScore;
+        latticeEdgeScores[entry] = newEdgeScore;
+        backPointerClasses[entry] = fromCell % numClasses;
+        backPointerRanks[entry] = fromRank;
+
+        if (size < bestK) {
+            cellSizes[cell] = size + 1;
+        }
+
+        return rank == 0 ? 1 : 0;
+    }
+
+    /**
+     * The 1-best case of adding entry, each cell has a single entry, which is only replaced by a strictly better one.
+     */
+    private int replaceBest(int cell, int fromCell, double newScoreTillHere, double newEdgeScore,
+                            double newNodeScore) {
+        if (cellSizes[cell] != 0 && latticeScores[cell] >= newScoreTillHere) {
+            return -1;
+        }
+
+        latticeScores[cell] = newScoreTillHere;
+        latticeNodeScores[cell] = newNodeScore;
+        latticeEdgeScores[cell] = newEdgeScore;
+        backPointerClasses[cell] = fromCell % numClasses;
+        backPointerRanks[cell] = 0;
+        cellSizes[cell] = 1;
+
+        return 1;
+    }
+
+    private void copyEntry(int from, int to) {
+        latticeScores[to] = latticeScores[from];
+        latticeNodeScores[to] = latticeNodeScores[from];
+        latticeEdgeScores[to] = latticeEdgeScores[from];
+        backPointerClasses[to] = backPointerClasses[from];
+        backPointerRanks[to] = backPointerRanks[from];
+    }
+
+    private String entryString(int entry) {
+        int cell = entry / bestK;
+        int row = cell / numClasses;
+        double previousScore = row == 0 ? 0 :
+                latticeScores[((row - 1) * numClasses + backPointerClasses[entry]) * bestK + backPointerRanks[entry]];
+        String previousClass = row == 0 ? "null" : classAlphabet.getClassName(backPointerClasses[entry]);
+        return String.format("[%.2f=%.2f+%.2f+%.2f,%s <- %s]", latticeScores[entry], previousScore,
+                latticeNodeScores[entry], latticeEdgeScores[entry], classAlphabet.getClassName(cell % numClasses),
+                previousClass);
     }
 
     public String showBestBackPointerMap() {
@@ -322,18 +717,18 @@ public class SequenceSolution implements Serializable {
         String rowSep = "\t";
         String colSep = "";
 
-        int rowNumber = 0;
-        for (List<LatticeCell>[] backPointers : latticeCells) {
+        for (int position = 0; position <= sequenceLength; position++) {
             sb.append(colSep);
-            sb.append(rowNumber++);
+            sb.append(position);
             sb.append(rowSep);
             colSep = "\n";
-            for (List<LatticeCell> backPointer : backPointers) {
+            for (int classIndex = 0; classIndex < numClasses; classIndex++) {
                 sb.append(rowSep);
-                if (backPointer == null) {
+                int cell = cellAt(position, classIndex);
+                if (cellSizes[cell] == 0) {
                     sb.append("<EMPTY>");
                 } else {
-                    sb.append(backPointer.get(0).shortString());
+                    sb.append(entryString(cell * bestK));
                 }
             }
         }
@@ -343,14 +738,21 @@ public class SequenceSolution implements Serializable {
     public void backTrace() {
         softMaxLabelProbs = new double[sequenceLength];
 
+        int finalCell = cellAt(sequenceLength, classAlphabet.getOutsideClassIndex());
+
         for (int kthSolution = 0; kthSolution < bestK; kthSolution++) {
+            if (kthSolution >= cellSizes[finalCell]) {
+                throw new IndexOutOfBoundsException(String.format("Only %d solutions are found, cannot get solution" +
+                        " %d", cellSizes[finalCell], kthSolution));
+            }
+
             int[] oneSolution = new int[sequenceLength];
             double[] oneScores = new double[sequenceLength];
 
             // Computing the best K solution by backtracing from the last cell. It will populated 2 arrays:
             // 1. solution array: contains the solution class index of each position.
             // 2. score array: contains the scores corresponding to each position.
-            backTraceOne(latticeCells[sequenceLength][0].get(kthSolution), oneSolution, oneScores);
+            backTraceOne(finalCell * bestK + kthSolution, oneSolution, oneScores);
             solution[kthSolution] = oneSolution;
 
             if (kthSolution == 0) {
@@ -359,9 +761,10 @@ public class SequenceSolution implements Serializable {
 
                     double[] scores = new double[classAlphabet.size()];
                     for (int classIndex : classAlphabet.getNormalClassesRange().toArray()) {
-                        List<LatticeCell> backPointer = latticeCells[i][classIndex];
-                        double classScore = backPointer.get(0).score;
-                        scores[classIndex] = classScore;
+                        int cell = cellAt(i, classIndex);
+                        // Empty cells are pruned, which get no probability.
+                        scores[classIndex] = cellSizes[cell] > 0 ? latticeScores[cell * bestK] :
+                                Double.NEGATIVE_INFINITY;
                     }
 
                     double[] probs = CommonDistributions.softmax(scores);
@@ -407,17 +810,18 @@ public class SequenceSolution implements Serializable {
 //    }
 
     /**
-     * Back trace starting from one particular cell.
+     * Back trace starting from one particular entry.
      *
-     * @param cell The cell to start from
+     * @param entry The lattice entry to start from
      * @return The decoded solution.
      */
-    private int[] backTraceOne(LatticeCell cell, int[] oneSolution, double[] oneScores) {
-        LatticeCell currentCell = cell;
+    private int[] backTraceOne(int entry, int[] oneSolution, double[] oneScores) {
+        int currentEntry = entry;
         for (int backCol = sequenceLength - 1; backCol >= 0; backCol--) {
-            currentCell = currentCell.backPointer;
-            oneSolution[backCol] = currentCell.classIndex;
-            oneScores[backCol] = currentCell.score;
+            int classIndex = backPointerClasses[currentEntry];
+            currentEntry = cellAt(backCol, classIndex) * bestK + backPointerRanks[currentEntry];
+            oneSolution[backCol] = classIndex;
+            oneScores[backCol] = latticeScores[currentEntry];
         }
         return oneSolution;
     }
@@ -485,22 +889,4 @@ public class SequenceSolution implements Serializable {
         this.score = score;
     }
 
-    private void testQueue() {
-        MinMaxPriorityQueue<LatticeCell> q = this.createMaxFirstQueue();
-
-        for (int i = 0; i < 6; i++) {
-            q.add(new LatticeCell(i, 0, null, 0, 0, 0));
-        }
-
-        while (!q.isEmpty()) {
-            System.out.println(q.poll());
-        }
-    }
-
-    public static void main(String[] args) {
-        SequenceSolution test = new SequenceSolution(new ClassAlphabet(true, true), 0, 3);
-
-        test.testQueue();
-    }
-
 }
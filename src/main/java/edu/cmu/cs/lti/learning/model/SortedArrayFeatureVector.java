@@ -0,0 +1,302 @@
+package edu.cmu.cs.lti.learning.model;
+
+import java.util.Arrays;
+
+/**
+ * A real valued feature vector backed by primitive arrays, meant to be built by one thread. Features are appended to
+ * growable arrays, and the arrays are compacted, i.e. sorted by feature index with duplicated features summed, on the
+ * first read. Adding more features after a read simply makes the vector compact again on the next read.
+ * <p>
+ * Since the entries are sorted, the iterator does not allocate per step, and {@link #dotProd(FeatureVector)} and
+ * {@link #diff(FeatureVector, FeatureVector)} with another SortedArrayFeatureVector are linear merges.
+ * <p>
+ * Before compaction, the number returned by {@link #addFeature(String, double)} counts the appended entries,
+ * duplicates included, {@link #getFeatureSize()} always gives the number of distinct features.
+ *
+ * @author Zhengzhong Liu
+ */
+public class SortedArrayFeatureVector extends FeatureVector {
+    private static final long serialVersionUID = 4209562581391042856L;
+
+    private static final int defaultCapacity = 16;
+
+    private int[] indices;
+
+    private double[] values;
+
+    // Number of used entries of the arrays.
+    private int size;
+
+    // Whether the used entries are sorted and unique, only changed by the building thread or under the lock.
+    private volatile boolean compacted = true;
+
+    public SortedArrayFeatureVector(FeatureAlphabet alphabet) {
+        this(alphabet, defaultCapacity);
+    }
+
+    /**
+     * @param alphabet        The feature alphabet.
+     * @param initialCapacity Expected number of features, the arrays grow when needed.
+     */
+    public SortedArrayFeatureVector(FeatureAlphabet alphabet, int initialCapacity) {
+        super(alphabet);
+        indices = new int[Math.max(initialCapacity, 1)];
+        values = new double[Math.max(initialCapacity, 1)];
+    }
+
+    @Override
+    public FeatureVector newFeatureVector() {
+        return new SortedArrayFeatureVector(alphabet);
+    }
+
+    @Override
+    protected FeatureVector newVector() {
+        return new SortedArrayFeatureVector(alphabet);
+    }
+
+    @Override
+    protected boolean addFeatureInternal(int featureIndex, double featureValue) {
+        if (size == indices.length) {
+            int capacity = indices.length * 2;
+            indices = Arrays.copyOf(indices, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        // Appending in order keeps the vector compact, which is the case for the results of the merges.
+        if (compacted && size > 0 && indices[size - 1] >= featureIndex) {
+            compacted = false;
+        }
+        indices[size] = featureIndex;
+        values[size] = featureValue;
+        size++;
+        return true;
+    }
+
+    private void ensureCompacted() {
+        if (!compacted) {
+            compact();
+        }
+    }
+
+    private synchronized void compact() {
+        if (compacted) {
+            return;
+        }
+
+        if (!isSorted()) {
+            // Sort the positions by feature index, the position in the low bits keeps the adding order of duplicates.
+            long[] order = new long[size];
+            for (int pos = 0; pos < size; pos++) {
+                order[pos] = ((long) indices[pos] << 32) | pos;
+            }
+            Arrays.sort(order);
+            int[] sortedIndices = new int[indices.length];
+            double[] sortedValues = new double[values.length];
+            for (int pos = 0; pos < size; pos++) {
+                int from = (int) order[pos];
+                sortedIndices[pos] = indices[from];
+                sortedValues[pos] = values[from];
+            }
+            indices = sortedIndices;
+            values = sortedValues;
+        }
+
+        int unique = 0;
+        for (int pos = 0; pos < size; pos++) {
+            if (unique > 0 && indices[unique - 1] == indices[pos]) {
+                values[unique - 1] += values[pos];
+            } else {
+                indices[unique] = indices[pos];
+                values[unique] = values[pos];
+                unique++;
+            }
+        }
+        size = unique;
+        featureSize = unique;
+        compacted = true;
+    }
+
+    private boolean isSorted() {
+        for (int pos = 1; pos < size; pos++) {
+            if (indices[pos - 1] > indices[pos]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double getFeatureValue(int featureIndex) {
+        ensureCompacted();
+        int pos = Arrays.binarySearch(indices, 0, size, featureIndex);
+        return pos < 0 ? 0 : values[pos];
+    }
+
+    @Override
+    public int getFeatureSize() {
+        ensureCompacted();
+        return size;
+    }
+
+    /**
+     * @param pos Position in the sorted features, from 0 to {@link #getFeatureSize()} - 1.
+     * @return The feature index at the position.
+     */
+    public int getIndexAt(int pos) {
+        ensureCompacted();
+        return indices[pos];
+    }
+
+    /**
+     * @param pos Position in the sorted features, from 0 to {@link #getFeatureSize()} - 1.
+     * @return The feature value at the position.
+     */
+    public double getValueAt(int pos) {
+        ensureCompacted();
+        return values[pos];
+    }
+
+    @Override
+    public FeatureIterator featureIterator() {
+        ensureCompacted();
+        return new FeatureIterator() {
+            int pos = -1;
+
+            @Override
+            public int featureIndex() {
+                return indices[pos];
+            }
+
+            @Override
+            public double featureValue() {
+                return values[pos];
+            }
+
+            @Override
+            public boolean hasNext() {
+                return pos + 1 < size;
+            }
+
+            @Override
+            public void next() {
+                pos++;
+            }
+        };
+    }
+
+    @Override
+    public double dotProd(FeatureVector v) {
+        if (!(v instanceof SortedArrayFeatureVector)) {
+            return super.dotProd(v);
+        }
+
+        SortedArrayFeatureVector other = (SortedArrayFeatureVector) v;
+        ensureCompacted();
+        other.ensureCompacted();
+
+        double dotProd = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            int thisIndex = indices[i];
+            int otherIndex = other.indices[j];
+            if (thisIndex < otherIndex) {
+                i++;
+            } else if (thisIndex > otherIndex) {
+                j++;
+            } else {
+                dotProd += values[i++] * other.values[j++];
+            }
+        }
+        return dotProd;
+    }
+
+    @Override
+    public void diff(FeatureVector vectorToDiff, FeatureVector resultVector) {
+        if (!(vectorToDiff instanceof SortedArrayFeatureVector)) {
+            super.diff(vectorToDiff, resultVector);
+            return;
+        }
+
+        SortedArrayFeatureVector other = (SortedArrayFeatureVector) vectorToDiff;
+        ensureCompacted();
+        other.ensureCompacted();
+
+        // Same results as the general diff: features only in the other vector are negated, and the shared features
+        // are kept only if the values differ.
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && indices[i] < other.indices[j])) {
+                resultVector.addFeature(indices[i], values[i]);
+                i++;
+            } else if (i == size || indices[i] > other.indices[j]) {
+                if (other.values[j] != 0) {
+                    resultVector.addFeature(other.indices[j], -other.values[j]);
+                }
+                j++;
+            } else {
+                if (values[i] != other.values[j]) {
+                    resultVector.addFeature(indices[i], values[i] - other.values[j]);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    @Override
+    public void addScaled(FeatureVector vectorToAdd, double multiplier) {
+        if (!(vectorToAdd instanceof SortedArrayFeatureVector) || vectorToAdd == this) {
+            super.addScaled(vectorToAdd, multiplier);
+            return;
+        }
+
+        SortedArrayFeatureVector other = (SortedArrayFeatureVector) vectorToAdd;
+        ensureCompacted();
+        other.ensureCompacted();
+
+        int capacity = size + other.size;
+        if (capacity > indices.length) {
+            indices = Arrays.copyOf(indices, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        // Merge from the back so that the entries of this vector are not overwritten before they are read.
+        int i = size - 1;
+        int j = other.size - 1;
+        int to = capacity;
+        while (j >= 0) {
+            double value = other.values[j] * multiplier;
+            if (i >= 0 && indices[i] > other.indices[j]) {
+                to--;
+                indices[to] = indices[i];
+                values[to] = values[i];
+                i--;
+            } else if (i >= 0 && indices[i] == other.indices[j]) {
+                to--;
+                indices[to] = indices[i];
+                values[to] = values[i] + value;
+                i--;
+                j--;
+            } else {
+                if (value != 0) {
+                    to--;
+                    indices[to] = other.indices[j];
+                    values[to] = value;
+                }
+                j--;
+            }
+        }
+        // The rest of this vector is already in place, shift the merged part down to it.
+        int merged = capacity - to;
+        System.arraycopy(indices, to, indices, i + 1, merged);
+        System.arraycopy(values, to, values, i + 1, merged);
+        size = i + 1 + merged;
+        featureSize = size;
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+        ensureCompacted();
+        out.defaultWriteObject();
+    }
+}
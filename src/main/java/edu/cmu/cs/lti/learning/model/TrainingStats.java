@@ -25,6 +25,17 @@ public class TrainingStats {
 
     private double overallLoss = 0;
 
+    // Checkpoint statistics, updated by the checkpointing thread.
+    private int numCheckpoints = 0;
+
+    private int numSkippedCheckpoints = 0;
+
+    private long lastCheckpointMillis = 0;
+
+    private long totalCheckpointMillis = 0;
+
+    private long lastCheckpointBytes = 0;
+
     public TrainingStats(int averageLossOverN) {
         this.averageLossOverN = averageLossOverN;
         logger.info("Training stats will be output every " + averageLossOverN + " times");
@@ -68,6 +79,48 @@ public class TrainingStats {
         return overallLoss / resetableInstanceCount;
     }
 
+    /**
+     * Record a written checkpoint.
+     *
+     * @param millis Time taken to write the checkpoint.
+     * @param bytes  Size of the checkpoint.
+     */
+    public synchronized void addCheckpoint(long millis, long bytes) {
+        numCheckpoints++;
+        lastCheckpointMillis = millis;
+        totalCheckpointMillis += millis;
+        lastCheckpointBytes = bytes;
+        logger.info(String.format("Checkpoint %d of %s took %d ms for %d bytes.", numCheckpoints, name, millis,
+                bytes));
+    }
+
+    /**
+     * Record a checkpoint skipped because the previous one was still being written.
+     */
+    public synchronized void addSkippedCheckpoint() {
+        numSkippedCheckpoints++;
+    }
+
+    public synchronized int getNumCheckpoints() {
+        return numCheckpoints;
+    }
+
+    public synchronized int getNumSkippedCheckpoints() {
+        return numSkippedCheckpoints;
+    }
+
+    public synchronized long getLastCheckpointMillis() {
+        return lastCheckpointMillis;
+    }
+
+    public synchronized double getAverageCheckpointMillis() {
+        return numCheckpoints == 0 ? 0 : (double) totalCheckpointMillis / numCheckpoints;
+    }
+
+    public synchronized long getLastCheckpointBytes() {
+        return lastCheckpointBytes;
+    }
+
     public static void main(String[] argv) {
         Logger logger = LoggerFactory.getLogger(TrainingStats.class);
         TrainingStats trainingStats = new TrainingStats(5);
@@ -0,0 +1,62 @@
+package edu.cmu.cs.lti.learning.model;
+
+/**
+ * Storage precision of the weights of an inference model. The 16 and 8 bit precisions are linear quantization with a
+ * scale for each vector, the weight with the largest magnitude is mapped to the largest quantized value.
+ * <p>
+ * Each precision has a fixed code in the binary model format, so the constants can be reordered or added freely.
+ *
+ * @author Zhengzhong Liu
+ */
+public enum WeightPrecision {
+    DOUBLE(0, 8, 0), FLOAT(1, 4, 0), SHORT(2, 2, Short.MAX_VALUE), BYTE(3, 1, Byte.MAX_VALUE);
+
+    private final byte code;
+
+    private final int bytes;
+
+    private final int maxQuantized;
+
+    WeightPrecision(int code, int bytes, int maxQuantized) {
+        this.code = (byte) code;
+        this.bytes = bytes;
+        this.maxQuantized = maxQuantized;
+    }
+
+    /**
+     * @return The code of the precision in the binary model format.
+     */
+    byte getCode() {
+        return code;
+    }
+
+    /**
+     * @return The precision of the code in the binary model format, or null if the code is unknown.
+     */
+    static WeightPrecision fromCode(byte code) {
+        for (WeightPrecision precision : values()) {
+            if (precision.code == code) {
+                return precision;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of bytes used to store one weight.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public boolean isQuantized() {
+        return maxQuantized != 0;
+    }
+
+    /**
+     * @return The largest quantized value, 0 if the precision is not quantized.
+     */
+    public int getMaxQuantized() {
+        return maxQuantized;
+    }
+}
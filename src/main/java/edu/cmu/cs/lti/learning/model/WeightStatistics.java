@@ -0,0 +1,417 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Health statistics of a {@link GraphWeightVector}: for each node and edge vector, and in total, the number of non-zero
+ * weights, the L1 and L2 norms, the largest magnitude and a histogram of the magnitudes, of both the raw and the
+ * averaged weights. For hash alphabets, it also reports the hash pressure, i.e. the fraction of buckets used by the
+ * model and the collisions expected from it, plus the actual collisions among the recorded names if the alphabet is
+ * readable, and the distinct features estimated by the alphabet if it sketches them.
+ * <p>
+ * The vectors are read in parallel and nothing of the model is changed. To inspect a model during training, compute
+ * the statistics of its {@link GraphWeightVector#snapshot()}. The report is written as JSON.
+ * <p>
+ * Usage: WeightStatistics [model file, binary if ends with .bin] [output JSON file] [number of threads]
+ *
+ * @author Zhengzhong Liu
+ */
+public class WeightStatistics {
+    private static final Logger logger = LoggerFactory.getLogger(WeightStatistics.class);
+
+    // The histogram has a bin below 10^minExponent, one bin per power of ten up to 10^maxExponent, and one above.
+    private static final int minExponent = -6;
+
+    private static final int maxExponent = 3;
+
+    private static final int numBins = maxExponent - minExponent + 2;
+
+    /**
+     * Statistics of a set of weights.
+     */
+    public static class Summary {
+        private long numNonZeros;
+
+        private double l1;
+
+        private double sumSquares;
+
+        private double maxAbs;
+
+        private final long[] histogram = new long[numBins];
+
+        private void add(double weight) {
+            if (weight == 0) {
+                return;
+            }
+            double magnitude = Math.abs(weight);
+            numNonZeros++;
+            l1 += magnitude;
+            sumSquares += magnitude * magnitude;
+            maxAbs = Math.max(maxAbs, magnitude);
+            int bin = (int) Math.floor(Math.log10(magnitude)) - minExponent + 1;
+            histogram[Math.max(0, Math.min(numBins - 1, bin))]++;
+        }
+
+        private void merge(Summary other) {
+            numNonZeros += other.numNonZeros;
+            l1 += other.l1;
+            sumSquares += other.sumSquares;
+            maxAbs = Math.max(maxAbs, other.maxAbs);
+            for (int bin = 0; bin < numBins; bin++) {
+                histogram[bin] += other.histogram[bin];
+            }
+        }
+
+        public long getNumNonZeros() {
+            return numNonZeros;
+        }
+
+        public double getL1() {
+            return l1;
+        }
+
+        public double getL2() {
+            return Math.sqrt(sumSquares);
+        }
+
+        public double getMaxAbs() {
+            return maxAbs;
+        }
+
+        /**
+         * @return Number of weights in each magnitude bin, see {@link #binLabels()}.
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        private void appendJson(StringBuilder sb) {
+            sb.append("{\"nnz\": ").append(numNonZeros);
+            sb.append(", \"l1\": ").append(number(l1));
+            sb.append(", \"l2\": ").append(number(getL2()));
+            sb.append(", \"maxAbs\": ").append(number(maxAbs));
+            sb.append(", \"histogram\": [");
+            for (int bin = 0; bin < numBins; bin++) {
+                sb.append(bin == 0 ? "" : ", ").append(histogram[bin]);
+            }
+            sb.append("]}");
+        }
+    }
+
+    /**
+     * Statistics of one node or edge vector.
+     */
+    public static class VectorStatistics {
+        private final int currentKey;
+
+        // -1 for node vectors.
+        private final int previousKey;
+
+        private final Summary weights = new Summary();
+
+        private final Summary averaged = new Summary();
+
+        private VectorStatistics(int currentKey, int previousKey) {
+            this.currentKey = currentKey;
+            this.previousKey = previousKey;
+        }
+
+        public boolean isNode() {
+            return previousKey < 0;
+        }
+
+        public int getCurrentKey() {
+            return currentKey;
+        }
+
+        public int getPreviousKey() {
+            return previousKey;
+        }
+
+        public Summary getWeights() {
+            return weights;
+        }
+
+        public Summary getAveraged() {
+            return averaged;
+        }
+    }
+
+    private final ClassAlphabet classAlphabet;
+
+    private final int averageUpdateCount;
+
+    private final List<VectorStatistics> vectors;
+
+    private final Summary totalWeights = new Summary();
+
+    private final Summary totalAveraged = new Summary();
+
+    // Hash pressure, the alphabet size is 0 if the alphabet is not a hash alphabet.
+    private int alphabetSize;
+
+    private int occupiedBuckets;
+
+    // Recorded names, named buckets and collided buckets, null if the names are not recorded.
+    private int[] recordedNames;
+
+    // Distinct features looked up by the alphabet and their collision rate, NaN if the alphabet does not sketch them.
+    private double sketchedFeatures = Double.NaN;
+
+    private double sketchedCollisionRate = Double.NaN;
+
+    private WeightStatistics(ClassAlphabet classAlphabet, int averageUpdateCount, List<VectorStatistics> vectors) {
+        this.classAlphabet = classAlphabet;
+        this.averageUpdateCount = averageUpdateCount;
+        this.vectors = vectors;
+        for (VectorStatistics vector : vectors) {
+            totalWeights.merge(vector.weights);
+            totalAveraged.merge(vector.averaged);
+        }
+    }
+
+    /**
+     * Compute the statistics, the vectors are split among the threads.
+     *
+     * @param weightVector The model.
+     * @param numThreads   Number of threads.
+     * @return The statistics.
+     */
+    public static WeightStatistics compute(GraphWeightVector weightVector, int numThreads) {
+        List<VectorStatistics> stats = new ArrayList<>();
+        List<AveragedWeightVector> toVisit = new ArrayList<>();
+        synchronized (weightVector) {
+            for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weightVector.nodeWeightIterator();
+                 iter.hasNext(); ) {
+                Pair<Integer, AveragedWeightVector> node = iter.next();
+                if (node.getValue1() != null) {
+                    stats.add(new VectorStatistics(node.getValue0(), -1));
+                    toVisit.add(node.getValue1());
+                }
+            }
+            for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = weightVector.edgeWeightIterator();
+                 iter.hasNext(); ) {
+                Triplet<Integer, Integer, AveragedWeightVector> edge = iter.next();
+                if (edge.getValue2() != null) {
+                    stats.add(new VectorStatistics(edge.getValue0(), edge.getValue1()));
+                    toVisit.add(edge.getValue2());
+                }
+            }
+        }
+
+        FeatureAlphabet featureAlphabet = weightVector.getFeatureAlphabet();
+        boolean hashed = featureAlphabet instanceof HashAlphabet;
+        int alphabetSize = featureAlphabet.getAlphabetSize();
+        int count = weightVector.getAverageUpdateCount();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        BitSet[] occupied = new BitSet[numThreads];
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < numThreads; thread++) {
+                int first = thread;
+                futures.add(executor.submit(() -> {
+                    BitSet buckets = hashed ? new BitSet(alphabetSize) : null;
+                    // Interleave the vectors, so that the large node vectors are spread over the threads.
+                    for (int i = first; i < toVisit.size(); i += numThreads) {
+                        VectorStatistics vectorStats = stats.get(i);
+                        toVisit.get(i).visitWeights((index, weight, averageSum) -> {
+                            double average = count == 0 ? averageSum : averageSum / count;
+                            vectorStats.weights.add(weight);
+                            vectorStats.averaged.add(average);
+                            if (buckets != null && (weight != 0 || average != 0)) {
+                                buckets.set(index);
+                            }
+                        });
+                    }
+                    occupied[first] = buckets;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        WeightStatistics statistics = new WeightStatistics(weightVector.getClassAlphabet(), count, stats);
+        if (hashed) {
+            BitSet buckets = new BitSet(alphabetSize);
+            for (BitSet threadBuckets : occupied) {
+                buckets.or(threadBuckets);
+            }
+            statistics.alphabetSize = alphabetSize;
+            statistics.occupiedBuckets = buckets.cardinality();
+            HashAlphabet hashAlphabet = (HashAlphabet) featureAlphabet;
+            statistics.recordedNames = hashAlphabet.countRecordedNames();
+            if (hashAlphabet.isEstimateCollisions()) {
+                statistics.sketchedFeatures = hashAlphabet.estimateDistinctFeatures();
+                statistics.sketchedCollisionRate = hashAlphabet.estimateCollisionRate();
+            }
+        }
+        return statistics;
+    }
+
+    public List<VectorStatistics> getVectors() {
+        return vectors;
+    }
+
+    public Summary getTotalWeights() {
+        return totalWeights;
+    }
+
+    public Summary getTotalAveraged() {
+        return totalAveraged;
+    }
+
+    /**
+     * @return Number of hash buckets with a non-zero weight in any vector, 0 if the alphabet is not hashed.
+     */
+    public int getOccupiedBuckets() {
+        return occupiedBuckets;
+    }
+
+    /**
+     * Estimate the fraction of the occupied buckets holding more than one feature, assuming uniform hashing. The
+     * number of features n is estimated from the occupancy, as the expected number of occupied buckets is
+     * m (1 - e^(-n / m)) for m buckets.
+     *
+     * @return The estimated collision fraction, NaN if it cannot be estimated.
+     */
+    public double getEstimatedCollisionFraction() {
+        if (occupiedBuckets == 0 || occupiedBuckets >= alphabetSize) {
+            return Double.NaN;
+        }
+        double load = getEstimatedFeatures() / alphabetSize;
+        double empty = Math.exp(-load);
+        return (1 - empty - load * empty) / (1 - empty);
+    }
+
+    /**
+     * @return The number of features estimated from the bucket occupancy, NaN if it cannot be estimated.
+     */
+    public double getEstimatedFeatures() {
+        if (alphabetSize == 0 || occupiedBuckets >= alphabetSize) {
+            return Double.NaN;
+        }
+        return -alphabetSize * Math.log(1 - (double) occupiedBuckets / alphabetSize);
+    }
+
+    /**
+     * @return Labels of the histogram bins, by the lower bound of the magnitudes.
+     */
+    public static String[] binLabels() {
+        String[] labels = new String[numBins];
+        labels[0] = "0";
+        for (int bin = 1; bin < numBins; bin++) {
+            labels[bin] = "1e" + (bin + minExponent - 1);
+        }
+        return labels;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"averageUpdateCount\": ").append(averageUpdateCount).append(",\n");
+        sb.append("  \"histogramBins\": [");
+        String[] labels = binLabels();
+        for (int bin = 0; bin < numBins; bin++) {
+            sb.append(bin == 0 ? "" : ", ").append('"').append(labels[bin]).append('"');
+        }
+        sb.append("],\n");
+
+        sb.append("  \"total\": {\"vectors\": ").append(vectors.size()).append(", \"weights\": ");
+        totalWeights.appendJson(sb);
+        sb.append(", \"averaged\": ");
+        totalAveraged.appendJson(sb);
+        sb.append("},\n");
+
+        if (alphabetSize > 0) {
+            sb.append("  \"hash\": {\"alphabetSize\": ").append(alphabetSize);
+            sb.append(", \"occupiedBuckets\": ").append(occupiedBuckets);
+            sb.append(", \"occupancy\": ").append(number((double) occupiedBuckets / alphabetSize));
+            sb.append(", \"estimatedFeatures\": ").append(number(getEstimatedFeatures()));
+            sb.append(", \"estimatedCollisionFraction\": ").append(number(getEstimatedCollisionFraction()));
+            if (!Double.isNaN(sketchedFeatures)) {
+                sb.append(", \"sketchedFeatures\": ").append(number(sketchedFeatures));
+                sb.append(", \"sketchedCollisionRate\": ").append(number(sketchedCollisionRate));
+            }
+            if (recordedNames != null) {
+                sb.append(", \"recordedNames\": ").append(recordedNames[0]);
+                sb.append(", \"namedBuckets\": ").append(recordedNames[1]);
+                sb.append(", \"collidedBuckets\": ").append(recordedNames[2]);
+                sb.append(", \"collisionFraction\": ").append(recordedNames[1] == 0 ? "null" :
+                        number((double) recordedNames[2] / recordedNames[1]));
+            }
+            sb.append("},\n");
+        }
+
+        sb.append("  \"vectors\": [");
+        for (int i = 0; i < vectors.size(); i++) {
+            VectorStatistics vector = vectors.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"type\": \"").append(vector.isNode() ? "node" : "edge").append('"');
+            sb.append(", \"class\": ").append(className(vector.currentKey));
+            if (!vector.isNode()) {
+                sb.append(", \"previousClass\": ").append(className(vector.previousKey));
+            }
+            sb.append(", \"weights\": ");
+            vector.weights.appendJson(sb);
+            sb.append(", \"averaged\": ");
+            vector.averaged.appendJson(sb);
+            sb.append('}');
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private String className(int classIndex) {
+        return '"' + StringEscapeUtils.escapeJson(classAlphabet.getClassName(classIndex)) + '"';
+    }
+
+    private static String number(double value) {
+        // JSON has no NaN or infinity.
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+
+    public void write(File outputFile) throws IOException {
+        Files.write(outputFile.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        File modelFile = new File(args[0]);
+        File outputFile = new File(args[1]);
+        int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        GraphWeightVector weightVector = modelFile.getName().endsWith(".bin") ?
+                GraphWeightVector.readBinary(modelFile) : GraphWeightVector.read(modelFile);
+
+        long start = System.currentTimeMillis();
+        WeightStatistics statistics = compute(weightVector, numThreads);
+        statistics.write(outputFile);
+        logger.info(String.format("Statistics of %d vectors written to %s in %d ms.", statistics.vectors.size(),
+                outputFile, System.currentTimeMillis() - start));
+    }
+}
@@ -0,0 +1,291 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.GraphWeightVector;
+import edu.cmu.cs.lti.learning.model.TrainingStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write checkpoints of a model during training, every N updates or every T seconds, whichever comes first. The
+ * checkpoints are written by a background thread in the binary format of {@link GraphWeightVector#writeBinary(File)},
+ * which streams the vectors of the model one at a time, so training does not wait for the checkpoint. A checkpoint is
+ * named after the number of updates counted when the background thread starts reading the model. If the previous
+ * checkpoint is still being written when another one is due, the new one is skipped rather than queued.
+ * <p>
+ * Counting the updates is lock-free, so {@link #onUpdate()} can be called by concurrent training threads. Only the
+ * thread that sees a checkpoint become due claims it, the others carry on.
+ * <p>
+ * Each checkpoint is written to a temporary file, forced to disk and then renamed atomically, so a crash never leaves
+ * a partial checkpoint under a checkpoint name. Only the last K checkpoints of this scheduler are kept, and the write
+ * rate can be limited so that checkpointing does not starve other disk I/O.
+ *
+ * @author Zhengzhong Liu
+ */
+public class CheckpointScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointScheduler.class);
+
+    private static final String suffix = ".bin";
+
+    private static final String tempSuffix = ".tmp";
+
+    private final GraphWeightVector weights;
+
+    private final File directory;
+
+    private final String prefix;
+
+    private final int updateInterval;
+
+    private final long intervalNanos;
+
+    private final int numToKeep;
+
+    private final TrainingStats stats;
+
+    private final ExecutorService executor;
+
+    // The checkpoints written so far, oldest first, only accessed by the checkpointing thread.
+    private final Deque<File> checkpoints = new ArrayDeque<>();
+
+    private final AtomicLong numUpdates = new AtomicLong();
+
+    // The update count at which the next checkpoint is due, Long.MAX_VALUE if disabled.
+    private final AtomicLong nextDueUpdate = new AtomicLong();
+
+    // Claimed by the one thread handling a due checkpoint.
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    private volatile long nextDueTime;
+
+    private volatile long maxBytesPerSecond;
+
+    private volatile Future<File> pending;
+
+    /**
+     * @param weights        The model to checkpoint.
+     * @param directory      The directory of the checkpoints.
+     * @param prefix         The prefix of the checkpoint names, followed by the number of updates.
+     * @param updateInterval Write a checkpoint every this many updates, 0 to disable.
+     * @param secondInterval Write a checkpoint every this many seconds, 0 to disable.
+     * @param numToKeep      Number of latest checkpoints to keep.
+     * @param stats          Receive the latency and size of the checkpoints.
+     */
+    public CheckpointScheduler(GraphWeightVector weights, File directory, String prefix, int updateInterval,
+                               int secondInterval, int numToKeep, TrainingStats stats) {
+        if (numToKeep < 1) {
+            throw new IllegalArgumentException("At least one checkpoint should be kept.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the checkpoint directory " + directory);
+        }
+        this.weights = weights;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.updateInterval = updateInterval;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(secondInterval);
+        this.numToKeep = numToKeep;
+        this.stats = stats;
+        this.executor = Executors.newSingleThreadExecutor();
+        resetInterval();
+    }
+
+    /**
+     * Limit the write rate of the checkpoints.
+     *
+     * @param maxBytesPerSecond The maximum write rate, 0 for no limit.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Count an update of the model, and schedule a checkpoint if one is due. Called by the training loop after each
+     * update, possibly from several threads.
+     *
+     * @return Whether a checkpoint is scheduled.
+     */
+    public boolean onUpdate() {
+        long count = numUpdates.incrementAndGet();
+        if (!isDue(count) || !claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            // Another thread may have handled this checkpoint between the check and the claim.
+            if (!isDue(count)) {
+                return false;
+            }
+            Future<File> previous = pending;
+            if (previous != null && !previous.isDone()) {
+                stats.addSkippedCheckpoint();
+                // Wait for a full interval again, instead of retrying at every update.
+                resetInterval();
+                return false;
+            }
+            checkpoint();
+            return true;
+        } finally {
+            claimed.set(false);
+        }
+    }
+
+    private boolean isDue(long count) {
+        return count >= nextDueUpdate.get() || (intervalNanos > 0 && System.nanoTime() - nextDueTime >= 0);
+    }
+
+    /**
+     * Schedule a checkpoint now, regardless of the intervals.
+     *
+     * @return The future of the checkpoint file.
+     */
+    public synchronized Future<File> checkpoint() {
+        resetInterval();
+        long rate = maxBytesPerSecond;
+        Future<File> scheduled = executor.submit(() -> write(rate));
+        pending = scheduled;
+        return scheduled;
+    }
+
+    private void resetInterval() {
+        nextDueUpdate.set(updateInterval > 0 ? numUpdates.get() + updateInterval : Long.MAX_VALUE);
+        nextDueTime = System.nanoTime() + intervalNanos;
+    }
+
+    private File write(long rate) {
+        // The model is read from now on, so it contains at least this many updates.
+        File target = new File(directory, prefix + "-" + numUpdates.get() + suffix);
+        File temp = new File(directory, target.getName() + tempSuffix);
+        long start = System.nanoTime();
+        boolean moved = false;
+        try {
+            try (CheckpointChannel channel = new CheckpointChannel(FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), rate)) {
+                weights.writeBinary(channel);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } catch (IOException e) {
+            logger.error("Failed to write the checkpoint " + target, e);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            logger.error("Failed to write the checkpoint " + target, e);
+            throw e;
+        } finally {
+            if (!moved && temp.exists() && !temp.delete()) {
+                logger.warn("Cannot delete the temporary checkpoint " + temp);
+            }
+        }
+        stats.addCheckpoint(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), target.length());
+
+        checkpoints.remove(target);
+        checkpoints.addLast(target);
+        while (checkpoints.size() > numToKeep) {
+            File oldest = checkpoints.removeFirst();
+            if (!oldest.delete()) {
+                logger.warn("Cannot delete the old checkpoint " + oldest);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Wait for the checkpoint being written, then stop the checkpointing thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A file channel that paces the writes to a maximum rate, and forces the content to disk before closing, so that
+     * the checkpoint is complete once it is renamed. Closing it again does nothing.
+     */
+    private static class CheckpointChannel implements WritableByteChannel {
+        // Pace in chunks, so that one large write does not burst.
+        private static final int chunkSize = 1 << 16;
+
+        private final FileChannel channel;
+
+        private final long maxBytesPerSecond;
+
+        private final long start = System.nanoTime();
+
+        private long bytesWritten;
+
+        CheckpointChannel(FileChannel channel, long maxBytesPerSecond) {
+            this.channel = channel;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (maxBytesPerSecond <= 0) {
+                return channel.write(src);
+            }
+            int written = 0;
+            int limit = src.limit();
+            while (src.hasRemaining()) {
+                src.limit(Math.min(limit, src.position() + chunkSize));
+                int chunk = channel.write(src);
+                src.limit(limit);
+                written += chunk;
+                bytesWritten += chunk;
+                pace();
+            }
+            return written;
+        }
+
+        private void pace() throws InterruptedIOException {
+            long due = start + (long) (bytesWritten * 1e9 / maxBytesPerSecond);
+            long ahead = due - System.nanoTime();
+            if (ahead > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(ahead);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing the checkpoint.");
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
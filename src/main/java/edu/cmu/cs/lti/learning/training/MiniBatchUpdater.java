@@ -0,0 +1,145 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.GraphFeatureVector;
+import edu.cmu.cs.lti.learning.model.GraphWeightVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Mini-batch perceptron training on a {@link GraphWeightVector}. The instances of a batch are decoded in parallel
+ * with the model of the batch start, each thread sums the update vectors of its instances into its own
+ * {@link GraphFeatureVector}, and the partial sums are merged pairwise in a tree. The model is then updated once by
+ * the batch sum, and the average weights are advanced once per batch.
+ * <p>
+ * Since the model does not change during a batch, the update function could score with the weights freely, the
+ * weights are only written between batches.
+ *
+ * @author Zhengzhong Liu
+ */
+public class MiniBatchUpdater implements AutoCloseable {
+    private final GraphWeightVector weights;
+
+    private final int numThreads;
+
+    private final ExecutorService executor;
+
+    private int numBatches;
+
+    private int numUpdates;
+
+    /**
+     * @param weights    The model to train.
+     * @param numThreads Number of threads to process a batch.
+     */
+    public MiniBatchUpdater(GraphWeightVector weights, int numThreads) {
+        this.weights = weights;
+        this.numThreads = numThreads;
+        this.executor = Executors.newFixedThreadPool(numThreads);
+    }
+
+    /**
+     * Process one batch and update the model with the sum of the updates.
+     *
+     * @param batch          The instances of the batch.
+     * @param updateFunction Decode an instance and give its update vector (e.g. the gold features minus the
+     *                       predicted ones), or null if there is no update. Called from multiple threads.
+     * @param multiplier     The multiplier (step size) of the batch sum.
+     * @param <T>            The instance type.
+     * @return The number of instances with updates in this batch.
+     */
+    public <T> int processBatch(List<T> batch, Function<T, GraphFeatureVector> updateFunction, double multiplier) {
+        int numSlices = Math.min(numThreads, batch.size());
+        GraphFeatureVector[] partialSums = new GraphFeatureVector[numSlices];
+        int[] sliceUpdates = new int[numSlices];
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int slice = 0; slice < numSlices; slice++) {
+            int sliceIndex = slice;
+            int from = batch.size() * slice / numSlices;
+            int to = batch.size() * (slice + 1) / numSlices;
+            futures.add(executor.submit(() -> {
+                GraphFeatureVector sum = newSum();
+                for (T instance : batch.subList(from, to)) {
+                    GraphFeatureVector update = updateFunction.apply(instance);
+                    if (update != null) {
+                        sum.extend(update);
+                        sliceUpdates[sliceIndex]++;
+                    }
+                }
+                partialSums[sliceIndex] = sum;
+            }));
+        }
+        waitFor(futures);
+
+        GraphFeatureVector batchSum = reduce(partialSums);
+
+        int batchUpdates = 0;
+        for (int count : sliceUpdates) {
+            batchUpdates += count;
+        }
+        if (batchSum != null && batchUpdates > 0) {
+            weights.updateWeightsBy(batchSum, multiplier);
+        }
+        weights.updateAverageWeights();
+
+        numBatches++;
+        numUpdates += batchUpdates;
+        return batchUpdates;
+    }
+
+    /**
+     * Merge the partial sums pairwise, each round halves the number of sums and the merges of a round run in
+     * parallel.
+     */
+    private GraphFeatureVector reduce(GraphFeatureVector[] partialSums) {
+        for (int stride = 1; stride < partialSums.length; stride *= 2) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i + stride < partialSums.length; i += 2 * stride) {
+                GraphFeatureVector target = partialSums[i];
+                GraphFeatureVector source = partialSums[i + stride];
+                futures.add(executor.submit(() -> target.extend(source)));
+            }
+            waitFor(futures);
+        }
+        return partialSums.length == 0 ? null : partialSums[0];
+    }
+
+    private GraphFeatureVector newSum() {
+        return new GraphFeatureVector(weights.getClassAlphabet(), weights.getFeatureAlphabet());
+    }
+
+    private void waitFor(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public int getNumBatches() {
+        return numBatches;
+    }
+
+    /**
+     * @return Total number of instances with updates.
+     */
+    public int getNumUpdates() {
+        return numUpdates;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,101 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.GraphWeightVector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Iterative parameter mixing for the averaged perceptron, run locally with worker threads standing for the machines.
+ * Each worker owns a replica of the master model and trains it on its own shard. At the end of each epoch the
+ * replicas are mixed into the master by {@link GraphWeightVector#mixFrom(List, ExecutorService)}, and the master is
+ * copied back to every replica before the next epoch.
+ *
+ * @author Zhengzhong Liu
+ */
+public class ParameterMixingTrainer implements AutoCloseable {
+    private final GraphWeightVector master;
+
+    private final List<GraphWeightVector> replicas;
+
+    private final ExecutorService executor;
+
+    private int numEpochs;
+
+    /**
+     * @param master     The model to train, it holds the mixed weights after each epoch.
+     * @param numWorkers Number of workers, each of them trains one shard.
+     */
+    public ParameterMixingTrainer(GraphWeightVector master, int numWorkers) {
+        this.master = master;
+        this.executor = Executors.newFixedThreadPool(numWorkers);
+        this.replicas = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            replicas.add(master.emptyCopy());
+        }
+    }
+
+    /**
+     * Train one epoch, then mix the replicas into the master.
+     *
+     * @param shards        The instances of each worker, one shard per worker.
+     * @param trainFunction Train a replica with one instance, i.e. decode, update the weights and the average
+     *                      weights. Called from multiple threads, each on its own replica.
+     * @param <T>           The instance type.
+     */
+    public <T> void trainEpoch(List<List<T>> shards, BiConsumer<GraphWeightVector, T> trainFunction) {
+        if (shards.size() != replicas.size()) {
+            throw new IllegalArgumentException(String.format("There are %d shards for %d workers.", shards.size(),
+                    replicas.size()));
+        }
+
+        // Broadcast the master weights.
+        List<GraphWeightVector> masterOnly = Collections.singletonList(master);
+        for (GraphWeightVector replica : replicas) {
+            replica.mixFrom(masterOnly, executor);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int worker = 0; worker < replicas.size(); worker++) {
+            GraphWeightVector replica = replicas.get(worker);
+            List<T> shard = shards.get(worker);
+            futures.add(executor.submit(() -> {
+                for (T instance : shard) {
+                    trainFunction.accept(replica, instance);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        master.mixFrom(replicas, executor);
+        numEpochs++;
+    }
+
+    public GraphWeightVector getMaster() {
+        return master;
+    }
+
+    public int getNumEpochs() {
+        return numEpochs;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
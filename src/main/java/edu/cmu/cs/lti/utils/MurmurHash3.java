@@ -0,0 +1,100 @@
+package edu.cmu.cs.lti.utils;
+
+/**
+ * 32 bit Murmur3 hash computed directly over the UTF-8 encoding of a CharSequence, without allocating the encoded
+ * bytes. The result is the same as Guava's Hashing.murmur3_32().hashString(input, Charsets.UTF_8).asInt(), including
+ * the encoding of unpaired surrogates as '?' (as String.getBytes does).
+ *
+ * @author Zhengzhong Liu
+ */
+public class MurmurHash3 {
+    private static final int c1 = 0xcc9e2d51;
+    private static final int c2 = 0x1b873593;
+
+    private MurmurHash3() {
+    }
+
+    public static int murmur3_32Utf8(CharSequence input) {
+        return murmur3_32Utf8(input, 0);
+    }
+
+    public static int murmur3_32Utf8(CharSequence input, int seed) {
+        int h1 = seed;
+        // Encoded bytes that are not yet mixed, in little endian order.
+        int buffer = 0;
+        int bufferedBits = 0;
+        int length = 0;
+
+        int numChars = input.length();
+        for (int i = 0; i < numChars; i++) {
+            char c = input.charAt(i);
+
+            // The encoded bytes of this character, in little endian order, and the number of bytes.
+            int encoded;
+            int numBytes;
+            if (c < 0x80) {
+                encoded = c;
+                numBytes = 1;
+            } else if (c < 0x800) {
+                encoded = (0xc0 | (c >>> 6)) | ((0x80 | (c & 0x3f)) << 8);
+                numBytes = 2;
+            } else if (!Character.isSurrogate(c)) {
+                encoded = (0xe0 | (c >>> 12)) | ((0x80 | ((c >>> 6) & 0x3f)) << 8) | ((0x80 | (c & 0x3f)) << 16);
+                numBytes = 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < numChars
+                    && Character.isLowSurrogate(input.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, input.charAt(++i));
+                encoded = (0xf0 | (codePoint >>> 18)) | ((0x80 | ((codePoint >>> 12) & 0x3f)) << 8)
+                        | ((0x80 | ((codePoint >>> 6) & 0x3f)) << 16) | ((0x80 | (codePoint & 0x3f)) << 24);
+                numBytes = 4;
+            } else {
+                // Unpaired surrogate is replaced by '?'.
+                encoded = '?';
+                numBytes = 1;
+            }
+
+            length += numBytes;
+
+            // Append the bytes to the buffer, and mix each complete 4 bytes block.
+            int encodedBits = numBytes * 8;
+            buffer |= encoded << bufferedBits;
+            bufferedBits += encodedBits;
+            if (bufferedBits >= 32) {
+                h1 = mixH1(h1, mixK1(buffer));
+                bufferedBits -= 32;
+                // The bytes of this character that do not fit in the mixed block.
+                buffer = bufferedBits == 0 ? 0 : encoded >>> (encodedBits - bufferedBits);
+            }
+        }
+
+        if (bufferedBits > 0) {
+            h1 ^= mixK1(buffer);
+        }
+
+        return fmix(h1, length);
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= c1;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= c2;
+        return k1;
+    }
+
+    private static int mixH1(int h1, int k1) {
+        h1 ^= k1;
+        h1 = Integer.rotateLeft(h1, 13);
+        h1 = h1 * 5 + 0xe6546b64;
+        return h1;
+    }
+
+    private static int fmix(int h1, int length) {
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.cmu.cs.lti.learning.debug;
+
+import edu.cmu.cs.lti.learning.model.AveragedWeightVector;
+import edu.cmu.cs.lti.learning.model.ClassAlphabet;
+import edu.cmu.cs.lti.learning.model.FeatureVector;
+import edu.cmu.cs.lti.learning.model.GraphWeightVector;
+import edu.cmu.cs.lti.learning.model.HashAlphabet;
+import edu.cmu.cs.lti.learning.model.RealValueHashFeatureVector;
+import gnu.trove.iterator.TIntDoubleIterator;
+import org.apache.commons.lang3.tuple.Triple;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * The top k weights written by the inspector should be the head of a full sort of the non-zero weights, with equal
+ * weights ranking the smaller feature index higher.
+ *
+ * @author Zhengzhong Liu
+ */
+public class HashedFeatureInspectorTest {
+    private static final double[] weightChoices = {-1, 0, 0.5, 1, 2};
+
+    @Test
+    public void topK() throws IOException {
+        HashAlphabet featureAlphabet = new HashAlphabet(10, true);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class0", "class1", "class2"});
+        GraphWeightVector weights = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+
+        // Few distinct values so that there are many ties.
+        Random random = new Random(7);
+        for (int classIndex = 0; classIndex < 3; classIndex++) {
+            weights.updateWeightsBy(randomFeatures(featureAlphabet, random), classIndex, 1);
+            for (int previous = 0; previous < 3; previous++) {
+                weights.updateWeightsBy(randomFeatures(featureAlphabet, random), classIndex, previous, 1);
+            }
+        }
+        weights.updateAverageWeights();
+
+        HashedFeatureInspector inspector = new HashedFeatureInspector(weights);
+        List<double[]> finalWeights = sortedFinalWeights(weights, featureAlphabet);
+        List<double[]> stateWeights = sortedStateWeights(weights, featureAlphabet);
+        Assert.assertTrue(finalWeights.size() > 10);
+        Assert.assertTrue(stateWeights.size() > 10);
+
+        File outputFile = File.createTempFile("topk", ".tsv");
+        try {
+            for (int k : new int[]{0, 1, 10, finalWeights.size(), 1000}) {
+                inspector.writeTopKFinalFeatures(outputFile, k);
+                assertTopK(finalWeights, k, outputFile);
+            }
+            for (int k : new int[]{0, 1, 10, stateWeights.size(), 1000}) {
+                inspector.writeTopKAverageStateFeatures(outputFile, k);
+                assertTopK(stateWeights, k, outputFile);
+            }
+        } finally {
+            outputFile.delete();
+        }
+
+        // The deprecated queue polls the lowest ranked first.
+        PriorityQueue<Triple<Integer, String, Double>> queue = inspector.loadTopKFinalFeatures(10);
+        Assert.assertEquals(10, queue.size());
+        for (int rank = 9; rank >= 0; rank--) {
+            Triple<Integer, String, Double> feature = queue.poll();
+            Assert.assertEquals((int) finalWeights.get(rank)[0], (int) feature.getLeft());
+            Assert.assertEquals(finalWeights.get(rank)[1], feature.getRight(), 0);
+        }
+    }
+
+    private FeatureVector randomFeatures(HashAlphabet featureAlphabet, Random random) {
+        FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+        for (int i = 0; i < 20; i++) {
+            fv.addFeature("feature" + random.nextInt(30), weightChoices[random.nextInt(weightChoices.length)]);
+        }
+        return fv;
+    }
+
+    private void assertTopK(List<double[]> sortedWeights, int k, File outputFile) throws IOException {
+        List<String> lines = Files.readAllLines(outputFile.toPath(), StandardCharsets.UTF_8);
+        int expectedSize = Math.min(k, sortedWeights.size());
+        Assert.assertEquals(expectedSize + 1, lines.size());
+        for (int rank = 0; rank < expectedSize; rank++) {
+            String[] fields = lines.get(rank + 1).split("\t");
+            Assert.assertEquals("Rank " + rank + " of top " + k, (int) sortedWeights.get(rank)[0],
+                    Integer.parseInt(fields[0]));
+            Assert.assertEquals("Rank " + rank + " of top " + k, sortedWeights.get(rank)[1],
+                    Double.parseDouble(fields[2]), 1e-8);
+        }
+    }
+
+    private List<double[]> sortedFinalWeights(GraphWeightVector weights, HashAlphabet featureAlphabet) {
+        List<double[]> all = new ArrayList<>();
+        for (Iterator<Pair<Integer, AveragedWeightVector>> iter = weights.nodeWeightIterator(); iter.hasNext(); ) {
+            addNonZero(iter.next().getValue1().getWeightsIterator(), featureAlphabet, all);
+        }
+        return sort(all);
+    }
+
+    private List<double[]> sortedStateWeights(GraphWeightVector weights, HashAlphabet featureAlphabet) {
+        List<double[]> all = new ArrayList<>();
+        for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = weights.edgeWeightIterator(); iter
+                .hasNext(); ) {
+            addNonZero(iter.next().getValue2().getAverageWeightsIterator(), featureAlphabet, all);
+        }
+        return sort(all);
+    }
+
+    private void addNonZero(TIntDoubleIterator iter, HashAlphabet featureAlphabet, List<double[]> all) {
+        while (iter.hasNext()) {
+            iter.advance();
+            if (iter.value() != 0 && featureAlphabet.hasMappedFeatureNames(iter.key())) {
+                all.add(new double[]{iter.key(), iter.value()});
+            }
+        }
+    }
+
+    private List<double[]> sort(List<double[]> all) {
+        all.sort((w1, w2) -> w1[1] != w2[1] ? Double.compare(w2[1], w1[1]) : Double.compare(w1[0], w2[0]));
+        return all;
+    }
+}
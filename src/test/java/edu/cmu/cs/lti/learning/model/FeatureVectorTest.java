@@ -0,0 +1,119 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * The in place operations should give the same values for all the implementations, whether the fast paths are used or
+ * not.
+ *
+ * @author Zhengzhong Liu
+ */
+public class FeatureVectorTest {
+    private final FeatureAlphabet alphabet = new HashAlphabet(8, false);
+
+    private FeatureVector[] newVectors() {
+        return new FeatureVector[]{new RealValueHashFeatureVector(alphabet), new SortedArrayFeatureVector(alphabet),
+                new RealValueLazyListFeatureVector(alphabet)};
+    }
+
+    private void fill(FeatureVector[] vectors, Random random) {
+        int numFeatures = random.nextInt(30);
+        for (int i = 0; i < numFeatures; i++) {
+            int featureIndex = random.nextInt(40);
+            double value = random.nextInt(5) - 2;
+            for (FeatureVector fv : vectors) {
+                fv.addFeature(featureIndex, value);
+            }
+        }
+    }
+
+    private void assertSameValues(FeatureVector expected, FeatureVector actual) {
+        for (int featureIndex = 0; featureIndex < 40; featureIndex++) {
+            Assert.assertEquals(expected.getFeatureValue(featureIndex), actual.getFeatureValue(featureIndex), 1e-9);
+        }
+    }
+
+    @Test
+    public void inPlaceOperations() {
+        Random random = new Random(11);
+        for (int trial = 0; trial < 200; trial++) {
+            FeatureVector[] left = newVectors();
+            FeatureVector[] right = newVectors();
+            fill(left, random);
+            fill(right, random);
+
+            // The expected values come from the general implementation, with a mix of vector classes.
+            FeatureVector expectedSum = new RealValueHashFeatureVector(alphabet);
+            expectedSum.extend(left[1]);
+            expectedSum.extend(right[2], 0.5);
+            FeatureVector expectedDiff = new RealValueHashFeatureVector(alphabet);
+            left[1].diff(right[0], expectedDiff);
+
+            for (int i = 0; i < left.length; i++) {
+                for (int j = 0; j < right.length; j++) {
+                    FeatureVector sum = left[i].newFeatureVector();
+                    sum.extend(left[i]);
+                    sum.addScaled(right[j], 0.5);
+                    assertSameValues(expectedSum, sum);
+
+                    FeatureVector diff = left[i].newFeatureVector();
+                    left[i].diff(right[j], diff);
+                    assertSameValues(expectedDiff, diff);
+
+                    FeatureVector subtracted = left[i].newFeatureVector();
+                    subtracted.extend(left[i]);
+                    subtracted.subtract(right[j]);
+                    assertSameValues(expectedDiff, subtracted);
+                }
+
+                FeatureVector negated = left[i].negation();
+                for (FeatureVector.FeatureIterator iter = negated.featureIterator(); iter.hasNext(); ) {
+                    iter.next();
+                    Assert.assertNotEquals(0, iter.featureValue(), 0);
+                }
+                for (int featureIndex = 0; featureIndex < 40; featureIndex++) {
+                    Assert.assertEquals(-left[i].getFeatureValue(featureIndex), negated.getFeatureValue(featureIndex),
+                            1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void graphDiff() {
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+        GraphFeatureVector gold = new GraphFeatureVector(classAlphabet, alphabet);
+        GraphFeatureVector prediction = new GraphFeatureVector(classAlphabet, alphabet);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(alphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+        FeatureVector fv2 = new RealValueHashFeatureVector(alphabet);
+        fv2.addFeature("feature2", 2);
+        fv2.addFeature("feature3", 3);
+
+        gold.extend(fv1, 1);
+        gold.extend(fv2, 1, 0);
+        prediction.extend(fv2, 1);
+        prediction.extend(fv1, 2);
+        prediction.extend(fv1, 1, 0);
+
+        GraphFeatureVector diff = gold.newGraphFeatureVector();
+        gold.diff(prediction, diff);
+        Assert.assertEquals(1, diff.getFeatureVectorAtClass(1).getFeatureValue("feature1"), 0);
+        Assert.assertEquals(0, diff.getFeatureVectorAtClass(1).getFeatureValue("feature2"), 0);
+        Assert.assertEquals(-3, diff.getFeatureVectorAtClass(1).getFeatureValue("feature3"), 0);
+        Assert.assertEquals(-2, diff.getFeatureVectorAtClass(2).getFeatureValue("feature2"), 0);
+        Assert.assertEquals(-1, diff.getFeatureVectorAtEdge(1, 0).getFeatureValue("feature1"), 0);
+        Assert.assertEquals(3, diff.getFeatureVectorAtEdge(1, 0).getFeatureValue("feature3"), 0);
+
+        GraphFeatureVector nodeDiff = gold.nodeOnlyDiff(prediction);
+        Assert.assertEquals(2, nodeDiff.getFeatureVectorAtClass(1).getFeatureSize());
+        Assert.assertEquals(-3, nodeDiff.getFeatureVectorAtClass(1).getFeatureValue("feature3"), 0);
+        Assert.assertEquals(-1, nodeDiff.getFeatureVectorAtClass(2).getFeatureValue("feature1"), 0);
+        Assert.assertNull(nodeDiff.getFeatureVectorAtEdge(1, 0));
+    }
+}
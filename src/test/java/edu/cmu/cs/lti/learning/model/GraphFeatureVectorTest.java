@@ -0,0 +1,49 @@
+package edu.cmu.cs.lti.learning.model;
+
+import edu.cmu.cs.lti.collections.TIntIntObjectHashTable.TIntIntObjectIterator;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+
+/**
+ * Graph feature vectors written with the edges in a Guava table should be read into the primitive table.
+ *
+ * @author Zhengzhong Liu
+ */
+public class GraphFeatureVectorTest {
+    @Test
+    public void readTableFormat() throws Exception {
+        // The feature vectors do not keep their alphabet, look the features up with the same hash alphabet.
+        FeatureAlphabet alphabet = new HashAlphabet(10, false);
+        GraphFeatureVector gfv;
+        try (InputStream in = getClass().getResourceAsStream("graph-feature-vector-table.ser")) {
+            gfv = SerializationUtils.deserialize(in);
+        }
+
+        FeatureVector node = gfv.getFeatureVectorAtClass(1);
+        Assert.assertEquals(1, node.getFeatureValue(alphabet.getFeatureId("node1")), 0);
+        Assert.assertEquals(2, node.getFeatureValue(alphabet.getFeatureId("node2")), 0);
+        FeatureVector edge = gfv.getFeatureVectorAtEdge(2, 1);
+        Assert.assertEquals(-1.5, edge.getFeatureValue(alphabet.getFeatureId("edge2")), 0);
+        Assert.assertEquals(3, edge.getFeatureValue(alphabet.getFeatureId("edge3")), 0);
+        Assert.assertEquals(0.5, gfv.getFeatureVectorAtEdge(1, 0).getFeatureValue(alphabet.getFeatureId("edge1")), 0);
+        Assert.assertNull(gfv.getFeatureVectorAtEdge(1, 2));
+
+        int numEdges = 0;
+        for (TIntIntObjectIterator<FeatureVector> iter = gfv.edgeFvIterator(); iter.hasNext(); ) {
+            iter.advance();
+            numEdges++;
+        }
+        Assert.assertEquals(2, numEdges);
+
+        // The migrated vector can be extended and written in the current format.
+        gfv.add("edge4", 1, 1, 2);
+        GraphFeatureVector copy = SerializationUtils.clone(gfv);
+        edge = copy.getFeatureVectorAtEdge(1, 2);
+        Assert.assertEquals(1, edge.getFeatureValue(alphabet.getFeatureId("edge4")), 0);
+        edge = copy.getFeatureVectorAtEdge(2, 1);
+        Assert.assertEquals(3, edge.getFeatureValue(alphabet.getFeatureId("edge3")), 0);
+    }
+}
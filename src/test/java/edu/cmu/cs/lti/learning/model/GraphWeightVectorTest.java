@@ -1,12 +1,22 @@
 package edu.cmu.cs.lti.learning.model;
 
 import org.apache.commons.lang3.SerializationUtils;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * Created with IntelliJ IDEA.
@@ -53,4 +63,636 @@ public class GraphWeightVectorTest {
         Assert.assertEquals(1, modelBack.getNodeWeights("class1").getFeatureSize());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concurrentMode() {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"});
+
+        GraphWeightVector defaultWeights = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        GraphWeightVector concurrentWeights = GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "");
+        Assert.assertTrue(concurrentWeights.isConcurrent());
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+
+        for (GraphWeightVector weights : new GraphWeightVector[]{defaultWeights, concurrentWeights}) {
+            weights.updateWeightsBy(fv1, 0, 1);
+            weights.updateWeightsBy(fv1, 0, 1, -1);
+            weights.updateAverageWeights();
+            weights.updateWeightsBy(fv2, 1, 0.5);
+            weights.updateWeightsBy(fv2, 1, 0, 2);
+            weights.updateAverageWeights();
+            weights.updateAverageWeights();
+        }
+
+        for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+            for (int classIndex = 0; classIndex < 2; classIndex++) {
+                Assert.assertEquals(defaultWeights.dotProd(fv, classIndex),
+                        concurrentWeights.dotProd(fv, classIndex), 1e-9);
+                Assert.assertEquals(defaultWeights.dotProdAver(fv, classIndex),
+                        concurrentWeights.dotProdAver(fv, classIndex), 1e-9);
+                Assert.assertEquals(defaultWeights.dotProdAver(fv, classIndex, 0),
+                        concurrentWeights.dotProdAver(fv, classIndex, 0), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void binaryFormat() throws IOException {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+
+        GraphWeightVector[] models = {
+                new GraphWeightVector(classAlphabet, featureAlphabet, "spec"),
+                new GraphWeightVector(classAlphabet, featureAlphabet, "spec", true, true),
+                GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "spec")
+        };
+
+        for (GraphWeightVector model : models) {
+            train(model, fv1, fv2);
+
+            File javaFile = File.createTempFile("weights", ".ser");
+            File binaryFile = File.createTempFile("weights", ".bin");
+            model.write(javaFile);
+            model.writeBinary(binaryFile);
+
+            GraphWeightVector javaModel = GraphWeightVector.read(javaFile);
+            GraphWeightVector binaryModel = GraphWeightVector.readBinary(binaryFile);
+            Assert.assertEquals("spec", binaryModel.getFeatureSpec());
+            Assert.assertEquals(model.isConcurrent(), binaryModel.isConcurrent());
+            Assert.assertEquals(classAlphabet.getOutsideClassIndex(),
+                    binaryModel.getClassAlphabet().getOutsideClassIndex());
+
+            // Both should resume training in the same way.
+            train(javaModel, fv1, fv2);
+            train(binaryModel, fv1, fv2);
+
+            for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                for (int classIndex = 1; classIndex < 3; classIndex++) {
+                    Assert.assertEquals(javaModel.dotProd(fv, classIndex), binaryModel.dotProd(fv, classIndex),
+                            1e-9);
+                    Assert.assertEquals(javaModel.dotProdAver(fv, classIndex),
+                            binaryModel.dotProdAver(fv, classIndex), 1e-9);
+                    Assert.assertEquals(javaModel.dotProdAver(fv, classIndex, 1),
+                            binaryModel.dotProdAver(fv, classIndex, 1), 1e-9);
+                }
+            }
+
+            javaFile.delete();
+            binaryFile.delete();
+        }
+    }
+
+    @Test
+    public void freeze() throws IOException {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+
+        GraphWeightVector model = new GraphWeightVector(classAlphabet, featureAlphabet, "spec", true, true);
+        train(model, fv1, fv2);
+
+        FrozenGraphWeightVector frozen = model.freeze();
+        File binaryFile = File.createTempFile("weights", ".bin");
+        model.writeBinary(binaryFile);
+        FrozenGraphWeightVector mapped = FrozenGraphWeightVector.readBinary(binaryFile);
+
+        // The deserialized model is consolidated, i.e. it holds the averages instead of the sums.
+        File javaFile = File.createTempFile("weights", ".ser");
+        model.write(javaFile);
+        GraphWeightVector averaged = SerializationUtils.deserialize(new FileInputStream(javaFile));
+
+        // A missing edge is simply scored 0.
+        Assert.assertNull(frozen.getEdgeWeights(0, 0));
+        Assert.assertEquals(0, frozen.dotProdAver(fv1, 0, 0), 0);
+
+        for (FrozenGraphWeightVector inference : new FrozenGraphWeightVector[]{frozen, mapped}) {
+            for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                for (int classIndex = 0; classIndex < 3; classIndex++) {
+                    Assert.assertEquals(averaged.dotProdAver(fv, classIndex),
+                            inference.dotProdAver(fv, classIndex), 1e-9);
+                    for (int previous = 0; previous < 3; previous++) {
+                        Assert.assertEquals(averaged.dotProdAver(fv, classIndex, previous),
+                                inference.dotProdAver(fv, classIndex, previous), 1e-9);
+                    }
+                }
+            }
+        }
+
+        // Further training does not change the frozen model.
+        double before = frozen.dotProdAver(fv1, 1);
+        train(model, fv1, fv2);
+        Assert.assertEquals(before, frozen.dotProdAver(fv1, 1), 0);
+
+        binaryFile.delete();
+        javaFile.delete();
+    }
+
+    @Test
+    public void quantize() throws IOException {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+
+        GraphWeightVector model = new GraphWeightVector(classAlphabet, featureAlphabet, "spec");
+        train(model, fv1, fv2);
+        FrozenGraphWeightVector full = model.freeze();
+
+        for (WeightPrecision precision : WeightPrecision.values()) {
+            FrozenGraphWeightVector lower = model.freeze(precision);
+            File binaryFile = File.createTempFile("weights", ".bin");
+            lower.writeBinary(binaryFile);
+            FrozenGraphWeightVector mapped = FrozenGraphWeightVector.readBinary(binaryFile);
+
+            for (int classIndex = 0; classIndex < 3; classIndex++) {
+                FrozenWeightVector expected = full.getNodeWeights(classIndex);
+                FrozenWeightVector actual = lower.getNodeWeights(classIndex);
+                if (expected == null) {
+                    Assert.assertNull(actual);
+                    continue;
+                }
+                Assert.assertEquals(precision, actual.getPrecision());
+                Assert.assertEquals(expected.getFeatureSize() * (4 + precision.getBytes()),
+                        actual.getStorageBytes());
+
+                // A quantized weight is at most half a step away from the real one.
+                double bound = precision.isQuantized() ? actual.getScale() / 2 + 1e-12 : 1e-6;
+                for (int pos = 0; pos < expected.getFeatureSize(); pos++) {
+                    int index = expected.indexAt(pos);
+                    Assert.assertEquals(expected.getWeightAt(index), actual.getWeightAt(index), bound);
+                    Assert.assertEquals(actual.getWeightAt(index),
+                            mapped.getNodeWeights(classIndex).getWeightAt(index), 0);
+                }
+            }
+            binaryFile.delete();
+        }
+
+        // The precision is the last byte of the header, an unknown code is rejected.
+        File binaryFile = File.createTempFile("weights", ".bin");
+        model.freeze(WeightPrecision.SHORT).writeBinary(binaryFile);
+        try (RandomAccessFile file = new RandomAccessFile(binaryFile, "rw")) {
+            file.seek(8);
+            int headerLength = Integer.reverseBytes(file.readInt());
+            file.seek(12 + headerLength - 1);
+            Assert.assertEquals(WeightPrecision.SHORT.getCode(), file.readByte());
+            file.seek(12 + headerLength - 1);
+            file.writeByte(42);
+        }
+        try {
+            FrozenGraphWeightVector.readBinary(binaryFile);
+            Assert.fail("An unknown precision should not be read.");
+        } catch (IOException e) {
+            Assert.assertEquals("Unknown weight precision code 42", e.getMessage());
+        } finally {
+            binaryFile.delete();
+        }
+    }
+
+    @Test
+    public void scoreAllClasses() {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+        fv2.addFeature("feature4", 1);
+
+        for (GraphWeightVector model : new GraphWeightVector[]{new GraphWeightVector(classAlphabet,
+                featureAlphabet, "spec"), new GraphWeightVector(classAlphabet, featureAlphabet, "spec", true, true),
+                GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "spec")}) {
+            train(model, fv1, fv2);
+
+            double[] scores = new double[classAlphabet.size()];
+            for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                model.scoreAllClassesAver(fv, scores);
+                for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+                    Assert.assertEquals(model.dotProdAver(fv, classIndex), scores[classIndex], 1e-9);
+                }
+            }
+
+            for (WeightPrecision precision : WeightPrecision.values()) {
+                FrozenGraphWeightVector frozen = model.freeze(precision);
+                FrozenGraphWeightVector packed = frozen.withPackedNodeWeights();
+                Assert.assertFalse(frozen.isNodeWeightsPacked());
+                Assert.assertTrue(packed.isNodeWeightsPacked());
+                Assert.assertTrue(packed.getStorageBytes() > frozen.getStorageBytes());
+                Assert.assertTrue(packed.withPrecision(WeightPrecision.FLOAT).isNodeWeightsPacked());
+
+                for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                    for (FrozenGraphWeightVector inference : new FrozenGraphWeightVector[]{frozen, packed}) {
+                        inference.scoreAllClasses(fv, scores);
+                        for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+                            Assert.assertEquals(frozen.dotProdAver(fv, classIndex), scores[classIndex], 1e-9);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void frozenUnknownClass() {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+        fv.addFeature("feature1", 1);
+
+        GraphWeightVector model = new GraphWeightVector(classAlphabet, featureAlphabet, "spec");
+        model.updateWeightsBy(fv, classAlphabet.getClassIndex("class1"), 1);
+        model.updateAverageWeights();
+        FrozenGraphWeightVector frozen = model.freeze();
+
+        Assert.assertEquals(1, frozen.dotProdAver(fv, "class1"), 1e-9);
+        Assert.assertEquals(0, frozen.dotProdAver(fv, "unknown"), 0);
+        Assert.assertTrue(frozen.getClassAlphabet().isReadOnly());
+        Assert.assertEquals(3, frozen.getClassAlphabet().size());
+        Assert.assertEquals(-1, classAlphabet.lookupClassIndex("unknown"));
+        Assert.assertEquals(3, classAlphabet.size());
+    }
+
+    @Test
+    public void negativeKeys() {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"});
+
+        FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+        fv.addFeature("feature1", 1);
+
+        for (GraphWeightVector model : new GraphWeightVector[]{
+                new GraphWeightVector(classAlphabet, featureAlphabet, "spec"),
+                GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "spec")}) {
+            model.updateWeightsBy(fv, 1, 1);
+            model.updateWeightsBy(fv, 1, 0, 1);
+
+            try {
+                model.updateWeightsBy(fv, -1, 1);
+                Assert.fail("Negative class index should be rejected.");
+            } catch (IllegalArgumentException expected) {
+                // Nothing is added.
+            }
+            try {
+                model.updateWeightsBy(fv, 1, -1, 1);
+                Assert.fail("Negative previous key should be rejected.");
+            } catch (IllegalArgumentException expected) {
+                // Nothing is added.
+            }
+            try {
+                model.dotProdAver(fv, -1, 0);
+                Assert.fail("Negative current key should be rejected.");
+            } catch (IllegalArgumentException expected) {
+                // Nothing is added.
+            }
+
+            Assert.assertNull(model.getNodeWeights(-1));
+            Assert.assertNull(model.getEdgeWeights(-1, 0));
+            Assert.assertNull(model.getEdgeWeights(1, -1));
+
+            // The maps and the lookup arrays still agree.
+            int numNodes = 0;
+            for (Iterator<Pair<Integer, AveragedWeightVector>> iter = model.nodeWeightIterator(); iter.hasNext(); ) {
+                Pair<Integer, AveragedWeightVector> node = iter.next();
+                Assert.assertSame(node.getValue1(), model.getNodeWeights(node.getValue0()));
+                numNodes++;
+            }
+            Assert.assertEquals(1, numNodes);
+            int numEdges = 0;
+            for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = model.edgeWeightIterator();
+                 iter.hasNext(); ) {
+                Triplet<Integer, Integer, AveragedWeightVector> edge = iter.next();
+                Assert.assertSame(edge.getValue2(), model.getEdgeWeights(edge.getValue0(), edge.getValue1()));
+                numEdges++;
+            }
+            Assert.assertEquals(1, numEdges);
+            Assert.assertEquals(1, model.dotProd(fv, 1), 0);
+            Assert.assertEquals(1, model.dotProd(fv, 1, 0), 0);
+        }
+    }
+
+    @Test
+    public void writeLeavesModelUnchanged() throws Exception {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 0.1);
+        fv1.addFeature("feature2", 0.3);
+        // A zero weight, which consolidation would remove.
+        fv1.addFeature("feature4", 0);
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -0.7);
+        fv2.addFeature("feature3", 0.9);
+
+        GraphWeightVector[] settings = new GraphWeightVector[]{
+                new GraphWeightVector(classAlphabet, featureAlphabet, ""),
+                new GraphWeightVector(classAlphabet, featureAlphabet, "", true),
+                new GraphWeightVector(classAlphabet, featureAlphabet, "", true, true),
+                GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "")
+        };
+
+        for (GraphWeightVector weights : settings) {
+            for (int i = 0; i < 7; i++) {
+                train(weights, fv1, fv2);
+            }
+            double[] before = scores(weights, fv1, fv2);
+            int featureSize = weights.getNodeWeights(1).getFeatureSize();
+
+            File serialized = File.createTempFile("weights", ".ser");
+            File binary = File.createTempFile("weights", ".bin");
+            for (int i = 0; i < 3; i++) {
+                weights.write(serialized);
+                weights.writeBinary(binary);
+                weights.freeze(WeightPrecision.FLOAT);
+            }
+            // Exactly the same, the sums are not rescaled by writing.
+            Assert.assertArrayEquals(before, scores(weights, fv1, fv2), 0);
+            Assert.assertEquals(featureSize, weights.getNodeWeights(1).getFeatureSize());
+
+            // The written models continue the training the same way as the live one.
+            GraphWeightVector fromSerialized = GraphWeightVector.read(serialized);
+            GraphWeightVector fromBinary = GraphWeightVector.readBinary(binary);
+            train(weights, fv1, fv2);
+            train(fromSerialized, fv1, fv2);
+            train(fromBinary, fv1, fv2);
+            Assert.assertArrayEquals(scores(weights, fv1, fv2), scores(fromSerialized, fv1, fv2), 1e-9);
+            Assert.assertArrayEquals(scores(weights, fv1, fv2), scores(fromBinary, fv1, fv2), 1e-9);
+
+            serialized.delete();
+            binary.delete();
+        }
+
+        // Write while another thread trains.
+        GraphWeightVector weights = new GraphWeightVector(classAlphabet, featureAlphabet, "", true);
+        Thread trainer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                train(weights, fv1, fv2);
+            }
+        });
+        trainer.start();
+        File checkpoint = File.createTempFile("weights", ".bin");
+        while (trainer.isAlive()) {
+            weights.writeBinary(checkpoint);
+        }
+        trainer.join();
+        GraphWeightVector.readBinary(checkpoint);
+        checkpoint.delete();
+    }
+
+    private double[] scores(GraphWeightVector weights, FeatureVector fv1, FeatureVector fv2) {
+        return new double[]{
+                weights.dotProd(fv1, 1), weights.dotProdAver(fv1, 1), weights.dotProdAver(fv1, 1, 2),
+                weights.dotProd(fv2, 2), weights.dotProdAver(fv2, 2), weights.dotProdAver(fv2, 2, 1)
+        };
+    }
+
+    /**
+     * Threads update overlapping features of the concurrent model, and the average clock only advances between the
+     * phases, so the result must be the same as applying the same updates sequentially. The values are small
+     * integers, so the sums are exact in any order.
+     */
+    @Test
+    public void concurrentUpdates() throws Exception {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2", "class3"}, false, true);
+        int numThreads = 4;
+        int numPhases = 30;
+        int updatesPerPhase = 20;
+
+        // updates[phase][thread] holds the feature vectors, and the keys and multipliers in parallel.
+        Random random = new Random(7);
+        FeatureVector[][][] vectors = new FeatureVector[numPhases][numThreads][updatesPerPhase];
+        int[][][] keys = new int[numPhases][numThreads][updatesPerPhase * 3];
+        for (int phase = 0; phase < numPhases; phase++) {
+            for (int thread = 0; thread < numThreads; thread++) {
+                for (int u = 0; u < updatesPerPhase; u++) {
+                    FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+                    for (int f = 0; f < 8; f++) {
+                        fv.addFeature("feature" + random.nextInt(200), random.nextInt(7) - 3);
+                    }
+                    vectors[phase][thread][u] = fv;
+                    keys[phase][thread][u * 3] = random.nextInt(4);
+                    keys[phase][thread][u * 3 + 1] = random.nextInt(4);
+                    keys[phase][thread][u * 3 + 2] = random.nextBoolean() ? 1 : -2;
+                }
+            }
+        }
+
+        GraphWeightVector sequential = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        for (int phase = 0; phase < numPhases; phase++) {
+            for (int thread = 0; thread < numThreads; thread++) {
+                applyUpdates(sequential, vectors[phase][thread], keys[phase][thread]);
+            }
+            sequential.updateAverageWeights();
+        }
+
+        GraphWeightVector concurrent = GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "");
+        CyclicBarrier barrier = new CyclicBarrier(numThreads, concurrent::updateAverageWeights);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int phase = 0; phase < numPhases; phase++) {
+                        applyUpdates(concurrent, vectors[phase][thread], keys[phase][thread]);
+                        barrier.await();
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        for (int featureIndex = 0; featureIndex < featureAlphabet.getAlphabetSize(); featureIndex++) {
+            for (int current = 0; current < 4; current++) {
+                assertSameWeight(sequential.getNodeWeights(current), concurrent.getNodeWeights(current),
+                        featureIndex);
+                for (int previous = 0; previous < 4; previous++) {
+                    assertSameWeight(sequential.getEdgeWeights(current, previous),
+                            concurrent.getEdgeWeights(current, previous), featureIndex);
+                }
+            }
+        }
+    }
+
+    private void applyUpdates(GraphWeightVector weights, FeatureVector[] vectors, int[] keys) {
+        for (int u = 0; u < vectors.length; u++) {
+            weights.updateWeightsBy(vectors[u], keys[u * 3], keys[u * 3 + 2]);
+            weights.updateWeightsBy(vectors[u], keys[u * 3], keys[u * 3 + 1], keys[u * 3 + 2]);
+        }
+    }
+
+    private void assertSameWeight(AveragedWeightVector expected, AveragedWeightVector actual, int featureIndex) {
+        Assert.assertEquals(expected == null, actual == null);
+        if (expected != null) {
+            Assert.assertEquals(expected.getWeightAt(featureIndex), actual.getWeightAt(featureIndex), 0);
+            Assert.assertEquals(expected.getAverageWeightAt(featureIndex), actual.getAverageWeightAt(featureIndex),
+                    0);
+        }
+    }
+
+    /**
+     * In the concurrent mode, the model is written and frozen without its lock, e.g. while a vector is being created.
+     */
+    @Test(timeout = 10000)
+    public void writeConcurrentWithoutLock() throws Exception {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+
+        GraphWeightVector weights = GraphWeightVector.createConcurrent(classAlphabet, featureAlphabet, "");
+        train(weights, fv1, fv2);
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (weights) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+
+        File binary = File.createTempFile("weights", ".bin");
+        try {
+            weights.writeBinary(binary);
+            FrozenGraphWeightVector frozen = weights.freeze();
+            FrozenGraphWeightVector written = FrozenGraphWeightVector.readBinary(binary);
+            Assert.assertNotEquals(0, frozen.dotProdAver(fv1, 1), 0);
+            for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                for (int classIndex = 1; classIndex < 3; classIndex++) {
+                    Assert.assertEquals(frozen.dotProdAver(fv, classIndex), written.dotProdAver(fv, classIndex), 0);
+                }
+            }
+        } finally {
+            release.countDown();
+            holder.join();
+            binary.delete();
+        }
+    }
+
+    @Test
+    public void readTableFormat() throws Exception {
+        // Written by write() before the edge weights moved from the Guava table to the primitive table.
+        GraphWeightVector model;
+        try (InputStream in = getClass().getResourceAsStream("graph-weight-vector-table.ser")) {
+            model = SerializationUtils.deserialize(in);
+        }
+        model.deconsolidate();
+
+        FeatureAlphabet featureAlphabet = model.getFeatureAlphabet();
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 0.5);
+
+        // The scores given by the model that wrote the file.
+        Assert.assertEquals("spec", model.getFeatureSpec());
+        Assert.assertEquals(5, model.dotProd(fv1, 0), 1e-9);
+        Assert.assertEquals(15, model.dotProdAver(fv1, 0), 1e-9);
+        Assert.assertEquals(-4, model.dotProdAver(fv1, 1), 1e-9);
+        Assert.assertEquals(2.125, model.dotProd(fv2, 1), 1e-9);
+        Assert.assertEquals(4.25, model.dotProdAver(fv2, 1), 1e-9);
+        Assert.assertEquals(-5, model.dotProd(fv1, 1, 0), 1e-9);
+        Assert.assertEquals(-15, model.dotProdAver(fv1, 1, 0), 1e-9);
+        Assert.assertEquals(8.5, model.dotProd(fv2, 0, 1), 1e-9);
+        Assert.assertEquals(17, model.dotProdAver(fv2, 0, 1), 1e-9);
+        Assert.assertNull(model.getEdgeWeights(0, 0));
+
+        int numEdges = 0;
+        for (Iterator<Triplet<Integer, Integer, AveragedWeightVector>> iter = model.edgeWeightIterator();
+             iter.hasNext(); ) {
+            Triplet<Integer, Integer, AveragedWeightVector> edge = iter.next();
+            Assert.assertSame(edge.getValue2(), model.getEdgeWeights(edge.getValue0(), edge.getValue1()));
+            numEdges++;
+        }
+        Assert.assertEquals(2, numEdges);
+
+        // The migrated model can resume training, and be written in the current formats.
+        model.updateWeightsBy(fv1, 0, 1, 1);
+        model.updateAverageWeights();
+        File javaFile = File.createTempFile("weights", ".ser");
+        File binaryFile = File.createTempFile("weights", ".bin");
+        try {
+            model.write(javaFile);
+            model.writeBinary(binaryFile);
+            GraphWeightVector javaModel = GraphWeightVector.read(javaFile);
+            GraphWeightVector binaryModel = GraphWeightVector.readBinary(binaryFile);
+            for (GraphWeightVector back : new GraphWeightVector[]{javaModel, binaryModel}) {
+                for (FeatureVector fv : new FeatureVector[]{fv1, fv2}) {
+                    for (int classIndex = 0; classIndex < 2; classIndex++) {
+                        Assert.assertEquals(model.dotProdAver(fv, classIndex), back.dotProdAver(fv, classIndex),
+                                1e-9);
+                    }
+                    Assert.assertEquals(model.dotProdAver(fv, 1, 0), back.dotProdAver(fv, 1, 0), 1e-9);
+                    Assert.assertEquals(model.dotProdAver(fv, 0, 1), back.dotProdAver(fv, 0, 1), 1e-9);
+                }
+            }
+        } finally {
+            javaFile.delete();
+            binaryFile.delete();
+        }
+    }
+
+    private void train(GraphWeightVector weights, FeatureVector fv1, FeatureVector fv2) {
+        weights.updateWeightsBy(fv1, 1, 1);
+        weights.updateWeightsBy(fv1, 1, 2, -1);
+        weights.updateAverageWeights();
+        weights.updateWeightsBy(fv2, 2, 0.5);
+        weights.updateWeightsBy(fv2, 2, 1, 2);
+        weights.updateAverageWeights();
+        weights.updateAverageWeights();
+    }
+}
@@ -0,0 +1,214 @@
+package edu.cmu.cs.lti.learning.model;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feature ids must stay the same as the ones produced by Guava's murmur3_32, which existing models are trained with.
+ * The estimated collisions should be close to the actual ones, when the lookups come from multiple threads. The
+ * recorded names and counts should follow the sampling and the bucket limit, and survive concurrent lookups and the
+ * migration from the bracketed names.
+ *
+ * @author Zhengzhong Liu
+ */
+public class HashAlphabetTest {
+    @Test
+    public void compatibleWithGuava() {
+        HashFunction guavaHasher = Hashing.murmur3_32();
+        int alphabetBits = 22;
+        int hashMask = (1 << alphabetBits) - 1;
+        HashAlphabet alphabet = new HashAlphabet(alphabetBits, false);
+
+        // Characters of 1 to 4 UTF-8 bytes, and unpaired surrogates.
+        char[] pool = {'a', 'Z', '_', '=', '\u00e9', '\u03bb', '\u4e2d', '\u6587', '\ud83d', '\ude00',
+                '\udbff', '\udfff'};
+        Random random = new Random(3);
+        StringBuilder sb = new StringBuilder();
+        for (int trial = 0; trial < 10000; trial++) {
+            sb.setLength(0);
+            int length = random.nextInt(20);
+            for (int i = 0; i < length; i++) {
+                sb.append(pool[random.nextInt(pool.length)]);
+            }
+            String feature = sb.toString();
+            int expected = guavaHasher.hashString(feature, Charsets.UTF_8).asInt() & hashMask;
+            Assert.assertEquals(feature, expected, alphabet.getFeatureId(feature));
+            Assert.assertEquals(feature, expected, alphabet.getFeatureId(sb));
+        }
+    }
+
+    @Test
+    public void estimateCollisions() throws Exception {
+        int alphabetBits = 16;
+        int numFeatures = 50000;
+        HashAlphabet alphabet = new HashAlphabet(alphabetBits, false, 1, Integer.MAX_VALUE, true);
+
+        // Every feature is looked up by each thread, in different orders.
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < numFeatures; i++) {
+                    alphabet.getFeatureId("feature_" + (i * 7919 + seed * 13) % numFeatures);
+                    alphabet.getFeatureId("feature_" + random.nextInt(numFeatures));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        TIntIntHashMap bucketSizes = new TIntIntHashMap();
+        for (int i = 0; i < numFeatures; i++) {
+            bucketSizes.adjustOrPutValue(alphabet.getFeatureId("feature_" + i), 1, 1);
+        }
+        int collided = 0;
+        for (int size : bucketSizes.values()) {
+            if (size > 1) {
+                collided += size;
+            }
+        }
+
+        Assert.assertEquals(numFeatures, alphabet.estimateDistinctFeatures(), numFeatures * 0.03);
+        Assert.assertEquals((double) collided / numFeatures, alphabet.estimateCollisionRate(), 0.02);
+        Assert.assertEquals(20, HashAlphabet.suggestAlphabetBits(numFeatures, 0.05));
+        Assert.assertEquals(20, alphabet.suggestAlphabetBits(0.05));
+    }
+
+    @Test
+    public void sampledCounts() {
+        HashAlphabet alphabet = new HashAlphabet(8, true, 10, Integer.MAX_VALUE);
+        int numLookups = 20000;
+        for (int i = 0; i < numLookups; i++) {
+            alphabet.getFeatureId("feature");
+        }
+
+        // About one in ten lookups is recorded, the standard deviation of the count is about 42.
+        int featureIndex = new HashAlphabet(8, false).getFeatureId("feature");
+        int count = recordedCounts(alphabet, featureIndex).get("feature");
+        Assert.assertEquals(numLookups / 10, count, 300);
+    }
+
+    @Test
+    public void nameCapPerBucket() {
+        int maxNames = 2;
+        HashAlphabet alphabet = new HashAlphabet(2, true, 1, maxNames);
+        HashAlphabet plain = new HashAlphabet(2, false);
+        for (int i = 0; i < 100; i++) {
+            alphabet.getFeatureId("feature_" + i);
+        }
+
+        // Only the first names of a bucket are recorded, and they are still counted after the bucket is full.
+        TIntIntHashMap firstNames = new TIntIntHashMap();
+        List<String> recorded = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String name = "feature_" + i;
+            int featureIndex = plain.getFeatureId(name);
+            if (firstNames.adjustOrPutValue(featureIndex, 1, 1) <= maxNames) {
+                recorded.add(name);
+            }
+        }
+        for (String name : recorded) {
+            alphabet.getFeatureId(name);
+        }
+
+        for (int featureIndex = 0; featureIndex < 4; featureIndex++) {
+            Assert.assertTrue(alphabet.getFeatureNames(featureIndex).length <= maxNames);
+        }
+        Assert.assertEquals(recorded.size(), alphabet.countRecordedNames()[0]);
+        for (String name : recorded) {
+            Assert.assertEquals(2, recordedCounts(alphabet, plain.getFeatureId(name)).get(name));
+        }
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        int numThreads = 4;
+        int numNames = 2000;
+        int repeats = 5;
+        // Few buckets, so that the threads often record into the same bucket.
+        HashAlphabet alphabet = new HashAlphabet(6, true);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                for (int r = 0; r < repeats; r++) {
+                    for (int i = 0; i < numNames; i++) {
+                        alphabet.getFeatureId("feature_" + (i * 7919 + seed * 131) % numNames);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        HashAlphabet plain = new HashAlphabet(6, false);
+        Assert.assertEquals(numNames, alphabet.countRecordedNames()[0]);
+        for (int i = 0; i < numNames; i++) {
+            String name = "feature_" + i;
+            Assert.assertEquals(numThreads * repeats, recordedCounts(alphabet, plain.getFeatureId(name)).get(name));
+        }
+    }
+
+    @Test
+    public void readBracketedNames() throws Exception {
+        // Written by the version that stored the names in brackets: 20 names looked up twice, and "[bracketed]" once,
+        // in 16 buckets.
+        HashAlphabet alphabet;
+        try (InputStream in = getClass().getResourceAsStream("hash-alphabet-bracketed.ser")) {
+            alphabet = SerializationUtils.deserialize(in);
+        }
+        Assert.assertEquals(1, alphabet.getSampleRate());
+        Assert.assertEquals(Integer.MAX_VALUE, alphabet.getMaxNamesPerBucket());
+        Assert.assertEquals(21, alphabet.countRecordedNames()[0]);
+
+        HashAlphabet plain = new HashAlphabet(4, false);
+        for (int i = 0; i < 20; i++) {
+            String name = "feature_" + i;
+            Assert.assertEquals(2, recordedCounts(alphabet, plain.getFeatureId(name)).get(name));
+        }
+        TObjectIntMap<String> counts = recordedCounts(alphabet, plain.getFeatureId("[bracketed]"));
+        Assert.assertEquals(1, counts.get("[bracketed]"));
+
+        // New lookups are added to the migrated names.
+        alphabet.getFeatureId("feature_0");
+        Assert.assertEquals(3, recordedCounts(alphabet, plain.getFeatureId("feature_0")).get("feature_0"));
+    }
+
+    /**
+     * Parse the names and counts of a bucket, as shown by {@link HashAlphabet#getMappedFeatureCounters(int)}.
+     */
+    private TObjectIntMap<String> recordedCounts(HashAlphabet alphabet, int featureIndex) {
+        TObjectIntMap<String> counts = new TObjectIntHashMap<>();
+        String counters = alphabet.getMappedFeatureCounters(featureIndex);
+        if (counters == null) {
+            return counts;
+        }
+        for (String entry : counters.substring(1, counters.length() - 1).split(",")) {
+            int separator = entry.lastIndexOf("]=");
+            counts.put(entry.substring(1, separator), Integer.parseInt(entry.substring(separator + 2)));
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,42 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The value of a feature in the lazy list is the sum of all its entries.
+ *
+ * @author Zhengzhong Liu
+ */
+public class RealValueLazyListFeatureVectorTest {
+    @Test
+    public void featureValue() {
+        FeatureAlphabet alphabet = new HashAlphabet(10, false);
+        RealValueLazyListFeatureVector lazy = new RealValueLazyListFeatureVector(alphabet);
+        RealValueHashFeatureVector hash = new RealValueHashFeatureVector(alphabet);
+        for (FeatureVector fv : new FeatureVector[]{lazy, hash}) {
+            fv.addFeature("feature1", 1);
+            fv.addFeature("feature2", 2);
+            fv.addFeature("feature1", 0.5);
+        }
+
+        Assert.assertEquals(3, lazy.getFeatureSize());
+        Assert.assertEquals(1.5, lazy.getFeatureValue("feature1"), 0);
+        Assert.assertEquals(0, lazy.getFeatureValue("feature3"), 0);
+
+        // Entries added after a lookup are indexed too.
+        for (FeatureVector fv : new FeatureVector[]{lazy, hash}) {
+            fv.addFeature("feature2", -1);
+            fv.addFeature("feature3", 4);
+        }
+        Assert.assertEquals(1, lazy.getFeatureValue("feature2"), 0);
+        Assert.assertEquals(4, lazy.getFeatureValue("feature3"), 0);
+
+        Assert.assertEquals(hash.dotProd(hash), lazy.dotProd(lazy), 1e-9);
+        Assert.assertEquals(hash.dotProd(hash), hash.dotProd(lazy), 1e-9);
+
+        FeatureVector negated = lazy.negation();
+        Assert.assertEquals(-1.5, negated.getFeatureValue("feature1"), 0);
+        Assert.assertEquals(-4, negated.getFeatureValue("feature3"), 0);
+    }
+}
@@ -0,0 +1,269 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Check the k-best lattice against exhaustive enumeration of all sequences.
+ *
+ * @author Zhengzhong Liu
+ */
+public class SequenceSolutionTest {
+    private static final int sequenceLength = 4;
+    private static final int bestK = 3;
+
+    private final ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"A", "B", "C"}, false, true);
+
+    private final double[][] nodeScores;
+    private final double[][] edgeScores;
+
+    public SequenceSolutionTest() {
+        Random random = new Random(1);
+        int numClasses = classAlphabet.size();
+        // One more position for the special end position.
+        nodeScores = new double[sequenceLength + 1][numClasses];
+        edgeScores = new double[numClasses][numClasses];
+        for (double[] row : nodeScores) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = random.nextGaussian();
+            }
+        }
+        for (double[] row : edgeScores) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = random.nextGaussian();
+            }
+        }
+    }
+
+    @Test
+    public void kBest() {
+        List<int[]> expected = enumerate(nodeScores, edgeScores);
+
+        SequenceSolution cellSolution = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+        decodeWithCells(cellSolution, nodeScores, edgeScores);
+        assertSolutions(expected, cellSolution);
+
+        SequenceSolution primitiveSolution = new SequenceSolution(classAlphabet, sequenceLength + 2, bestK);
+        // Reuse the larger lattice for the shorter sequence.
+        primitiveSolution.reset(sequenceLength);
+        decodeWithPrimitives(primitiveSolution, nodeScores, edgeScores);
+        assertSolutions(expected, primitiveSolution);
+    }
+
+    @Test
+    public void scoreCache() {
+        int numClasses = classAlphabet.size();
+        SequenceScoreCache cache = new SequenceScoreCache(numClasses, sequenceLength);
+        int[] numComputed = new int[1];
+        SequenceScoreCache.NodeScorer nodeScorer = (position, classIndex) -> {
+            numComputed[0]++;
+            return nodeScores[position][classIndex];
+        };
+        SequenceScoreCache.EdgeScorer edgeScorer = (currentClass, previousClass) -> {
+            numComputed[0]++;
+            return edgeScores[previousClass][currentClass];
+        };
+
+        // The 1-best pass fills the cache, the k-best pass only reads from it.
+        SequenceSolution oneBest = new SequenceSolution(classAlphabet, sequenceLength);
+        decodeWithCache(oneBest, cache, nodeScorer, edgeScorer);
+        int computedByFirstPass = numComputed[0];
+        Assert.assertEquals(computedByFirstPass, cache.getNumMisses());
+
+        SequenceSolution kBest = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+        decodeWithCache(kBest, cache, nodeScorer, edgeScorer);
+        Assert.assertEquals(computedByFirstPass, numComputed[0]);
+        Assert.assertTrue(cache.getNumHits() > 0);
+
+        assertSolutions(enumerate(nodeScores, edgeScores), kBest);
+        assertSolutions(enumerate(nodeScores, edgeScores).subList(0, 1), oneBest);
+
+        // A new sequence is scored again.
+        cache.reset(sequenceLength);
+        cache.getNodeScore(0, 0, nodeScorer);
+        Assert.assertEquals(computedByFirstPass + 1, numComputed[0]);
+    }
+
+    private void decodeWithCache(SequenceSolution solution, SequenceScoreCache cache,
+                                 SequenceScoreCache.NodeScorer nodeScorer, SequenceScoreCache.EdgeScorer edgeScorer) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            for (int classIndex : solution.getCurrentPossibleClassIndices().toArray()) {
+                double nodeScore = cache.getNodeScore(position, classIndex, nodeScorer);
+                for (int prevClass : solution.getPreviousPossibleClassIndices().toArray()) {
+                    double edgeScore = cache.getEdgeScore(classIndex, prevClass, edgeScorer);
+                    for (int rank = 0; rank < solution.getNumPreviousBests(prevClass); rank++) {
+                        solution.scoreNewEdge(classIndex, prevClass, rank, edgeScore, nodeScore);
+                    }
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    @Test
+    public void oneBest() {
+        List<int[]> expected = enumerate(nodeScores, edgeScores);
+
+        SequenceSolution solution = new SequenceSolution(classAlphabet, sequenceLength);
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            for (int classIndex : solution.getCurrentPossibleClassIndices().toArray()) {
+                for (int prevClass : solution.getPreviousPossibleClassIndices().toArray()) {
+                    solution.scoreNewEdge(classIndex, prevClass, edgeScores[prevClass][classIndex],
+                            nodeScores[position][classIndex]);
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+        assertSolutions(expected.subList(0, 1), solution);
+
+        // The cell based decoding must give the same result.
+        SequenceSolution cellSolution = new SequenceSolution(classAlphabet, sequenceLength);
+        decodeWithCells(cellSolution, nodeScores, edgeScores);
+        Assert.assertEquals(solution, cellSolution);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void detachedCell() {
+        SequenceSolution solution = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+        SequenceSolution.LatticeCell start = solution.getEmptyCell();
+        SequenceSolution.LatticeCell cell = solution.new LatticeCell(3, 1, start, 1, 0, 2);
+        Assert.assertEquals(3, cell.getScore(), 0);
+        Assert.assertEquals(1, cell.getClassIndex());
+        Assert.assertSame(start, cell.getBackPointer());
+        Assert.assertEquals(1, cell.getCurrentScore(), 0);
+        Assert.assertEquals(2, cell.getTransitionScore(), 0);
+        Assert.assertTrue(cell.compareTo(start) < 0);
+
+        try {
+            solution.scoreNewEdge(1, cell, 0, 0);
+            Assert.fail("A detached cell should not be extended.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void pruning() {
+        List<int[]> expected = enumerate(nodeScores, edgeScores);
+        int numNormalClasses = (int) classAlphabet.getNormalClassesRange().count();
+
+        // A beam as wide as the classes prunes nothing.
+        SequenceSolution wideSolution = new SequenceSolution(classAlphabet, sequenceLength, bestK);
+        wideSolution.setPruning(numNormalClasses, Double.POSITIVE_INFINITY);
+        decodeWithPrimitives(wideSolution, nodeScores, edgeScores);
+        assertSolutions(expected, wideSolution);
+        Assert.assertEquals(0, wideSolution.getNumPrunedCells());
+        Assert.assertEquals(numNormalClasses * sequenceLength, wideSolution.getNumSurvivedCells());
+
+        // Only one class survive at each position.
+        SequenceSolution narrowSolution = new SequenceSolution(classAlphabet, sequenceLength);
+        narrowSolution.setPruning(1, Double.POSITIVE_INFINITY);
+        decodeWithPrimitives(narrowSolution, nodeScores, edgeScores);
+        Assert.assertEquals((numNormalClasses - 1) * sequenceLength, narrowSolution.getNumPrunedCells());
+        for (int position = 0; position < sequenceLength; position++) {
+            Assert.assertArrayEquals(new int[]{narrowSolution.getClassAt(position)},
+                    narrowSolution.getPossibleClassIndices(position).toArray());
+        }
+
+        // A zero margin keeps only the best classes, and nothing else survives.
+        SequenceSolution marginSolution = new SequenceSolution(classAlphabet, sequenceLength);
+        marginSolution.setPruning(Integer.MAX_VALUE, 0);
+        decodeWithPrimitives(marginSolution, nodeScores, edgeScores);
+        Assert.assertEquals(narrowSolution, marginSolution);
+    }
+
+    private void assertSolutions(List<int[]> expected, SequenceSolution solution) {
+        for (int k = 0; k < expected.size(); k++) {
+            for (int i = 0; i < sequenceLength; i++) {
+                Assert.assertEquals(expected.get(k)[i], solution.getClassAt(k, i));
+            }
+        }
+    }
+
+    private void decodeWithCells(SequenceSolution solution, double[][] nodeScores, double[][] edgeScores) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            solution.getCurrentPossibleClassIndices().forEach(classIndex ->
+                    solution.getPreviousPossibleClassIndices().forEach(prevClass -> {
+                        List<SequenceSolution.LatticeCell> previousBests = solution.getPreviousBests(prevClass);
+                        for (int rank = 0; rank < previousBests.size(); rank++) {
+                            SequenceSolution.LatticeCell cell = previousBests.get(rank);
+                            // The cell views agree with the primitive methods.
+                            SequenceSolution.LatticeCell backPointer = cell.getBackPointer();
+                            Assert.assertEquals(backPointer == null ? -1 : backPointer.getClassIndex(),
+                                    solution.getPreviousBestClass(prevClass, rank));
+                            Assert.assertEquals(solution.getPreviousBestScore(prevClass, rank), cell.getScore(), 0);
+                            Assert.assertEquals(cell.getScore(), cell.getPreviousScore() + cell.getCurrentScore() +
+                                    cell.getTransitionScore(), 1e-9);
+                            solution.scoreNewEdge(classIndex, cell, edgeScores[prevClass][classIndex],
+                                    nodeScores[position][classIndex]);
+                        }
+                    }));
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    private void decodeWithPrimitives(SequenceSolution solution, double[][] nodeScores, double[][] edgeScores) {
+        while (!solution.finished()) {
+            int position = solution.getCurrentPosition();
+            for (int classIndex : solution.getCurrentPossibleClassIndices().toArray()) {
+                for (int prevClass : solution.getPreviousPossibleClassIndices().toArray()) {
+                    for (int rank = 0; rank < solution.getNumPreviousBests(prevClass); rank++) {
+                        solution.scoreNewEdge(classIndex, prevClass, rank, edgeScores[prevClass][classIndex],
+                                nodeScores[position][classIndex]);
+                    }
+                }
+            }
+            solution.advance();
+        }
+        solution.backTrace();
+    }
+
+    private List<int[]> enumerate(double[][] nodeScores, double[][] edgeScores) {
+        int outside = classAlphabet.getOutsideClassIndex();
+        int[] normalClasses = classAlphabet.getNormalClassesRange().toArray();
+
+        List<int[]> sequences = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+
+        int total = (int) Math.pow(normalClasses.length, sequenceLength);
+        for (int code = 0; code < total; code++) {
+            int[] sequence = new int[sequenceLength];
+            int rest = code;
+            double score = 0;
+            int prev = outside;
+            for (int i = 0; i < sequenceLength; i++) {
+                sequence[i] = normalClasses[rest % normalClasses.length];
+                rest /= normalClasses.length;
+                score += edgeScores[prev][sequence[i]] + nodeScores[i][sequence[i]];
+                prev = sequence[i];
+            }
+            score += edgeScores[prev][outside] + nodeScores[sequenceLength][outside];
+            sequences.add(sequence);
+            scores.add(score);
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingDouble(i -> -scores.get(i)));
+
+        List<int[]> best = new ArrayList<>();
+        for (int k = 0; k < bestK; k++) {
+            best.add(sequences.get(order.get(k)));
+        }
+        return best;
+    }
+}
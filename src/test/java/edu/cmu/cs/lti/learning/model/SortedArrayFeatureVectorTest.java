@@ -0,0 +1,67 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * The sorted array vector should behave the same as the hash based one.
+ *
+ * @author Zhengzhong Liu
+ */
+public class SortedArrayFeatureVectorTest {
+    @Test
+    public void sameAsHashVector() {
+        FeatureAlphabet alphabet = new HashAlphabet(8, false);
+        Random random = new Random(5);
+
+        for (int trial = 0; trial < 200; trial++) {
+            SortedArrayFeatureVector sorted1 = new SortedArrayFeatureVector(alphabet, 2);
+            SortedArrayFeatureVector sorted2 = new SortedArrayFeatureVector(alphabet);
+            RealValueHashFeatureVector hash1 = new RealValueHashFeatureVector(alphabet);
+            RealValueHashFeatureVector hash2 = new RealValueHashFeatureVector(alphabet);
+
+            // A small feature range gives many duplicates, reads in between test the recompaction.
+            int numFeatures1 = random.nextInt(40);
+            for (int i = 0; i < numFeatures1; i++) {
+                String feature = "f" + random.nextInt(30);
+                int value = random.nextInt(5) - 2;
+                sorted1.addFeature(feature, value);
+                hash1.addFeature(feature, value);
+                if (random.nextInt(10) == 0) {
+                    Assert.assertEquals(hash1.getFeatureSize(), sorted1.getFeatureSize());
+                }
+            }
+            int numFeatures2 = random.nextInt(40);
+            for (int i = 0; i < numFeatures2; i++) {
+                String feature = "f" + random.nextInt(30);
+                int value = random.nextInt(5) - 2;
+                sorted2.addFeature(feature, value);
+                hash2.addFeature(feature, value);
+            }
+
+            Assert.assertEquals(hash1.getFeatureSize(), sorted1.getFeatureSize());
+            int previousIndex = -1;
+            for (FeatureVector.FeatureIterator iter = sorted1.featureIterator(); iter.hasNext(); ) {
+                iter.next();
+                Assert.assertTrue(iter.featureIndex() > previousIndex);
+                Assert.assertEquals(hash1.getFeatureValue(iter.featureIndex()), iter.featureValue(), 0);
+                previousIndex = iter.featureIndex();
+            }
+
+            Assert.assertEquals(hash1.dotProd(hash2), sorted1.dotProd(sorted2), 1e-9);
+            Assert.assertEquals(hash1.dotProd(hash2), sorted1.dotProd(hash2), 1e-9);
+
+            SortedArrayFeatureVector sortedDiff = new SortedArrayFeatureVector(alphabet);
+            RealValueHashFeatureVector hashDiff = new RealValueHashFeatureVector(alphabet);
+            sorted1.diff(sorted2, sortedDiff);
+            hash1.diff(hash2, hashDiff);
+            Assert.assertEquals(hashDiff.getFeatureSize(), sortedDiff.getFeatureSize());
+            for (FeatureVector.FeatureIterator iter = hashDiff.featureIterator(); iter.hasNext(); ) {
+                iter.next();
+                Assert.assertEquals(iter.featureValue(), sortedDiff.getFeatureValue(iter.featureIndex()), 0);
+            }
+        }
+    }
+}
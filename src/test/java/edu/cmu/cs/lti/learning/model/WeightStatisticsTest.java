@@ -0,0 +1,57 @@
+package edu.cmu.cs.lti.learning.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The statistics should match the weights, and the model should not be changed.
+ *
+ * @author Zhengzhong Liu
+ */
+public class WeightStatisticsTest {
+    @Test
+    public void statistics() {
+        HashAlphabet featureAlphabet = new HashAlphabet(10, true);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+        GraphWeightVector weights = new GraphWeightVector(classAlphabet, featureAlphabet, "", true);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(featureAlphabet);
+        fv1.addFeature("feature1", 3);
+        fv1.addFeature("feature2", -4);
+        FeatureVector fv2 = new RealValueHashFeatureVector(featureAlphabet);
+        fv2.addFeature("feature3", 0.5);
+
+        weights.updateWeightsBy(fv1, 1, 1);
+        weights.updateAverageWeights();
+        weights.updateWeightsBy(fv2, 1, 2, -1);
+        weights.updateAverageWeights();
+        double score = weights.dotProdAver(fv1, 1);
+
+        WeightStatistics statistics = WeightStatistics.compute(weights, 2);
+        Assert.assertEquals(2, statistics.getVectors().size());
+        Assert.assertEquals(score, weights.dotProdAver(fv1, 1), 0);
+
+        WeightStatistics.VectorStatistics node = statistics.getVectors().get(0);
+        Assert.assertTrue(node.isNode());
+        Assert.assertEquals(2, node.getWeights().getNumNonZeros());
+        Assert.assertEquals(7, node.getWeights().getL1(), 1e-9);
+        Assert.assertEquals(5, node.getWeights().getL2(), 1e-9);
+        Assert.assertEquals(4, node.getWeights().getMaxAbs(), 1e-9);
+        // Both averages are over two updates, 3 and -4.
+        Assert.assertEquals(4, node.getAveraged().getMaxAbs(), 1e-9);
+
+        // The edge weight is in the bin of [0.1, 1), and its average is halved.
+        WeightStatistics.VectorStatistics edge = statistics.getVectors().get(1);
+        Assert.assertFalse(edge.isNode());
+        Assert.assertEquals(0.25, edge.getAveraged().getMaxAbs(), 1e-9);
+        String[] labels = WeightStatistics.binLabels();
+        long[] histogram = edge.getWeights().getHistogram();
+        for (int bin = 0; bin < labels.length; bin++) {
+            Assert.assertEquals(labels[bin].equals("1e-1") ? 1 : 0, histogram[bin]);
+        }
+
+        Assert.assertEquals(3, statistics.getTotalWeights().getNumNonZeros());
+        Assert.assertEquals(3, statistics.getOccupiedBuckets());
+        Assert.assertTrue(statistics.toJson().contains("\"recordedNames\": 3"));
+    }
+}
@@ -38,4 +38,74 @@ public class WeightVectorTest {
         weightVector.consolidate();
         Assert.assertEquals(1, weightVector.getFeatureSize());
     }
+
+    @Test
+    public void lazyAverage() {
+        FeatureAlphabet alphabet = new HashAlphabet(10, false);
+
+        HashBasedAveragedWeightVector eager = new HashBasedAveragedWeightVector(3);
+        HashBasedAveragedWeightVector lazy = new HashBasedAveragedWeightVector(3, true);
+
+        String[] features = {"feature1", "feature2", "feature3", "feature4", "feature5"};
+        for (int step = 0; step < 20; step++) {
+            FeatureVector fv = new RealValueHashFeatureVector(alphabet);
+            fv.addFeature(features[step % features.length], step % 3 - 1);
+            fv.addFeature(features[(step * 7) % features.length], 0.5);
+            eager.updateWeightsBy(fv, 1);
+            lazy.updateWeightsBy(fv, 1);
+            if (step % 2 == 0) {
+                eager.updateAverageWeight();
+                lazy.updateAverageWeight();
+            }
+
+            for (String feature : features) {
+                int index = alphabet.getFeatureId(feature);
+                Assert.assertEquals(eager.getAverageWeightAt(index), lazy.getAverageWeightAt(index), 1e-9);
+            }
+        }
+
+        eager.consolidate();
+        lazy.consolidate();
+
+        Assert.assertEquals(eager.getFeatureSize(), lazy.getFeatureSize());
+        for (String feature : features) {
+            int index = alphabet.getFeatureId(feature);
+            Assert.assertEquals(eager.getWeightAt(index), lazy.getWeightAt(index), 1e-9);
+            Assert.assertEquals(eager.getAverageWeightAt(index), lazy.getAverageWeightAt(index), 1e-9);
+        }
+    }
+
+    @Test
+    public void arrayBased() {
+        FeatureAlphabet alphabet = new HashAlphabet(10, false);
+
+        HashBasedAveragedWeightVector hashBased = new HashBasedAveragedWeightVector(2);
+        ArrayBasedAveragedWeightVector arrayBased = new ArrayBasedAveragedWeightVector(alphabet.getAlphabetSize(), 2);
+
+        FeatureVector fv1 = new RealValueHashFeatureVector(alphabet);
+        fv1.addFeature("feature1", 1);
+        fv1.addFeature("feature2", 2);
+
+        FeatureVector fv2 = new RealValueHashFeatureVector(alphabet);
+        fv2.addFeature("feature2", -2);
+        fv2.addFeature("feature3", 1);
+
+        for (AveragedWeightVector weightVector : new AveragedWeightVector[]{hashBased, arrayBased}) {
+            weightVector.updateWeightsBy(fv1, 1);
+            weightVector.updateAverageWeight();
+            weightVector.updateAverageWeight();
+            weightVector.updateWeightsBy(fv2, 0.5);
+            weightVector.updateAverageWeight();
+        }
+
+        Assert.assertEquals(hashBased.dotProd(fv1), arrayBased.dotProd(fv1), 1e-9);
+        Assert.assertEquals(hashBased.dotProdAver(fv1), arrayBased.dotProdAver(fv1), 1e-9);
+        Assert.assertEquals(hashBased.dotProdAver(fv2), arrayBased.dotProdAver(fv2), 1e-9);
+
+        hashBased.consolidate();
+        arrayBased.consolidate();
+        Assert.assertEquals(hashBased.getFeatureSize(), arrayBased.getFeatureSize());
+        Assert.assertEquals(hashBased.dotProdAver(fv1), arrayBased.dotProdAver(fv1), 1e-9);
+        Assert.assertEquals(hashBased.dotProdAver(fv2), arrayBased.dotProdAver(fv2), 1e-9);
+    }
 }
@@ -0,0 +1,105 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checkpoints should be complete models, only the latest ones are kept, the write rate is limited, and a failed
+ * checkpoint leaves no file behind.
+ *
+ * @author Zhengzhong Liu
+ */
+public class CheckpointSchedulerTest {
+    @Test
+    public void checkpoints() throws Exception {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(12, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2", "class3"}, false, true);
+        GraphWeightVector weights = new GraphWeightVector(classAlphabet, featureAlphabet, "", true);
+
+        File directory = Files.createTempDirectory("checkpoints").toFile();
+        TrainingStats stats = new TrainingStats(100);
+        Random random = new Random(3);
+        FeatureVector fv = null;
+
+        try (CheckpointScheduler scheduler = new CheckpointScheduler(weights, directory, "model", 10, 0, 2, stats)) {
+            for (int i = 0; i < 200; i++) {
+                fv = new RealValueHashFeatureVector(featureAlphabet);
+                for (int j = 0; j < 20; j++) {
+                    fv.addFeature("feature" + random.nextInt(500), random.nextGaussian());
+                }
+                weights.updateWeightsBy(fv, random.nextInt(3), 1);
+                weights.updateAverageWeights();
+                scheduler.onUpdate();
+            }
+
+            File last = scheduler.checkpoint().get();
+            Assert.assertEquals("model-200.bin", last.getName());
+
+            // The latest checkpoints only, and no temporary files. The previous checkpoint may also be named after 200
+            // updates, if it started reading the model after the last update.
+            String[] names = directory.list();
+            Assert.assertTrue(names.length == 1 || names.length == 2);
+            Assert.assertTrue(Arrays.asList(names).contains(last.getName()));
+            for (String name : names) {
+                Assert.assertTrue(name.endsWith(".bin"));
+            }
+
+            GraphWeightVector restored = GraphWeightVector.readBinary(last);
+            for (int classIndex = 0; classIndex < 3; classIndex++) {
+                Assert.assertEquals(weights.dotProdAver(fv, classIndex), restored.dotProdAver(fv, classIndex),
+                        1e-9);
+            }
+            Assert.assertEquals(last.length(), stats.getLastCheckpointBytes());
+            Assert.assertTrue(stats.getNumCheckpoints() + stats.getNumSkippedCheckpoints() >= 21);
+
+            // Written at half of the size per second, it takes about two seconds.
+            scheduler.setMaxBytesPerSecond(last.length() / 2);
+            scheduler.checkpoint().get();
+            Assert.assertTrue(stats.getLastCheckpointMillis() >= 1800);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void failedCheckpoint() throws Exception {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(12, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2"}, false, true);
+        GraphWeightVector weights = new GraphWeightVector(classAlphabet, featureAlphabet, "") {
+            @Override
+            public void writeBinary(WritableByteChannel channel) throws IOException {
+                super.writeBinary(channel);
+                throw new IllegalStateException("Failed after writing.");
+            }
+        };
+
+        File directory = Files.createTempDirectory("checkpoints").toFile();
+        try (CheckpointScheduler scheduler = new CheckpointScheduler(weights, directory, "model", 0, 0, 2,
+                new TrainingStats(100))) {
+            try {
+                scheduler.checkpoint().get();
+                Assert.fail("The checkpoint should fail.");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(0, directory.list().length);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
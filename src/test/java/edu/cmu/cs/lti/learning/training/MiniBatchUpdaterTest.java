@@ -0,0 +1,76 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A batch should update the model the same way as applying the summed updates sequentially.
+ *
+ * @author Zhengzhong Liu
+ */
+public class MiniBatchUpdaterTest {
+    @Test
+    public void sameAsSequential() {
+        FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+        ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2", "class3"}, false, true);
+
+        Random random = new Random(7);
+        List<GraphFeatureVector> updates = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            if (i % 5 == 0) {
+                // No update for this instance.
+                updates.add(null);
+                continue;
+            }
+            GraphFeatureVector update = new GraphFeatureVector(classAlphabet, featureAlphabet);
+            FeatureVector fv = new RealValueHashFeatureVector(featureAlphabet);
+            for (int j = 0; j < 5; j++) {
+                fv.addFeature("feature" + random.nextInt(20), random.nextInt(3) + 1);
+            }
+            update.extend(fv, random.nextInt(3));
+            update.extend(fv, random.nextInt(3), random.nextInt(3), -1);
+            updates.add(update);
+        }
+
+        GraphWeightVector batchWeights = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        GraphWeightVector sequentialWeights = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+
+        try (MiniBatchUpdater updater = new MiniBatchUpdater(batchWeights, 3)) {
+            for (int start = 0; start < updates.size(); start += 10) {
+                List<GraphFeatureVector> batch = updates.subList(start, Math.min(start + 10, updates.size()));
+                int numUpdates = updater.processBatch(batch, update -> update, 0.5);
+
+                int expectedUpdates = 0;
+                for (GraphFeatureVector update : batch) {
+                    if (update != null) {
+                        sequentialWeights.updateWeightsBy(update, 0.5);
+                        expectedUpdates++;
+                    }
+                }
+                sequentialWeights.updateAverageWeights();
+                Assert.assertEquals(expectedUpdates, numUpdates);
+            }
+            Assert.assertEquals(3, updater.getNumBatches());
+        }
+
+        FeatureVector probe = new RealValueHashFeatureVector(featureAlphabet);
+        for (int i = 0; i < 20; i++) {
+            probe.addFeature("feature" + i, 1);
+        }
+        for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+            Assert.assertEquals(sequentialWeights.dotProd(probe, classIndex), batchWeights.dotProd(probe,
+                    classIndex), 1e-9);
+            Assert.assertEquals(sequentialWeights.dotProdAver(probe, classIndex), batchWeights.dotProdAver(probe,
+                    classIndex), 1e-9);
+            for (int previous = 0; previous < classAlphabet.size(); previous++) {
+                Assert.assertEquals(sequentialWeights.dotProdAver(probe, classIndex, previous),
+                        batchWeights.dotProdAver(probe, classIndex, previous), 1e-9);
+            }
+        }
+    }
+}
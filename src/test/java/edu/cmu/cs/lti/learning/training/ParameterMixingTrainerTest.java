@@ -0,0 +1,116 @@
+package edu.cmu.cs.lti.learning.training;
+
+import edu.cmu.cs.lti.learning.model.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+/**
+ * Mixing a single replica, or replicas trained on the same data, should give the model trained directly.
+ *
+ * @author Zhengzhong Liu
+ */
+public class ParameterMixingTrainerTest {
+    private final FeatureAlphabet featureAlphabet = new HashAlphabet(10, false);
+
+    private final ClassAlphabet classAlphabet = new ClassAlphabet(new String[]{"class1", "class2", "class3"}, false,
+            true);
+
+    // Each instance is updated toward a fixed class, so that the updates do not depend on the model.
+    private final BiConsumer<GraphWeightVector, Integer> trainFunction;
+
+    private final List<Integer> instances = new ArrayList<>();
+
+    private final FeatureVector[] features = new FeatureVector[10];
+
+    public ParameterMixingTrainerTest() {
+        Random random = new Random(3);
+        for (int i = 0; i < features.length; i++) {
+            features[i] = new RealValueHashFeatureVector(featureAlphabet);
+            for (int j = 0; j < 4; j++) {
+                features[i].addFeature("feature" + random.nextInt(30), random.nextInt(3) + 1);
+            }
+            instances.add(i);
+        }
+        trainFunction = (weights, instance) -> {
+            weights.updateWeightsBy(features[instance], instance % 3, 1);
+            weights.updateWeightsBy(features[instance], (instance + 1) % 3, -0.5);
+            weights.updateWeightsBy(features[instance], instance % 3, (instance + 2) % 3, 1);
+            weights.updateAverageWeights();
+        };
+    }
+
+    private void train(GraphWeightVector weights, List<Integer> shard) {
+        for (int instance : shard) {
+            trainFunction.accept(weights, instance);
+        }
+    }
+
+    private void assertSameModel(GraphWeightVector expected, GraphWeightVector actual) {
+        FeatureVector probe = new RealValueHashFeatureVector(featureAlphabet);
+        for (int i = 0; i < 30; i++) {
+            probe.addFeature("feature" + i, 1);
+        }
+        for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+            Assert.assertEquals(expected.dotProd(probe, classIndex), actual.dotProd(probe, classIndex), 1e-9);
+            Assert.assertEquals(expected.dotProdAver(probe, classIndex), actual.dotProdAver(probe, classIndex),
+                    1e-9);
+            for (int previous = 0; previous < classAlphabet.size(); previous++) {
+                Assert.assertEquals(expected.dotProdAver(probe, classIndex, previous),
+                        actual.dotProdAver(probe, classIndex, previous), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void mixing() {
+        // Eager, lazy and dense averaging.
+        boolean[][] settings = {{false, false}, {true, false}, {true, true}};
+        for (boolean[] setting : settings) {
+            GraphWeightVector direct = new GraphWeightVector(classAlphabet, featureAlphabet, "", setting[0],
+                    setting[1]);
+            GraphWeightVector single = direct.emptyCopy();
+            GraphWeightVector mixed = direct.emptyCopy();
+
+            try (ParameterMixingTrainer singleTrainer = new ParameterMixingTrainer(single, 1);
+                 ParameterMixingTrainer mixedTrainer = new ParameterMixingTrainer(mixed, 2)) {
+                for (int epoch = 0; epoch < 2; epoch++) {
+                    train(direct, instances);
+                    singleTrainer.trainEpoch(Collections.singletonList(instances), trainFunction);
+                    mixedTrainer.trainEpoch(Arrays.asList(instances, instances), trainFunction);
+                }
+                Assert.assertEquals(2, mixedTrainer.getNumEpochs());
+            }
+
+            assertSameModel(direct, single);
+            assertSameModel(direct, mixed);
+        }
+    }
+
+    @Test
+    public void mixedWeights() {
+        GraphWeightVector master = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        try (ParameterMixingTrainer trainer = new ParameterMixingTrainer(master, 2)) {
+            trainer.trainEpoch(Arrays.asList(instances.subList(0, 5), instances.subList(5, 10)), trainFunction);
+        }
+
+        GraphWeightVector first = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        GraphWeightVector second = new GraphWeightVector(classAlphabet, featureAlphabet, "");
+        train(first, instances.subList(0, 5));
+        train(second, instances.subList(5, 10));
+
+        // The raw weights are the mean of the replicas.
+        for (FeatureVector fv : features) {
+            for (int classIndex = 0; classIndex < classAlphabet.size(); classIndex++) {
+                Assert.assertEquals((first.dotProd(fv, classIndex) + second.dotProd(fv, classIndex)) / 2,
+                        master.dotProd(fv, classIndex), 1e-9);
+            }
+        }
+    }
+}